@@ -157,13 +157,12 @@ class ImportController {
         public void success(ActionInvocation actionInvocation) {
           Log.d(LOG_TAG, "Export action success");
           String export = actionInvocation.getOutput(Exporter.EXPORT).toString();
-          // Must be called on main thread for thread safety
-          handler.post(() -> {
-            RadioLibrary radioLibrary = mainActivity.getRadioLibrary();
-            assert radioLibrary != null;
-            mainActivity.tell((radioLibrary.isOpen() && radioLibrary.importFrom(export)) ?
-              R.string.import_successful : R.string.import_failed);
-          });
+          // Icons decoding and storage, database writing: done here, off main thread
+          RadioLibrary radioLibrary = mainActivity.getRadioLibrary();
+          assert radioLibrary != null;
+          boolean isImported = radioLibrary.importFrom(RadioLibrary.parse(export));
+          handler.post(() -> mainActivity.tell(
+            isImported ? R.string.import_successful : R.string.import_failed));
         }
 
         @Override
@@ -61,6 +61,7 @@ import androidx.core.content.ContextCompat;
 import com.watea.radio_upnp.R;
 import com.watea.radio_upnp.adapter.PlayerAdapter;
 import com.watea.radio_upnp.model.Radio;
+import com.watea.radio_upnp.service.PlaylistResolver;
 import com.watea.radio_upnp.service.RadioURL;
 
 import org.jsoup.Jsoup;
@@ -597,8 +598,7 @@ public abstract class ItemFragment extends MainActivityFragment {
 
     @Override
     protected void onSearch() {
-      URL uRL = Radio.getUrlFromM3u(url);
-      streamContent = (uRL == null) ? null : new RadioURL(uRL).getStreamContentType();
+      streamContent = PlaylistResolver.getStreamContentType(url);
     }
 
     @Override
@@ -40,9 +40,10 @@ public class ItemModifyFragment extends ItemFragment {
   private Long radioId = null;
   private Radio radio = null;
 
-  // Must be called before creation
+  // Must be called before creation.
+  // Radio is modified on validation, so a copy is kept: library instance is shared.
   public void set(@NonNull Radio radio) {
-    this.radio = radio;
+    this.radio = new Radio(radio);
   }
 
   @Override
@@ -114,7 +115,8 @@ public class ItemModifyFragment extends ItemFragment {
         onBackPressed();
       } else {
         assert getRadioLibrary() != null;
-        radio = getRadioLibrary().getFrom(radioId);
+        final Radio libraryRadio = getRadioLibrary().getFrom(radioId);
+        radio = (libraryRadio == null) ? null : new Radio(libraryRadio);
       }
     }
   }
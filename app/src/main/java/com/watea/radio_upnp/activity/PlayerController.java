@@ -195,8 +195,12 @@ class PlayerController {
           playedRadioInformationTextView.setText(information);
           // Use WRITER for rate
           String rate = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_WRITER);
+          // Use DISPLAY_DESCRIPTION for codec and sample rate
+          String format =
+            mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_DISPLAY_DESCRIPTION);
           playedRadioRateTextView.setText(
-            (rate == null) ? "" : rate + mainActivity.getString(R.string.kbs));
+            (((rate == null) ? "" : rate + mainActivity.getString(R.string.kbs)) +
+              ((format == null) ? "" : " " + format)).trim());
           // Fill playlist
           if (information != null) {
             DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
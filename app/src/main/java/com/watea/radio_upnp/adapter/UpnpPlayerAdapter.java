@@ -32,6 +32,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.watea.radio_upnp.BuildConfig;
 import com.watea.radio_upnp.R;
 import com.watea.radio_upnp.model.Radio;
 import com.watea.radio_upnp.service.RadioHandler;
@@ -363,11 +364,9 @@ public class UpnpPlayerAdapter extends PlayerAdapter implements RadioHandler.Upn
   @Override
   protected void onPrepareFromMediaId() {
     changeAndNotifyState(PlaybackStateCompat.STATE_BUFFERING);
-    // Fetch content in a new thread
+    // Connect stream in a new thread, connection is reused for renderer request
     new Thread(() -> {
-      if (upnpActionController.getContentType(radio) == null) {
-        upnpActionController.fetchContentType(radio);
-      }
+      upnpActionController.fetchContentType(radio, lockKey);
       // We can now call prepare, only if we are still waiting
       if (state == PlaybackStateCompat.STATE_BUFFERING) {
         onPreparedPlay();
@@ -421,9 +420,14 @@ public class UpnpPlayerAdapter extends PlayerAdapter implements RadioHandler.Upn
     if (result != null) {
       return result;
     }
-    // AAC special case
-    if (contentType.contains("aac")) {
+    // AAC special case, if renderer does not list any AAC type;
+    // stream is then remuxed to MP4 by RadioHandler
+    if (BuildConfig.MP4_REMUXING && contentType.contains("aac") &&
+      (searchContentType(AUDIO_CONTENT_TYPE + "[a-z.-]*(aac|adts)[a-z.-]*") == null)) {
       result = searchContentType(AUDIO_CONTENT_TYPE + "mp4");
+      if (result == null) {
+        result = searchContentType(AUDIO_CONTENT_TYPE + "x-m4a");
+      }
       if (result != null) {
         return result;
       }
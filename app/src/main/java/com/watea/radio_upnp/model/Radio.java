@@ -38,16 +38,10 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.watea.radio_upnp.service.RadioURL;
-
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -134,6 +128,20 @@ public class Radio {
     this.icon = icon;
   }
 
+  // Copy, to be modified then written back with RadioLibrary.updateFrom()
+  public Radio(@NonNull Radio radio) {
+    id = radio.id;
+    name = radio.name;
+    iconFile = radio.iconFile;
+    type = radio.type;
+    language = radio.language;
+    url = radio.url;
+    webPageUrl = radio.webPageUrl;
+    quality = radio.quality;
+    isPreferred = radio.isPreferred;
+    icon = radio.icon;
+  }
+
   // SQL constructor
   @SuppressLint("Range")
   public Radio(@NonNull Cursor cursor) {
@@ -159,8 +167,8 @@ public class Radio {
     }
     quality = Quality.valueOf(
       cursor.getString(cursor.getColumnIndex(RadioSQLContract.Columns.COLUMN_QUALITY)));
-    isPreferred = Boolean.valueOf(
-      cursor.getString(cursor.getColumnIndex(RadioSQLContract.Columns.COLUMN_IS_PREFERRED)));
+    isPreferred =
+      (cursor.getInt(cursor.getColumnIndex(RadioSQLContract.Columns.COLUMN_IS_PREFERRED)) != 0);
   }
 
   public Radio(@NonNull String string) throws MalformedURLException {
@@ -177,31 +185,6 @@ public class Radio {
       toBitmap(strings[4]));
   }
 
-  // First URL if m3u, else do nothing
-  @Nullable
-  public static URL getUrlFromM3u(@NonNull URL uRL) {
-    if (!uRL.toString().endsWith(".m3u")) {
-      return uRL;
-    }
-    HttpURLConnection httpURLConnection = null;
-    try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
-      (httpURLConnection = new RadioURL(uRL).getActualHttpURLConnection()).getInputStream()))) {
-      String result;
-      while ((result = bufferedReader.readLine()) != null) {
-        if (result.startsWith("http://") || result.startsWith("https://")) {
-          return new URL(result);
-        }
-      }
-    } catch (IOException iOException) {
-      Log.e(LOG_TAG, "Error getting M3U", iOException);
-    } finally {
-      if (httpURLConnection != null) {
-        httpURLConnection.disconnect();
-      }
-    }
-    return null;
-  }
-
   @NonNull
   private static String marshall(@NonNull String string) {
     return string + SPACER;
@@ -227,11 +210,6 @@ public class Radio {
     return BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length);
   }
 
-  @Nullable
-  public URL getUrlFromM3u() {
-    return getUrlFromM3u(url);
-  }
-
   @NonNull
   public Long getId() {
     return id;
@@ -342,7 +320,7 @@ public class Radio {
     contentValues.put(RadioSQLContract.Columns.COLUMN_WEB_PAGE,
       (webPageUrl == null) ? null : webPageUrl.toString());
     contentValues.put(RadioSQLContract.Columns.COLUMN_QUALITY, quality.toString());
-    contentValues.put(RadioSQLContract.Columns.COLUMN_IS_PREFERRED, isPreferred.toString());
+    contentValues.put(RadioSQLContract.Columns.COLUMN_IS_PREFERRED, isPreferred ? 1 : 0);
     return contentValues;
   }
 
@@ -386,8 +364,12 @@ public class Radio {
     //.putLong(MediaMetadataCompat.METADATA_KEY_YEAR, Long.valueOf(simpleDateFormat.format(Calendar.getInstance().getTime())))
   }
 
+  // False if no icon, e.g. not decoded on import
   public boolean storeIcon(@NonNull Context context) {
-    assert icon != null;
+    if (icon == null) {
+      Log.e(LOG_TAG, "storeIcon: no icon for " + name);
+      return false;
+    }
     try {
       iconFile = storeToFile(context, icon, id.toString());
     } catch (FileNotFoundException fileNotFoundException) {
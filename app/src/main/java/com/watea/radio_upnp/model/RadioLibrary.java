@@ -24,13 +24,21 @@
 package com.watea.radio_upnp.model;
 
 import static com.watea.radio_upnp.model.RadioSQLContract.SQL_CREATE_ENTRIES;
+import static com.watea.radio_upnp.model.RadioSQLContract.SQL_CREATE_POSITION_INDEX;
+import static com.watea.radio_upnp.model.RadioSQLContract.SQL_CREATE_PREFERRED_INDEX;
 import static com.watea.radio_upnp.model.RadioSQLContract.SQL_DELETE_ENTRIES;
+import static com.watea.radio_upnp.model.RadioSQLContract.SQL_MIGRATE_1_TO_2;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.util.Log;
@@ -38,18 +46,40 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.net.MalformedURLException;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class RadioLibrary {
   private static final String LOG_TAG = RadioLibrary.class.getName();
   private static final String SPACER = "#";
+  // Icon decoding and storage on import
+  private static final int IMPORT_THREADS = Runtime.getRuntime().availableProcessors();
+  // Radios read from database, by ID; one instance per radio.
+  // Shared as all libraries use the same database. Kept up to date on write.
+  private static final Map<Long, Radio> RADIOS = new ConcurrentHashMap<>();
   private final List<Listener> listeners = new Vector<>();
+  private final Handler handler = new Handler(Looper.getMainLooper());
   @NonNull
   private final SQLiteDatabase radioDataBase;
   @NonNull
   private final Context context;
+  // Precompiled statements for frequent accesses; not thread safe, used under own lock
+  @NonNull
+  private final SQLiteStatement maxPositionStatement;
+  @NonNull
+  private final SQLiteStatement positionStatement;
+  @NonNull
+  private final SQLiteStatement updatePositionStatement;
+  @NonNull
+  private final SQLiteStatement updatePreferredStatement;
+  @NonNull
+  private final SQLiteStatement updateIconStatement;
   // Current managed radio
   @Nullable
   private Long currentRadioId;
@@ -57,13 +87,79 @@ public class RadioLibrary {
   public RadioLibrary(@NonNull Context context) {
     this.context = context;
     radioDataBase = new RadioDbSQLHelper(this.context).getWritableDatabase();
+    maxPositionStatement = radioDataBase.compileStatement(
+      "SELECT MAX(" + RadioSQLContract.Columns.COLUMN_POSITION + ") FROM " +
+        RadioSQLContract.Columns.TABLE_RADIO);
+    positionStatement = radioDataBase.compileStatement(
+      "SELECT " + RadioSQLContract.Columns.COLUMN_POSITION + " FROM " +
+        RadioSQLContract.Columns.TABLE_RADIO + " WHERE " + RadioSQLContract.Columns._ID + " = ?");
+    updatePositionStatement = radioDataBase.compileStatement(getUpdateStatement(
+      RadioSQLContract.Columns.COLUMN_POSITION));
+    updatePreferredStatement = radioDataBase.compileStatement(getUpdateStatement(
+      RadioSQLContract.Columns.COLUMN_IS_PREFERRED));
+    updateIconStatement = radioDataBase.compileStatement(getUpdateStatement(
+      RadioSQLContract.Columns.COLUMN_ICON));
+  }
+
+  // Symmetrical from marshall(); icons are decoded in parallel.
+  // Malformed radios are skipped. Long operation, shall be called off main thread.
+  @NonNull
+  public static List<Radio> parse(@NonNull String importString) {
+    final List<Radio> radios = new Vector<>();
+    if (importString.isEmpty()) {
+      return radios;
+    }
+    final ExecutorService executorService = Executors.newFixedThreadPool(IMPORT_THREADS);
+    try {
+      final List<Future<Radio>> futures = new Vector<>();
+      for (String radioString : importString.split(SPACER)) {
+        futures.add(executorService.submit(() -> new Radio(radioString)));
+      }
+      for (Future<Radio> future : futures) {
+        try {
+          radios.add(future.get());
+        } catch (ExecutionException executionException) {
+          Log.e(LOG_TAG, "parse: a radio failed to be imported", executionException.getCause());
+        }
+      }
+    } catch (InterruptedException interruptedException) {
+      Log.e(LOG_TAG, "parse: interrupted, nothing imported");
+      Thread.currentThread().interrupt();
+      radios.clear();
+    } finally {
+      executorService.shutdown();
+    }
+    return radios;
+  }
+
+  // Binding: value then radio ID
+  @NonNull
+  private static String getUpdateStatement(@NonNull String column) {
+    return "UPDATE " + RadioSQLContract.Columns.TABLE_RADIO + " SET " + column + " = ? WHERE " +
+      RadioSQLContract.Columns._ID + " = ?";
+  }
+
+  // Future from Radio.storeIcon(); a failure only concerns its radio
+  private static boolean isStored(@NonNull Future<Boolean> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException executionException) {
+      Log.e(LOG_TAG, "isStored: icon storage failed", executionException.getCause());
+      return false;
+    }
   }
 
   public boolean isCurrentRadio(@NonNull Radio radio) {
     return radio.getId().equals(currentRadioId);
   }
 
-  public void close() {
+  // Waits for a running import
+  public synchronized void close() {
+    maxPositionStatement.close();
+    positionStatement.close();
+    updatePositionStatement.close();
+    updatePreferredStatement.close();
+    updateIconStatement.close();
     radioDataBase.close();
   }
 
@@ -72,7 +168,7 @@ public class RadioLibrary {
   }
 
   public boolean updateFrom(@NonNull Long radioId, @NonNull ContentValues values) {
-    return (radioDataBase.update(
+    final boolean result = (radioDataBase.update(
       // The table to query
       RadioSQLContract.Columns.TABLE_RADIO,
       // Values for columns
@@ -81,10 +177,22 @@ public class RadioLibrary {
       RadioSQLContract.Columns._ID + " = ?",
       // The values for the WHERE clause
       new String[]{radioId.toString()}) > 0);
+    // Cached radio is replaced by a fresh instance, read back from database
+    reload(radioId);
+    return result;
   }
 
+  // Database is only read on first access.
+  // Returned radio is shared and shall not be modified: modify a copy, then call updateFrom().
   @Nullable
   public Radio getFrom(@NonNull Long radioId) {
+    final Radio radio = RADIOS.get(radioId);
+    return (radio == null) ? reload(radioId) : radio;
+  }
+
+  // Cache is set from database
+  @Nullable
+  private Radio reload(@NonNull Long radioId) {
     Cursor cursor = radioDataBase.query(
       // The table to query
       RadioSQLContract.Columns.TABLE_RADIO,
@@ -102,33 +210,28 @@ public class RadioLibrary {
       null);
     Radio radio = cursor.moveToNext() ? new Radio(cursor) : null;
     cursor.close();
+    if (radio == null) {
+      RADIOS.remove(radioId);
+    } else {
+      RADIOS.put(radioId, radio);
+    }
     return radio;
   }
 
+  // 0 if not found
   public int getPositionFrom(@NonNull Long radioId) {
-    Cursor cursor = radioDataBase.query(
-      // The table to query
-      RadioSQLContract.Columns.TABLE_RADIO,
-      // The columns to return
-      new String[]{RadioSQLContract.Columns.COLUMN_POSITION},
-      // The columns for the WHERE clause
-      RadioSQLContract.Columns._ID + " = ?",
-      // The values for the WHERE clause
-      new String[]{radioId.toString()},
-      // don't group the rows
-      null,
-      // don't filter by row groups
-      null,
-      // The sort order
-      null);
-    int columnIndex = cursor.getColumnIndex(RadioSQLContract.Columns.COLUMN_POSITION);
-    assert columnIndex >= 0;
-    int position = cursor.moveToNext() ? cursor.getInt(columnIndex) : 0;
-    cursor.close();
-    return position;
+    synchronized (positionStatement) {
+      positionStatement.bindLong(1, radioId);
+      try {
+        return (int) positionStatement.simpleQueryForLong();
+      } catch (SQLiteDoneException sQLiteDoneException) {
+        return 0;
+      }
+    }
   }
 
   public boolean deleteFrom(@NonNull Long radioId) {
+    RADIOS.remove(radioId);
     return (radioDataBase.delete(
       // The table to query
       RadioSQLContract.Columns.TABLE_RADIO,
@@ -148,7 +251,8 @@ public class RadioLibrary {
     return cursorToIdListAndClose(preferredIdsQuery());
   }
 
-  // Add a radio and store according icon
+  // Add a radio and store according icon.
+  // Radio is not cached, as it holds its icon; it is read back on first access.
   public boolean add(@NonNull Radio radio) {
     ContentValues contentValues = radio.toContentValues();
     // Position = last
@@ -169,22 +273,45 @@ public class RadioLibrary {
   }
 
   @NonNull
-  public List<MediaBrowserCompat.MediaItem> getMediaItems() throws RuntimeException {
+  public List<MediaBrowserCompat.MediaItem> getMediaItems() {
     List<MediaBrowserCompat.MediaItem> result = new Vector<>();
-    Cursor cursor = allIdsQuery();
-    int idColumnIndex = cursor.getColumnIndexOrThrow(RadioSQLContract.Columns._ID);
-    while (cursor.moveToNext()) {
-      Radio radio = getFrom(cursor.getLong(idColumnIndex));
-      if (radio == null) {
-        Log.e(LOG_TAG, "getMediaItems: internal failure");
-        throw new RuntimeException();
+    forEach(radio -> result.add(new MediaBrowserCompat.MediaItem(
+      radio.getMediaMetadataBuilder().build().getDescription(),
+      MediaBrowserCompat.MediaItem.FLAG_PLAYABLE)));
+    return result;
+  }
+
+  // All radios in position order, read in one query.
+  // Cached radios are used as is, others are cached on the way.
+  public void forEach(@NonNull Consumer<Radio> consumer) {
+    Cursor cursor = radioDataBase.query(
+      // The table to query
+      RadioSQLContract.Columns.TABLE_RADIO,
+      // The columns to return
+      null,
+      // The columns for the WHERE clause
+      null,
+      // The values for the WHERE clause
+      null,
+      // don't group the rows
+      null,
+      // don't filter by row groups
+      null,
+      // The sort order
+      RadioSQLContract.Columns.COLUMN_POSITION + " ASC");
+    try {
+      int idColumnIndex = cursor.getColumnIndexOrThrow(RadioSQLContract.Columns._ID);
+      while (cursor.moveToNext()) {
+        Radio radio = RADIOS.get(cursor.getLong(idColumnIndex));
+        if (radio == null) {
+          radio = new Radio(cursor);
+          RADIOS.put(radio.getId(), radio);
+        }
+        consumer.accept(radio);
       }
-      result.add(new MediaBrowserCompat.MediaItem(
-        radio.getMediaMetadataBuilder().build().getDescription(),
-        MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+    } finally {
+      cursor.close();
     }
-    cursor.close();
-    return result;
   }
 
   @Nullable
@@ -196,10 +323,8 @@ public class RadioLibrary {
   }
 
   public boolean setPreferred(@NonNull Long radioId, @NonNull Boolean isPreferred) {
-    ContentValues values = new ContentValues();
-    values.put(RadioSQLContract.Columns.COLUMN_IS_PREFERRED, isPreferred.toString());
-    if (updateFrom(radioId, values)) {
-      Radio radio = getFrom(radioId);
+    if (update(updatePreferredStatement, radioId, isPreferred ? 1 : 0)) {
+      Radio radio = reload(radioId);
       assert radio != null;
       tellListeners(listener -> listener.onPreferredChange(radio));
       return true;
@@ -207,10 +332,12 @@ public class RadioLibrary {
     return false;
   }
 
+  // Position is not cached
   public boolean move(@NonNull Long fromRadioId, @NonNull Long toRadioId) {
-    ContentValues fromPosition = positionContentValuesOf(fromRadioId);
-    ContentValues toPosition = positionContentValuesOf(toRadioId);
-    return updateFrom(fromRadioId, toPosition) && updateFrom(toRadioId, fromPosition);
+    int fromPosition = getPositionFrom(fromRadioId);
+    int toPosition = getPositionFrom(toRadioId);
+    return update(updatePositionStatement, fromRadioId, toPosition) &&
+      update(updatePositionStatement, toRadioId, fromPosition);
   }
 
   public void addListener(@NonNull Listener listener) {
@@ -236,39 +363,84 @@ public class RadioLibrary {
   @NonNull
   public String marshall(boolean textOnly) {
     StringBuilder result = new StringBuilder().append(textOnly ? Radio.MARSHALL_HEAD + "\n" : "");
-    for (Long id : getAllRadioIds()) {
-      Radio radio = getFrom(id);
-      assert radio != null;
-      result.append(radio.marshall(textOnly)).append(textOnly ? "\n" : SPACER);
-    }
+    forEach(radio -> result.append(radio.marshall(textOnly)).append(textOnly ? "\n" : SPACER));
     return result.toString();
   }
 
-  // Symmetrical from export().
+  // Radios from parse() are added at the end of the list, in one transaction.
+  // Icon files are written concurrently; a radio which icon can not be stored is not added.
   // Returns true if some radios have been imported.
-  public boolean importFrom(@NonNull String importString) {
-    boolean result = false;
-    if (!importString.isEmpty()) {
-      for (String radioString : importString.split(SPACER)) {
-        try {
-          result = add(new Radio(radioString)) || result;
-        } catch (MalformedURLException malformedURLException) {
-          Log.e(LOG_TAG, "importFrom: a radio failed to be imported", malformedURLException);
+  // Long operation, shall be called off main thread; listeners are told on main thread.
+  public synchronized boolean importFrom(@NonNull List<Radio> radios) {
+    if (!isOpen()) {
+      return false;
+    }
+    final List<Radio> importedRadios = new Vector<>();
+    final ExecutorService executorService = Executors.newFixedThreadPool(IMPORT_THREADS);
+    radioDataBase.beginTransaction();
+    try {
+      // Positions are set up front, icon file name is radio ID
+      int position = getMaxPosition();
+      for (Radio radio : radios) {
+        ContentValues contentValues = radio.toContentValues();
+        contentValues.put(RadioSQLContract.Columns.COLUMN_POSITION, ++position);
+        radio.setId(radioDataBase.insertOrThrow(
+          RadioSQLContract.Columns.TABLE_RADIO, null, contentValues));
+      }
+      final List<Future<Boolean>> futures = new Vector<>();
+      for (Radio radio : radios) {
+        futures.add(executorService.submit(() -> radio.storeIcon(context)));
+      }
+      for (int i = 0; i < radios.size(); i++) {
+        final Radio radio = radios.get(i);
+        if (isStored(futures.get(i))) {
+          synchronized (updateIconStatement) {
+            updateIconStatement.bindString(1, radio.getIconFile().getPath());
+            updateIconStatement.bindLong(2, radio.getId());
+            updateIconStatement.executeUpdateDelete();
+          }
+          importedRadios.add(radio);
+        } else {
+          Log.e(LOG_TAG, "importFrom: icon not stored for " + radio.getName());
+          deleteFrom(radio.getId());
         }
       }
-      if (result) {
-        tellListeners(Listener::onRefresh);
+      radioDataBase.setTransactionSuccessful();
+    } catch (SQLException | InterruptedException exception) {
+      Log.e(LOG_TAG, "importFrom: import failed, nothing imported", exception);
+      if (exception instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      importedRadios.clear();
+      // Rows are rolled back, icon files shall be too
+      for (Radio radio : radios) {
+        if (radio.getIconFile().isFile() && !radio.getIconFile().delete()) {
+          Log.w(LOG_TAG, "importFrom: icon file not deleted for " + radio.getName());
+        }
       }
+    } finally {
+      executorService.shutdown();
+      radioDataBase.endTransaction();
     }
-    return result;
+    if (importedRadios.isEmpty()) {
+      return false;
+    }
+    // Library may have been closed meanwhile
+    handler.post(() -> {
+      if (isOpen()) {
+        tellListeners(Listener::onRefresh);
+      }
+    });
+    return true;
   }
 
-  // Utility for database update of radio position
-  @NonNull
-  private ContentValues positionContentValuesOf(@NonNull Long radioId) {
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(RadioSQLContract.Columns.COLUMN_POSITION, getPositionFrom(radioId));
-    return contentValues;
+  // Statement from getUpdateStatement()
+  private boolean update(@NonNull SQLiteStatement statement, @NonNull Long radioId, long value) {
+    synchronized (statement) {
+      statement.bindLong(1, value);
+      statement.bindLong(2, radioId);
+      return (statement.executeUpdateDelete() > 0);
+    }
   }
 
   @NonNull
@@ -309,9 +481,9 @@ public class RadioLibrary {
       // The columns to return
       new String[]{RadioSQLContract.Columns._ID},
       // The columns for the WHERE clause
-      RadioSQLContract.Columns.COLUMN_IS_PREFERRED + " = ?",
+      RadioSQLContract.Columns.COLUMN_IS_PREFERRED + " = 1",
       // The values for the WHERE clause
-      new String[]{Boolean.toString(true)},
+      null,
       // don't group the rows
       null,
       // don't filter by row groups
@@ -320,28 +492,11 @@ public class RadioLibrary {
       RadioSQLContract.Columns.COLUMN_POSITION + " ASC");
   }
 
+  // 0 if no radio
   private int getMaxPosition() {
-    String maxPosition = "MAX(" + RadioSQLContract.Columns.COLUMN_POSITION + ")";
-    Cursor cursor = radioDataBase.query(
-      // The table to query
-      RadioSQLContract.Columns.TABLE_RADIO,
-      // The columns to return
-      new String[]{maxPosition},
-      // The columns for the WHERE clause
-      null,
-      // The values for the WHERE clause
-      null,
-      // don't group the rows
-      null,
-      // don't filter by row groups
-      null,
-      // The sort order
-      null);
-    int columnIndex = cursor.getColumnIndex(maxPosition);
-    assert columnIndex >= 0;
-    int position = cursor.moveToNext() ? cursor.getInt(columnIndex) : 0;
-    cursor.close();
-    return position;
+    synchronized (maxPositionStatement) {
+      return (int) maxPositionStatement.simpleQueryForLong();
+    }
   }
 
   private void tellListeners(@NonNull Consumer<Listener> consumer) {
@@ -362,7 +517,7 @@ public class RadioLibrary {
   }
 
   private static class RadioDbSQLHelper extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "Radio.db";
 
     private RadioDbSQLHelper(@NonNull Context context) {
@@ -371,16 +526,24 @@ public class RadioLibrary {
 
     public void onCreate(@NonNull SQLiteDatabase db) {
       db.execSQL(SQL_CREATE_ENTRIES);
+      db.execSQL(SQL_CREATE_POSITION_INDEX);
+      db.execSQL(SQL_CREATE_PREFERRED_INDEX);
     }
 
+    // Migrations are chained from old version; run in a transaction by SQLiteOpenHelper
     public void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
-      // No version management
-      db.execSQL(SQL_DELETE_ENTRIES);
-      onCreate(db);
+      Log.i(LOG_TAG, "Database upgrade: " + oldVersion + " => " + newVersion);
+      if (oldVersion < 2) {
+        for (String sql : SQL_MIGRATE_1_TO_2) {
+          db.execSQL(sql);
+        }
+      }
     }
 
+    // Unknown schema: no data kept
     public void onDowngrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
-      onUpgrade(db, oldVersion, newVersion);
+      db.execSQL(SQL_DELETE_ENTRIES);
+      onCreate(db);
     }
   }
 }
\ No newline at end of file
@@ -36,9 +36,36 @@ public final class RadioSQLContract {
       Columns.COLUMN_URL + " TEXT," +
       Columns.COLUMN_WEB_PAGE + " TEXT," +
       Columns.COLUMN_QUALITY + " TEXT," +
-      Columns.COLUMN_IS_PREFERRED + " TEXT," +
+      Columns.COLUMN_IS_PREFERRED + " INTEGER," +
       Columns.COLUMN_POSITION + " INTEGER)";
   static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + Columns.TABLE_RADIO;
+  // Version 2: indexes for sort and preferred filter
+  static final String SQL_CREATE_POSITION_INDEX =
+    "CREATE INDEX IF NOT EXISTS " + Columns.INDEX_POSITION + " ON " + Columns.TABLE_RADIO +
+      " (" + Columns.COLUMN_POSITION + ")";
+  static final String SQL_CREATE_PREFERRED_INDEX =
+    "CREATE INDEX IF NOT EXISTS " + Columns.INDEX_PREFERRED + " ON " + Columns.TABLE_RADIO +
+      " (" + Columns.COLUMN_IS_PREFERRED + ", " + Columns.COLUMN_POSITION + ")";
+  // Version 2: isPreferred from TEXT "true"/"false" to INTEGER 1/0.
+  // SQLite can not change column type, table is rebuilt.
+  static final String[] SQL_MIGRATE_1_TO_2 = {
+    "ALTER TABLE " + Columns.TABLE_RADIO + " RENAME TO " + Columns.TABLE_RADIO_V1,
+    SQL_CREATE_ENTRIES,
+    "INSERT INTO " + Columns.TABLE_RADIO + " SELECT " +
+      Columns._ID + ", " +
+      Columns.COLUMN_NAME + ", " +
+      Columns.COLUMN_ICON + ", " +
+      Columns.COLUMN_TYPE + ", " +
+      Columns.COLUMN_LANGUAGE + ", " +
+      Columns.COLUMN_URL + ", " +
+      Columns.COLUMN_WEB_PAGE + ", " +
+      Columns.COLUMN_QUALITY + ", " +
+      "CASE " + Columns.COLUMN_IS_PREFERRED + " WHEN 'true' THEN 1 ELSE 0 END, " +
+      Columns.COLUMN_POSITION +
+      " FROM " + Columns.TABLE_RADIO_V1,
+    "DROP TABLE " + Columns.TABLE_RADIO_V1,
+    SQL_CREATE_POSITION_INDEX,
+    SQL_CREATE_PREFERRED_INDEX};
 
   // To prevent someone from accidentally instantiating the contract class
   private RadioSQLContract() {
@@ -55,5 +82,8 @@ public final class RadioSQLContract {
     public static final String COLUMN_QUALITY = "quality";
     public static final String COLUMN_IS_PREFERRED = "isPreferred";
     public static final String COLUMN_POSITION = "position";
+    public static final String INDEX_POSITION = "radio_position";
+    public static final String INDEX_PREFERRED = "radio_preferred_position";
+    private static final String TABLE_RADIO_V1 = "radio_v1";
   }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import androidx.annotation.Nullable;
+
+// MP3 (MPEG audio) and AAC ADTS frame headers.
+// Both start with a sync word; MPEG layer bits are never 00, ADTS ones always are.
+public class AudioFrames {
+  public static final int HEADER_SIZE = 7; // ADTS, MPEG needs 4
+  private static final int[] MPEG_SAMPLE_RATES = {44100, 48000, 32000}; // MPEG 1
+  // kbit/s, per bitrate index 1 to 14
+  private static final int[] MPEG1_LAYER1_RATES =
+    {32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448};
+  private static final int[] MPEG1_LAYER2_RATES =
+    {32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384};
+  private static final int[] MPEG1_LAYER3_RATES =
+    {32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+  private static final int[] MPEG2_LAYER1_RATES =
+    {32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256};
+  private static final int[] MPEG2_LAYER23_RATES =
+    {8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+  private static final int[] ADTS_SAMPLE_RATES =
+    {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+  private static final int ADTS_SAMPLES = 1024; // per raw data block
+
+  private AudioFrames() {
+  }
+
+  // True if MIME type is handled here
+  public static boolean isFramed(@Nullable String contentType) {
+    return (contentType != null) &&
+      (contentType.equals("audio/mpeg") || contentType.equals("audio/mp3") ||
+        contentType.equals("audio/x-mpeg") || contentType.equals("audio/aac") ||
+        contentType.equals("audio/aacp") || contentType.equals("audio/x-aac"));
+  }
+
+  // Frame length in bytes of header at index, 0 if none.
+  // At least HEADER_SIZE bytes shall be available from index.
+  public static int getFrameLength(byte[] buffer, int index) {
+    if (((buffer[index] & 0xFF) != 0xFF) || ((buffer[index + 1] & 0xE0) != 0xE0)) {
+      return 0;
+    }
+    return ((buffer[index + 1] & 0x06) == 0) ?
+      getAdtsFrameLength(buffer, index) : getMpegFrameLength(buffer, index);
+  }
+
+  // Following methods expect a valid header at index
+
+  public static boolean isAdts(byte[] buffer, int index) {
+    return ((buffer[index + 1] & 0x06) == 0);
+  }
+
+  // 1 to 3 for MPEG
+  public static int getLayer(byte[] buffer, int index) {
+    return 4 - ((buffer[index + 1] >> 1) & 0x03);
+  }
+
+  // Hz
+  public static int getSampleRate(byte[] buffer, int index) {
+    return isAdts(buffer, index) ?
+      ADTS_SAMPLE_RATES[(buffer[index + 2] >> 2) & 0x0F] :
+      getMpegSampleRate(getMpegVersion(buffer, index), (buffer[index + 2] >> 2) & 0x03);
+  }
+
+  // Samples per channel in frame
+  public static int getSamples(byte[] buffer, int index) {
+    if (isAdts(buffer, index)) {
+      return ADTS_SAMPLES * ((buffer[index + 6] & 0x03) + 1);
+    }
+    switch (getLayer(buffer, index)) {
+      case 1:
+        return 384;
+      case 2:
+        return 1152;
+      default:
+        return (getMpegVersion(buffer, index) == 3) ? 1152 : 576;
+    }
+  }
+
+  // Index of first frame header, confirmed by next header if within range; -1 if none
+  public static int findFrame(byte[] buffer, int offset, int length) {
+    final int end = offset + length;
+    for (int index = offset; index + HEADER_SIZE <= end; index++) {
+      final int frameLength = getFrameLength(buffer, index);
+      if ((frameLength > 0) &&
+        ((index + frameLength + HEADER_SIZE > end) ||
+          (getFrameLength(buffer, index + frameLength) > 0))) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  // 12 bits sync, layer 00
+  private static int getAdtsFrameLength(byte[] buffer, int index) {
+    if (((buffer[index + 1] & 0xF6) != 0xF0) ||
+      (((buffer[index + 2] >> 2) & 0x0F) >= ADTS_SAMPLE_RATES.length)) {
+      return 0;
+    }
+    final int frameLength = ((buffer[index + 3] & 0x03) << 11) |
+      ((buffer[index + 4] & 0xFF) << 3) | ((buffer[index + 5] & 0xE0) >> 5);
+    return (frameLength < HEADER_SIZE) ? 0 : frameLength;
+  }
+
+  // 11 bits sync
+  private static int getMpegFrameLength(byte[] buffer, int index) {
+    final int version = getMpegVersion(buffer, index);
+    final int layer = getLayer(buffer, index);
+    final int bitrateIndex = (buffer[index + 2] >> 4) & 0x0F;
+    final int sampleRateIndex = (buffer[index + 2] >> 2) & 0x03;
+    // Free format not supported
+    if ((version == 1) || (bitrateIndex == 0) || (bitrateIndex == 15) || (sampleRateIndex == 3)) {
+      return 0;
+    }
+    final int padding = (buffer[index + 2] >> 1) & 0x01;
+    final int bitrate = getMpegBitrate(version, layer, bitrateIndex) * 1000;
+    final int sampleRate = getMpegSampleRate(version, sampleRateIndex);
+    switch (layer) {
+      case 1:
+        return (12 * bitrate / sampleRate + padding) * 4;
+      case 2:
+        return 144 * bitrate / sampleRate + padding;
+      default:
+        return ((version == 3) ? 144 : 72) * bitrate / sampleRate + padding;
+    }
+  }
+
+  // 0: 2.5, 1: reserved, 2: 2, 3: 1
+  private static int getMpegVersion(byte[] buffer, int index) {
+    return (buffer[index + 1] >> 3) & 0x03;
+  }
+
+  private static int getMpegSampleRate(int version, int sampleRateIndex) {
+    return MPEG_SAMPLE_RATES[sampleRateIndex] >> ((version == 3) ? 0 : (version == 2) ? 1 : 2);
+  }
+
+  // kbit/s
+  private static int getMpegBitrate(int version, int layer, int bitrateIndex) {
+    final int[] rates = (version == 3) ?
+      ((layer == 1) ? MPEG1_LAYER1_RATES : (layer == 2) ? MPEG1_LAYER2_RATES : MPEG1_LAYER3_RATES) :
+      ((layer == 1) ? MPEG2_LAYER1_RATES : MPEG2_LAYER23_RATES);
+    return rates[bitrateIndex - 1];
+  }
+}
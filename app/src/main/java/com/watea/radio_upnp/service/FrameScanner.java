@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+// Follows MP3/AAC ADTS frames of a stream, as data goes by; data is neither copied nor
+// allocated, only frame headers are read.
+// Measures actual bitrate over a few seconds of audio, and records recent frame boundaries.
+// Not thread safe.
+public class FrameScanner {
+  private static final int BOUNDARIES = 512; // power of 2
+  private static final int WINDOW = 5; // s of audio, for bitrate measure
+  private static final int BITRATE_TOLERANCE = 10; // % of reported bitrate
+  private final byte[] header = new byte[AudioFrames.HEADER_SIZE];
+  // Stream positions of last frames, as a ring
+  private final long[] boundaries = new long[BOUNDARIES];
+  private long boundaryCount = 0;
+  // Header bytes collected so far
+  private int headerSize = 0;
+  private long headerPosition = 0;
+  // Bytes of current frame not yet scanned
+  private int frameRemaining = 0;
+  private boolean isSynced = false;
+  private boolean isAdts = false;
+  private int layer = 0;
+  private int sampleRate = 0;
+  private long windowBytes = 0;
+  private long windowSamples = 0;
+  private int bitrate = 0; // kbit/s
+  private boolean hasChanged = false;
+
+  // Data at given stream position follows previous data
+  public void scan(@NonNull byte[] buffer, int offset, int length, long position) {
+    final int end = offset + length;
+    int index = offset;
+    while (index < end) {
+      if (frameRemaining > 0) {
+        final int skipped = Math.min(frameRemaining, end - index);
+        frameRemaining -= skipped;
+        index += skipped;
+        continue;
+      }
+      if (headerSize == 0) {
+        // Look for sync, if lost
+        if (!isSynced) {
+          while ((index < end) && (buffer[index] != (byte) 0xFF)) {
+            index++;
+          }
+          if (index == end) {
+            break;
+          }
+        }
+        headerPosition = position + index - offset;
+      }
+      header[headerSize++] = buffer[index++];
+      if (headerSize == header.length) {
+        onHeader();
+      }
+    }
+  }
+
+  // Data no more follows previous data
+  public void reset() {
+    headerSize = 0;
+    frameRemaining = 0;
+    isSynced = false;
+  }
+
+  // First recorded frame boundary at or after given position, -1 if none
+  public long getFrameStart(long position) {
+    final long first = Math.max(0, boundaryCount - BOUNDARIES);
+    for (long i = first; i < boundaryCount; i++) {
+      final long boundary = boundaries[(int) (i & (BOUNDARIES - 1))];
+      if (boundary >= position) {
+        return boundary;
+      }
+    }
+    return -1;
+  }
+
+  // kbit/s, 0 if not yet measured
+  public int getBitrate() {
+    return bitrate;
+  }
+
+  // Codec and sample rate, such as "MP3 44.1 kHz"; empty if not yet found
+  @NonNull
+  public String getFormat() {
+    return (sampleRate == 0) ? "" : String.format(
+      Locale.US, "%s %s kHz", isAdts ? "AAC" : "MP" + layer, sampleRate / 1000.0)
+      .replace(".0 ", " ");
+  }
+
+  // True if format or bitrate (beyond tolerance) changed since last call
+  public boolean hasChanged() {
+    final boolean result = hasChanged;
+    hasChanged = false;
+    return result;
+  }
+
+  private void onHeader() {
+    final int frameLength = AudioFrames.getFrameLength(header, 0);
+    if (frameLength == 0) {
+      // Sync lost; search again from next candidate in header
+      isSynced = false;
+      int shift = 1;
+      while ((shift < header.length) && (header[shift] != (byte) 0xFF)) {
+        shift++;
+      }
+      System.arraycopy(header, shift, header, 0, header.length - shift);
+      headerSize = header.length - shift;
+      headerPosition += shift;
+      return;
+    }
+    isSynced = true;
+    headerSize = 0;
+    frameRemaining = Math.max(0, frameLength - header.length);
+    boundaries[(int) (boundaryCount++ & (BOUNDARIES - 1))] = headerPosition;
+    // Format
+    final boolean newIsAdts = AudioFrames.isAdts(header, 0);
+    final int newLayer = newIsAdts ? 0 : AudioFrames.getLayer(header, 0);
+    final int newSampleRate = AudioFrames.getSampleRate(header, 0);
+    if ((newIsAdts != isAdts) || (newLayer != layer) || (newSampleRate != sampleRate)) {
+      isAdts = newIsAdts;
+      layer = newLayer;
+      sampleRate = newSampleRate;
+      windowBytes = 0;
+      windowSamples = 0;
+      hasChanged = true;
+    }
+    // Bitrate, averaged over window
+    windowBytes += frameLength;
+    windowSamples += AudioFrames.getSamples(header, 0);
+    if (windowSamples >= (long) WINDOW * sampleRate) {
+      final int newBitrate =
+        (int) Math.round(windowBytes * 8.0 * sampleRate / windowSamples / 1000);
+      // VBR: measured bitrate moves at each window, only significant changes are reported
+      if (Math.abs(newBitrate - bitrate) * 100 > bitrate * BITRATE_TOLERANCE) {
+        bitrate = newBitrate;
+        hasChanged = true;
+      }
+      windowBytes = 0;
+      windowSamples = 0;
+    }
+  }
+}
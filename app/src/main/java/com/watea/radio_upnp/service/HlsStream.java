@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// HLS live stream read as one continuous audio stream.
+// Media playlist is refreshed in background; segments are fetched in parallel, at most
+// CACHE_SEGMENTS ahead of reader, and read in order.
+// MPEG-TS segments are demuxed to their audio elementary stream (AAC ADTS or MP3),
+// packed audio segments are stripped of their ID3 tags.
+// Not supported: encrypted streams, fragmented MP4 segments.
+public class HlsStream extends InputStream {
+  private static final String LOG_TAG = HlsStream.class.getName();
+  private static final int FETCHERS = 2;
+  // Fetched or being fetched, ahead of reader
+  private static final int CACHE_SEGMENTS = 3;
+  private static final int SEGMENT_SIZE_MAX = 1024 * 1024;
+  // Live start, from playlist end
+  private static final int LIVE_EDGE_SEGMENTS = 3;
+  private static final int LINES_MAX = 4096;
+  private static final int REFRESH_TRIES = 3;
+  private static final int REFRESH_RETRY_DELAY = 1000; // ms
+  // Variant choice
+  private static final int BANDWIDTH_MAX = 320000; // bit/s
+  private static final int TS_PACKET_SIZE = 188;
+  private static final byte TS_SYNC = 0x47;
+  private static final String[] CONTENT_TYPES = {
+    "application/vnd.apple.mpegurl",
+    "application/x-mpegurl",
+    "audio/mpegurl",
+    "audio/x-mpegurl"};
+  @Nullable
+  private final RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer;
+  private final ExecutorService executorService = Executors.newFixedThreadPool(FETCHERS);
+  // In read order; guarded by this
+  private final Queue<Segment> segments = new LinkedList<>();
+  @NonNull
+  private final URL playlistURL;
+  @NonNull
+  private final String contentType;
+  // Next media sequence number to fetch, -1 if none yet
+  private long nextSequence = -1;
+  private boolean isEnded = false;
+  private boolean isClosed = false;
+  @Nullable
+  private IOException failure = null;
+  // Segment being read
+  @Nullable
+  private Segment segment = null;
+  private int segmentIndex = 0;
+
+  // Blocking until first segment is fetched
+  public HlsStream(
+    @NonNull URL uRL,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer) throws IOException {
+    this.httpURLConnectionConsumer = httpURLConnectionConsumer;
+    try {
+      playlistURL = getMediaPlaylistURL(uRL);
+      final long delay = refresh();
+      final Segment firstSegment;
+      synchronized (this) {
+        firstSegment = segments.peek();
+        if (firstSegment == null) {
+          throw new IOException("HlsStream: no segment");
+        }
+        while (!firstSegment.isDone) {
+          wait();
+        }
+      }
+      if (firstSegment.contentType == null) {
+        throw new IOException("HlsStream: first segment not available or not supported");
+      }
+      contentType = firstSegment.contentType;
+      Log.d(LOG_TAG, "HLS stream started: " + playlistURL + "; " + contentType);
+      new Thread(() -> refreshLoop(delay)).start();
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new IOException("HlsStream: interrupted");
+    } catch (IOException | RuntimeException exception) {
+      close();
+      throw exception;
+    }
+  }
+
+  // HLS playlist by content type, or by extension
+  public static boolean isHls(@NonNull HttpURLConnection httpURLConnection) {
+    String contentType = httpURLConnection.getContentType();
+    contentType = (contentType == null) ?
+      "" : contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+    for (String hlsContentType : CONTENT_TYPES) {
+      if (contentType.equals(hlsContentType)) {
+        return true;
+      }
+    }
+    return httpURLConnection.getURL().getPath().toLowerCase(Locale.ROOT).endsWith(".m3u8");
+  }
+
+  // MIME type of audio elementary stream
+  @NonNull
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] buffer = new byte[1];
+    return (read(buffer, 0, 1) < 0) ? -1 : buffer[0] & 0xFF;
+  }
+
+  // Blocking while next segment is not fetched
+  @Override
+  public synchronized int read(@NonNull byte[] buffer, int offset, int length)
+    throws IOException {
+    try {
+      while ((segment == null) || (segmentIndex == segment.length)) {
+        if (isClosed) {
+          return -1;
+        }
+        final Segment nextSegment = segments.peek();
+        if (nextSegment == null) {
+          if (failure != null) {
+            throw failure;
+          }
+          if (isEnded) {
+            return -1;
+          }
+          wait();
+        } else if (!nextSegment.isDone) {
+          wait();
+        } else {
+          segments.poll();
+          // Room for refresher
+          notifyAll();
+          if (nextSegment.contentType == null) {
+            Log.d(LOG_TAG, "Segment skipped: " + nextSegment.sequence);
+          } else {
+            segment = nextSegment;
+            segmentIndex = 0;
+          }
+        }
+      }
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      throw new IOException("read: interrupted");
+    }
+    assert segment.data != null;
+    final int result = Math.min(length, segment.length - segmentIndex);
+    System.arraycopy(segment.data, segmentIndex, buffer, offset, result);
+    segmentIndex += result;
+    return result;
+  }
+
+  @Override
+  public synchronized void close() {
+    isClosed = true;
+    notifyAll();
+    executorService.shutdownNow();
+  }
+
+  // Variant with highest bandwidth up to BANDWIDTH_MAX, else lowest one
+  @NonNull
+  private URL getMediaPlaylistURL(@NonNull URL uRL) throws IOException {
+    final HttpURLConnection httpURLConnection = connect(uRL);
+    URL result = null;
+    long resultBandwidth = 0;
+    try (BufferedReader reader = new BufferedReader(
+      new InputStreamReader(httpURLConnection.getInputStream(), StandardCharsets.UTF_8))) {
+      long bandwidth = -1;
+      String line;
+      int count = 0;
+      while (((line = reader.readLine()) != null) && (count++ < LINES_MAX)) {
+        line = line.trim();
+        if (line.startsWith("#EXT-X-STREAM-INF:")) {
+          bandwidth = getLongAttribute(line, "BANDWIDTH");
+        } else if ((bandwidth >= 0) && !line.isEmpty() && !line.startsWith("#")) {
+          if ((result == null) ||
+            ((bandwidth <= BANDWIDTH_MAX) ?
+              ((resultBandwidth > BANDWIDTH_MAX) || (bandwidth > resultBandwidth)) :
+              (bandwidth < resultBandwidth))) {
+            result = new URL(httpURLConnection.getURL(), line);
+            resultBandwidth = bandwidth;
+          }
+          bandwidth = -1;
+        }
+      }
+    } finally {
+      httpURLConnection.disconnect();
+    }
+    if (result == null) {
+      // Already a media playlist
+      return httpURLConnection.getURL();
+    }
+    Log.d(LOG_TAG, "HLS variant: " + result + "; bandwidth: " + resultBandwidth);
+    return result;
+  }
+
+  private static long getLongAttribute(@NonNull String line, @NonNull String name) {
+    for (String attribute : line.substring(line.indexOf(':') + 1).split(",")) {
+      final String[] keyValue = attribute.split("=", 2);
+      if ((keyValue.length == 2) && keyValue[0].trim().equals(name)) {
+        try {
+          return Long.parseLong(keyValue[1].trim());
+        } catch (NumberFormatException numberFormatException) {
+          Log.w(LOG_TAG, "Malformed attribute: " + attribute);
+        }
+      }
+    }
+    return 0;
+  }
+
+  @NonNull
+  private HttpURLConnection connect(@NonNull URL uRL) throws IOException {
+    final HttpURLConnection httpURLConnection =
+      new RadioURL(uRL).getActualHttpURLConnection(httpURLConnectionConsumer);
+    final int responseCode = httpURLConnection.getResponseCode();
+    if (responseCode / 100 != 2) {
+      httpURLConnection.disconnect();
+      throw new IOException("HlsStream: connection refused: " + responseCode + " for " + uRL);
+    }
+    return httpURLConnection;
+  }
+
+  private void refreshLoop(long delay) {
+    int failures = 0;
+    while (waitRefresh(delay)) {
+      try {
+        delay = refresh();
+        failures = 0;
+      } catch (IOException iOException) {
+        Log.d(LOG_TAG, "Playlist refresh failed", iOException);
+        if (++failures >= REFRESH_TRIES) {
+          setFailure(iOException);
+          break;
+        }
+        delay = REFRESH_RETRY_DELAY;
+      } catch (RuntimeException runtimeException) {
+        // Not expected; reader is told, thread shall not die silently
+        Log.e(LOG_TAG, "Playlist refresh internal failure", runtimeException);
+        setFailure(new IOException("HlsStream: internal failure", runtimeException));
+        break;
+      }
+    }
+    Log.d(LOG_TAG, "refreshLoop: leaving");
+  }
+
+  private synchronized void setFailure(@NonNull IOException iOException) {
+    failure = iOException;
+    notifyAll();
+  }
+
+  // Returns false if refresh shall stop
+  private synchronized boolean waitRefresh(long delay) {
+    final long end = System.currentTimeMillis() + delay;
+    long remaining;
+    try {
+      while (!isClosed && ((remaining = end - System.currentTimeMillis()) > 0)) {
+        wait(remaining);
+      }
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !isClosed && !isEnded;
+  }
+
+  // New segments are queued, within cache room; returns delay to next refresh (ms)
+  private long refresh() throws IOException {
+    final HttpURLConnection httpURLConnection = connect(playlistURL);
+    long targetDuration = 10000;
+    long sequence = 0;
+    boolean isPlaylistEnded = false;
+    final List<URL> uRLs = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(
+      new InputStreamReader(httpURLConnection.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      int count = 0;
+      while (((line = reader.readLine()) != null) && (count++ < LINES_MAX)) {
+        line = line.trim();
+        if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+          targetDuration = 1000 * parseLong(line);
+        } else if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+          sequence = parseLong(line);
+        } else if (line.startsWith("#EXT-X-ENDLIST")) {
+          isPlaylistEnded = true;
+        } else if (line.startsWith("#EXT-X-KEY:") && !line.contains("METHOD=NONE")) {
+          throw new IOException("Encrypted HLS not supported");
+        } else if (line.startsWith("#EXT-X-MAP:")) {
+          throw new IOException("Fragmented MP4 HLS not supported");
+        } else if (line.startsWith("#EXT-X-STREAM-INF:")) {
+          throw new IOException("Master playlist not expected");
+        } else if (!line.isEmpty() && !line.startsWith("#")) {
+          uRLs.add(new URL(httpURLConnection.getURL(), line));
+        }
+      }
+    } finally {
+      httpURLConnection.disconnect();
+    }
+    int queued = 0;
+    synchronized (this) {
+      // Fetchers are shut down on close
+      if (isClosed) {
+        return 0;
+      }
+      if (nextSequence < 0) {
+        nextSequence = isPlaylistEnded ?
+          sequence : Math.max(sequence, sequence + uRLs.size() - LIVE_EDGE_SEGMENTS);
+      } else if (nextSequence < sequence) {
+        Log.i(LOG_TAG, "Segments missed: " + (sequence - nextSequence));
+        nextSequence = sequence;
+      }
+      while ((nextSequence < sequence + uRLs.size()) && (segments.size() < CACHE_SEGMENTS)) {
+        final Segment newSegment =
+          new Segment(uRLs.get((int) (nextSequence - sequence)), nextSequence++);
+        segments.add(newSegment);
+        executorService.execute(() -> fetch(newSegment));
+        queued++;
+      }
+      isEnded = isPlaylistEnded && (nextSequence >= sequence + uRLs.size());
+      notifyAll();
+    }
+    // Playlist not changed: half target duration
+    return (queued > 0) ? targetDuration : targetDuration / 2;
+  }
+
+  private static long parseLong(@NonNull String line) throws IOException {
+    try {
+      return Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+    } catch (NumberFormatException numberFormatException) {
+      throw new IOException("Malformed playlist line: " + line);
+    }
+  }
+
+  // Fetcher thread; segment is always done
+  private void fetch(@NonNull Segment segment) {
+    HttpURLConnection httpURLConnection = null;
+    try {
+      httpURLConnection = connect(segment.uRL);
+      final int contentLength = httpURLConnection.getContentLength();
+      if (contentLength > SEGMENT_SIZE_MAX) {
+        throw new IOException("Segment too large: " + contentLength);
+      }
+      byte[] data = new byte[(contentLength > 0) ? contentLength : TS_PACKET_SIZE * 1024];
+      int length = 0;
+      try (InputStream inputStream = httpURLConnection.getInputStream()) {
+        int readResult;
+        while ((readResult = inputStream.read(data, length, data.length - length)) > 0) {
+          length += readResult;
+          if (length == data.length) {
+            if (data.length == SEGMENT_SIZE_MAX) {
+              throw new IOException("Segment too large");
+            }
+            final byte[] newData = new byte[Math.min(SEGMENT_SIZE_MAX, 2 * data.length)];
+            System.arraycopy(data, 0, newData, 0, length);
+            data = newData;
+          }
+        }
+      }
+      segment.data = data;
+      segment.length = length;
+      segment.contentType = extract(segment);
+    } catch (IOException iOException) {
+      Log.d(LOG_TAG, "Segment fetch failed: " + segment.uRL, iOException);
+    } finally {
+      if (httpURLConnection != null) {
+        httpURLConnection.disconnect();
+      }
+      synchronized (this) {
+        segment.isDone = true;
+        notifyAll();
+      }
+    }
+  }
+
+  // Audio elementary stream is extracted in place; returns its MIME type, null if none
+  @Nullable
+  private static String extract(@NonNull Segment segment) {
+    assert segment.data != null;
+    final byte[] data = segment.data;
+    if ((segment.length >= TS_PACKET_SIZE) && (data[0] == TS_SYNC) &&
+      ((segment.length < 2 * TS_PACKET_SIZE) || (data[TS_PACKET_SIZE] == TS_SYNC))) {
+      final TsDemuxer tsDemuxer = new TsDemuxer();
+      segment.length = tsDemuxer.demux(data, segment.length);
+      return tsDemuxer.contentType;
+    }
+    // Packed audio: ID3 tags first
+    int index = 0;
+    while ((index + 10 <= segment.length) &&
+      (data[index] == 'I') && (data[index + 1] == 'D') && (data[index + 2] == '3')) {
+      // Syncsafe size, optional footer
+      index += 10 + ((data[index + 5] & 0x10) == 0 ? 0 : 10) +
+        ((data[index + 6] & 0x7F) << 21) + ((data[index + 7] & 0x7F) << 14) +
+        ((data[index + 8] & 0x7F) << 7) + (data[index + 9] & 0x7F);
+    }
+    if ((index + AudioFrames.HEADER_SIZE > segment.length) ||
+      (AudioFrames.getFrameLength(data, index) == 0)) {
+      return null;
+    }
+    System.arraycopy(data, index, data, 0, segment.length - index);
+    segment.length -= index;
+    return AudioFrames.isAdts(data, 0) ? "audio/aac" : "audio/mpeg";
+  }
+
+  private static class Segment {
+    @NonNull
+    private final URL uRL;
+    private final long sequence;
+    // Following are set by fetcher
+    @Nullable
+    private byte[] data = null;
+    private int length = 0;
+    // Null if not available or not supported
+    @Nullable
+    private String contentType = null;
+    private boolean isDone = false;
+
+    private Segment(@NonNull URL uRL, long sequence) {
+      this.uRL = uRL;
+      this.sequence = sequence;
+    }
+  }
+
+  // First audio stream of first program; PAT and PMT are expected in one packet
+  private static class TsDemuxer {
+    private int pmtPid = -1;
+    private int audioPid = -1;
+    @Nullable
+    private String contentType = null;
+
+    // Payload of audio PES packets, in place; returns its length
+    private int demux(@NonNull byte[] data, int length) {
+      int result = 0;
+      int packet = 0;
+      while (packet + TS_PACKET_SIZE <= length) {
+        if (data[packet] != TS_SYNC) {
+          // Sync lost
+          packet++;
+          continue;
+        }
+        final int end = packet + TS_PACKET_SIZE;
+        final boolean isUnitStart = (data[packet + 1] & 0x40) != 0;
+        final int pid = ((data[packet + 1] & 0x1F) << 8) | (data[packet + 2] & 0xFF);
+        final int adaptationFieldControl = (data[packet + 3] >> 4) & 0x03;
+        int payload = packet + 4;
+        if (adaptationFieldControl == 3) {
+          payload += 1 + (data[payload] & 0xFF);
+        }
+        if (((adaptationFieldControl & 0x01) != 0) && (payload < end)) {
+          if (pid == 0) {
+            if (isUnitStart) {
+              parsePat(data, payload, end);
+            }
+          } else if (pid == pmtPid) {
+            if (isUnitStart) {
+              parsePmt(data, payload, end);
+            }
+          } else if (pid == audioPid) {
+            // PES header skipped
+            if (isUnitStart) {
+              payload = ((payload + 9 <= end) && (data[payload] == 0) &&
+                (data[payload + 1] == 0) && (data[payload + 2] == 1)) ?
+                payload + 9 + (data[payload + 8] & 0xFF) : end;
+            }
+            if (payload < end) {
+              System.arraycopy(data, payload, data, result, end - payload);
+              result += end - payload;
+            }
+          }
+        }
+        packet = end;
+      }
+      return result;
+    }
+
+    // Returns section end (CRC excluded), -1 if malformed
+    private static int getSectionEnd(@NonNull byte[] data, int section, int end) {
+      if (section + 8 > end) {
+        return -1;
+      }
+      final int sectionLength = ((data[section + 1] & 0x0F) << 8) | (data[section + 2] & 0xFF);
+      return Math.min(end, section + 3 + sectionLength - 4);
+    }
+
+    private void parsePat(@NonNull byte[] data, int payload, int end) {
+      final int section = payload + 1 + (data[payload] & 0xFF);
+      final int sectionEnd = getSectionEnd(data, section, end);
+      for (int index = section + 8; index + 4 <= sectionEnd; index += 4) {
+        final int programNumber = ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+        if (programNumber != 0) {
+          pmtPid = ((data[index + 2] & 0x1F) << 8) | (data[index + 3] & 0xFF);
+          return;
+        }
+      }
+    }
+
+    private void parsePmt(@NonNull byte[] data, int payload, int end) {
+      final int section = payload + 1 + (data[payload] & 0xFF);
+      final int sectionEnd = getSectionEnd(data, section, end);
+      if (section + 12 > sectionEnd) {
+        return;
+      }
+      int index =
+        section + 12 + (((data[section + 10] & 0x0F) << 8) | (data[section + 11] & 0xFF));
+      while (index + 5 <= sectionEnd) {
+        final int streamType = data[index] & 0xFF;
+        final int pid = ((data[index + 1] & 0x1F) << 8) | (data[index + 2] & 0xFF);
+        // ADTS AAC, MPEG-1 or MPEG-2 audio
+        if ((streamType == 0x0F) || (streamType == 0x03) || (streamType == 0x04)) {
+          audioPid = pid;
+          contentType = (streamType == 0x0F) ? "audio/aac" : "audio/mpeg";
+          return;
+        }
+        index += 5 + (((data[index + 3] & 0x0F) << 8) | (data[index + 4] & 0xFF));
+      }
+    }
+  }
+}
@@ -24,59 +24,137 @@
 package com.watea.radio_upnp.service;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.watea.radio_upnp.BuildConfig;
 import com.watea.radio_upnp.model.Radio;
 
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
-import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
-import java.io.FileOutputStream;
+import java.util.List;
 
+// Two lanes, each with its own connector and bounded thread pool:
+// streams, which hold a thread for their whole lifetime, and short requests (logos...).
+// In asynchronous mode, stream threads are only used until response headers are sent.
 public class HttpServer extends Thread {
+  // Concurrent streams; further stream requests are answered 503
+  static final int STREAMS_MAX = 8;
+  static final int ASYNC_STREAMS_MAX = 256;
+  // Threads to handle stream requests in asynchronous mode, including upstream connection
+  static final int ASYNC_STREAM_THREADS = 4;
+  // Connector acceptor, which is also its selector; Jetty default depends on CPU count.
+  // Spare threads for requests answered without streaming.
+  static final int CONNECTOR_THREADS = 1;
+  static final int SPARE_THREADS = 2;
+  static final int RESOURCE_THREADS = 4;
+  static final int RESOURCE_QUEUE_MAX = 16;
   private static final String LOG_TAG = HttpServer.class.getName();
-  private static final String LOGO_FILE = "logo";
-  private static final int REMOTE_LOGO_SIZE = 300;
-  private final Server server = new Server(0);
-  @NonNull
-  private final Context context;
+  private static final String STREAM_CONNECTOR = "stream";
+  // Long enough for a paused renderer
+  private static final int STREAM_IDLE_TIMEOUT = 5 * 60 * 1000; // ms
+  private static final int RESOURCE_IDLE_TIMEOUT = 10 * 1000; // ms
+  private static final int THREAD_IDLE_TIMEOUT = 60 * 1000; // ms
+  private final Server server = new Server();
+  private final SelectChannelConnector streamConnector = new SelectChannelConnector();
+  private final SelectChannelConnector resourceConnector = new SelectChannelConnector();
   @NonNull
   private final NetworkProxy networkProxy;
   @NonNull
   private final Listener listener;
   @NonNull
   private final RadioHandler radioHandler;
+  @NonNull
+  private final LogoCache logoCache;
 
   public HttpServer(
     @NonNull Context context,
     @NonNull String userAgent,
     @NonNull RadioHandler.Callback radioHandlerCallback,
     @NonNull RadioHandler.Listener radioHandlerListener,
+    @NonNull ResolvedUrlCache resolvedUrlCache,
     @NonNull Listener listener) {
-    this.context = context;
     this.listener = listener;
-    radioHandler = new RadioHandler(userAgent, radioHandlerCallback, radioHandlerListener);
-    networkProxy = new NetworkProxy(this.context);
-    // Handler for local files
-    ResourceHandler resourceHandler = new ResourceHandler();
-    resourceHandler.setResourceBase(this.context.getFilesDir().getPath());
-    // Add the ResourceHandler to the server
+    final boolean isAsync = BuildConfig.ASYNC_STREAMING;
+    radioHandler = new RadioHandler(
+      userAgent,
+      radioHandlerCallback,
+      radioHandlerListener,
+      resolvedUrlCache,
+      isAsync ? ASYNC_STREAMS_MAX : STREAMS_MAX,
+      isAsync,
+      BuildConfig.MP4_REMUXING);
+    networkProxy = new NetworkProxy(context);
+    // Short requests lane, uses server thread pool
+    server.setThreadPool(getThreadPool(
+      "resource", CONNECTOR_THREADS + RESOURCE_THREADS, RESOURCE_QUEUE_MAX));
+    resourceConnector.setPort(0);
+    resourceConnector.setAcceptors(CONNECTOR_THREADS);
+    resourceConnector.setMaxIdleTime(RESOURCE_IDLE_TIMEOUT);
+    // Stream lane; one thread per stream in blocking mode
+    streamConnector.setThreadPool(isAsync ?
+      getThreadPool(
+        "stream", CONNECTOR_THREADS + ASYNC_STREAM_THREADS, ASYNC_STREAMS_MAX) :
+      getThreadPool(
+        "stream", CONNECTOR_THREADS + STREAMS_MAX + SPARE_THREADS, STREAMS_MAX));
+    streamConnector.setName(STREAM_CONNECTOR);
+    streamConnector.setPort(0);
+    streamConnector.setAcceptors(CONNECTOR_THREADS);
+    streamConnector.setMaxIdleTime(STREAM_IDLE_TIMEOUT);
+    server.setConnectors(new Connector[]{streamConnector, resourceConnector});
+    // Handler for logos, encoded once and stored
+    logoCache = new LogoCache(context, radioHandlerCallback);
+    final LogoHandler logoHandler = new LogoHandler(logoCache);
+    // Streams are only served on stream lane
+    final ContextHandler streamContext = new ContextHandler("/");
+    streamContext.setConnectorNames(new String[]{STREAM_CONNECTOR});
+    streamContext.setHandler(radioHandler);
     HandlerList handlers = new HandlerList();
-    handlers.setHandlers(new Handler[]{resourceHandler, radioHandler});
+    handlers.setHandlers(
+      new Handler[]{logoHandler, new MetricsHandler(radioHandler), streamContext});
     server.setHandler(handlers);
   }
 
+  @NonNull
+  private static QueuedThreadPool getThreadPool(@NonNull String name, int size, int queueSize) {
+    final QueuedThreadPool queuedThreadPool = new QueuedThreadPool(size);
+    queuedThreadPool.setName(LOG_TAG + "-" + name);
+    queuedThreadPool.setMinThreads(CONNECTOR_THREADS);
+    queuedThreadPool.setMaxIdleTimeMs(THREAD_IDLE_TIMEOUT);
+    queuedThreadPool.setMaxQueued(queueSize);
+    return queuedThreadPool;
+  }
+
   public void setRadioHandlerController(@Nullable RadioHandler.Controller radioHandlerController) {
     radioHandler.setController(radioHandlerController);
   }
 
+  public void onRadioHandlerControllerStateChange() {
+    radioHandler.onControllerStateChange();
+  }
+
+  @Nullable
+  public String prepareRadio(@NonNull Radio radio, @NonNull String lockKey) {
+    return radioHandler.prepare(radio, lockKey);
+  }
+
+  public void warmUp(@NonNull Radio currentRadio, @NonNull List<Radio> radios) {
+    radioHandler.warmUp(currentRadio, radios);
+  }
+
+  public void cancelWarmUp() {
+    radioHandler.cancelWarmUp();
+  }
+
   @NonNull
   public Uri getLoopbackUri() {
     return NetworkProxy.getLoopbackUri(getPort());
@@ -88,6 +166,7 @@ public class HttpServer extends Thread {
     try {
       Log.d(LOG_TAG, "HTTP server start");
       server.start();
+      Log.d(LOG_TAG, "Metrics on port " + resourceConnector.getLocalPort() + MetricsHandler.TARGET);
       server.join();
     } catch (Exception exception) {
       Log.d(LOG_TAG, "HTTP server start error", exception);
@@ -98,25 +177,25 @@ public class HttpServer extends Thread {
   public void stopServer() {
     try {
       Log.d(LOG_TAG, "HTTP server stop");
+      radioHandler.stopStreaming();
+      logoCache.release();
       server.stop();
     } catch (Exception exception) {
       Log.i(LOG_TAG, "HTTP server stop error", exception);
     }
   }
 
-  // Return logo file Uri; a jpeg file
+  // Logo is encoded in background if needed, and served on short requests lane
   @Nullable
-  public Uri createLogoFile(@NonNull Radio radio) {
-    String name = LOGO_FILE + radio.getId() + ".jpg";
-    try (FileOutputStream fileOutputStream = context.openFileOutput(name, Context.MODE_PRIVATE)) {
-      Bitmap
-        .createScaledBitmap(radio.getIcon(), REMOTE_LOGO_SIZE, REMOTE_LOGO_SIZE, true)
-        .compress(Bitmap.CompressFormat.JPEG, 100, fileOutputStream);
-    } catch (Exception exception) {
-      Log.e(LOG_TAG, "createLogoFile: internal failure creating logo file", exception);
-    }
-    Uri uri = getUri();
-    return (uri == null) ? null : uri.buildUpon().appendEncodedPath(name).build();
+  public Uri getLogoUri(@NonNull Radio radio) {
+    logoCache.prefetch(radio);
+    final Uri uri = networkProxy.getUri(resourceConnector.getLocalPort());
+    return (uri == null) ? null : LogoHandler.getHandledUri(uri, radio);
+  }
+
+  // Logos of new radios or icons are encoded in background, so that they are ready when needed
+  public void prefetchLogos(@NonNull LogoCache.RadioIdsSupplier radioIdsSupplier) {
+    logoCache.prefetch(radioIdsSupplier);
   }
 
   @Nullable
@@ -124,8 +203,15 @@ public class HttpServer extends Thread {
     return networkProxy.getUri(getPort());
   }
 
+  // Short requests lane
+  @NonNull
+  Uri getResourceLoopbackUri() {
+    return NetworkProxy.getLoopbackUri(resourceConnector.getLocalPort());
+  }
+
+  // Stream lane
   private int getPort() {
-    return server.getConnectors()[0].getLocalPort();
+    return streamConnector.getLocalPort();
   }
 
   public interface Listener {
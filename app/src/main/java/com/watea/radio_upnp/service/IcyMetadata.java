@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.Charset;
+
+// ICY metadata block parser: StreamTitle='...';StreamUrl='...';
+// Works on bytes with reused buffers; strings are only built when a value changes.
+public class IcyMetadata {
+  // Size is given by one byte, in 16 bytes chunks
+  public static final int METADATA_MAX = 255 * 16;
+  private static final byte[] STREAM_TITLE = {
+    'S', 't', 'r', 'e', 'a', 'm', 'T', 'i', 't', 'l', 'e', '=', '\''};
+  private static final byte[] STREAM_URL = {
+    'S', 't', 'r', 'e', 'a', 'm', 'U', 'r', 'l', '=', '\''};
+  @NonNull
+  private final Charset charset;
+  private final byte[] block = new byte[METADATA_MAX];
+  private final Value title = new Value();
+  private final Value url = new Value();
+  private int size = 0;
+
+  public IcyMetadata(@NonNull Charset charset) {
+    this.charset = charset;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public void put(@NonNull byte[] buffer, int offset, int length) {
+    length = Math.min(length, block.length - size);
+    System.arraycopy(buffer, offset, block, size, length);
+    size += length;
+  }
+
+  // Returns true if title has changed
+  public boolean parse() {
+    url.parse(STREAM_URL);
+    return title.parse(STREAM_TITLE);
+  }
+
+  @NonNull
+  public String getTitle() {
+    return title.toString();
+  }
+
+  @Nullable
+  public String getUrl() {
+    return (url.length < 0) ? null : url.toString();
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return new String(block, 0, size, charset);
+  }
+
+  // Index of key in block, -1 if not found
+  private int indexOf(@NonNull byte[] key) {
+    for (int i = 0; i <= size - key.length; i++) {
+      int j = 0;
+      while ((j < key.length) && (block[i + j] == key[j])) {
+        j++;
+      }
+      if (j == key.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private class Value {
+    private final byte[] bytes = new byte[METADATA_MAX];
+    // -1 if never found
+    private int length = -1;
+    @Nullable
+    private String string = null;
+
+    // Value ends on "';", or on "'" followed by padding, or on padding
+    // Returns true if value has changed
+    private boolean parse(@NonNull byte[] key) {
+      int start = indexOf(key);
+      if (start < 0) {
+        return false;
+      }
+      start += key.length;
+      int end = start;
+      while ((end < size) && (block[end] != 0) &&
+        !((block[end] == '\'') &&
+          ((end + 1 == size) || (block[end + 1] == ';') || (block[end + 1] == 0)))) {
+        end++;
+      }
+      final int newLength = end - start;
+      boolean isChanged = (newLength != length);
+      for (int i = 0; !isChanged && (i < newLength); i++) {
+        isChanged = (bytes[i] != block[start + i]);
+      }
+      if (isChanged) {
+        System.arraycopy(block, start, bytes, 0, newLength);
+        length = newLength;
+        string = null;
+      }
+      return isChanged;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      if (string == null) {
+        string = (length < 0) ? "" : new String(bytes, 0, length, charset);
+      }
+      return string;
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.watea.radio_upnp.model.Radio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+// Remote logos (JPEG) encoded once, in background, when radio is added or its icon changes.
+// Encoded logos are stored in files, with checksum of their content, so that nothing is
+// encoded again on start. Files are keyed by radio ID and icon version, i.e. modification time
+// of icon file: icon is not read to know whether it has changed.
+// Least recently used logos are kept in memory, up to memory budget.
+// Encoding is only done by a single background thread.
+public class LogoCache {
+  private static final String LOG_TAG = LogoCache.class.getName();
+  private static final String DIRECTORY = "logos";
+  // File name: radio ID, icon version and checksum
+  private static final String SEPARATOR = "_";
+  private static final String EXTENSION = ".jpg";
+  private static final String TEMPORARY_EXTENSION = ".tmp";
+  private static final int REMOTE_LOGO_SIZE = 300;
+  private static final int QUALITY = 100;
+  private static final int BUDGET = 4 * 1024 * 1024; // bytes
+  @NonNull
+  private final RadioHandler.Callback callback;
+  @NonNull
+  private final File directory;
+  // Stored logos by radio ID
+  private final Map<Long, File> files = new Hashtable<>();
+  // Access ordered
+  private final Map<Long, Logo> logos = new LinkedHashMap<>(16, 0.75f, true);
+  private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+  private int size = 0;
+
+  // Only file names are read
+  public LogoCache(@NonNull Context context, @NonNull RadioHandler.Callback callback) {
+    this.callback = callback;
+    directory = new File(context.getFilesDir(), DIRECTORY);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(LOG_TAG, "Logo directory not created");
+    }
+    final File[] directoryFiles = directory.listFiles();
+    if (directoryFiles != null) {
+      for (File file : directoryFiles) {
+        try {
+          if (!file.getName().endsWith(EXTENSION)) {
+            throw new NumberFormatException();
+          }
+          files.put(Long.valueOf(file.getName().split(SEPARATOR)[0]), file);
+        } catch (NumberFormatException numberFormatException) {
+          // Unexpected or not fully written
+          Log.w(LOG_TAG, "File deleted: " + file.getName());
+          delete(file);
+        }
+      }
+    }
+  }
+
+  // Modification time of icon file, 0 if not found
+  public static long getVersion(@NonNull Radio radio) {
+    return radio.getIconFile().lastModified();
+  }
+
+  private static void delete(@NonNull File file) {
+    if (file.exists() && !file.delete()) {
+      Log.w(LOG_TAG, "File not deleted: " + file.getName());
+    }
+  }
+
+  // Encoding in background, if not cached
+  public void prefetch(@NonNull Radio radio) {
+    executorService.execute(() -> get(radio));
+  }
+
+  // In background: logos of new radios or icons are encoded and stored,
+  // stored logos of radios not in list are deleted.
+  // Radio IDs are also read in background.
+  public void prefetch(@NonNull RadioIdsSupplier radioIdsSupplier) {
+    executorService.execute(() -> {
+      final List<Long> radioIds = radioIdsSupplier.get();
+      final Set<Long> radioIdSet = new HashSet<>(radioIds);
+      for (Long radioId : new Vector<>(files.keySet())) {
+        if (!radioIdSet.contains(radioId)) {
+          final File file = files.remove(radioId);
+          if (file != null) {
+            delete(file);
+          }
+        }
+      }
+      for (Long radioId : radioIds) {
+        final Radio radio = callback.getFrom(radioId);
+        if ((radio != null) && (getStoredChecksum(radioId, getVersion(radio)) == null)) {
+          store(radio, getVersion(radio));
+        }
+      }
+    });
+  }
+
+  // Blocking; null if radio or icon not found
+  @Nullable
+  public Logo get(@NonNull Long radioId) {
+    final Radio radio = callback.getFrom(radioId);
+    return (radio == null) ? null : get(radio);
+  }
+
+  // Waits for encoding, if needed, at most timeout; null if radio or icon not found.
+  // On timeout, encoding goes on in background.
+  @Nullable
+  public Logo get(@NonNull Long radioId, long timeout) throws TimeoutException {
+    final Radio radio = callback.getFrom(radioId);
+    if (radio == null) {
+      return null;
+    }
+    final Logo logo = getEncoded(radio, getVersion(radio));
+    if (logo != null) {
+      return logo;
+    }
+    final Future<Logo> future = executorService.submit(() -> get(radio));
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException executionException) {
+      Log.w(LOG_TAG, "get: encoding failed for " + radio.getName(), executionException);
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  public void release() {
+    executorService.shutdownNow();
+  }
+
+  // Blocking, encodes if not already done; null if icon not found
+  @Nullable
+  private Logo get(@NonNull Radio radio) {
+    final long version = getVersion(radio);
+    Logo logo = getEncoded(radio, version);
+    // Encoding is done outside lock, concurrent encodings only waste time
+    if (logo == null) {
+      logo = store(radio, version);
+      if (logo != null) {
+        put(logo);
+      }
+    }
+    return logo;
+  }
+
+  // From memory or stored file; null if not encoded for this icon version
+  @Nullable
+  private Logo getEncoded(@NonNull Radio radio, long version) {
+    synchronized (this) {
+      final Logo logo = logos.get(radio.getId());
+      if ((logo != null) && (logo.version == version)) {
+        return logo;
+      }
+    }
+    final Logo logo = read(radio.getId(), version);
+    if (logo != null) {
+      put(logo);
+    }
+    return logo;
+  }
+
+  // Null if no logo stored for this icon version
+  @Nullable
+  private Long getStoredChecksum(@NonNull Long radioId, long version) {
+    final File file = files.get(radioId);
+    if (file != null) {
+      final String name = file.getName();
+      final String[] tokens =
+        name.substring(0, name.length() - EXTENSION.length()).split(SEPARATOR);
+      try {
+        if ((tokens.length == 3) && (Long.parseLong(tokens[1], 16) == version)) {
+          return Long.parseLong(tokens[2], 16);
+        }
+      } catch (NumberFormatException numberFormatException) {
+        Log.w(LOG_TAG, "Malformed file name: " + name);
+      }
+    }
+    return null;
+  }
+
+  // Null if no logo stored for this icon version
+  @Nullable
+  private Logo read(@NonNull Long radioId, long version) {
+    final Long checksum = getStoredChecksum(radioId, version);
+    final File file = files.get(radioId);
+    if ((checksum == null) || (file == null)) {
+      return null;
+    }
+    final byte[] bytes = new byte[(int) file.length()];
+    try (DataInputStream dataInputStream = new DataInputStream(new FileInputStream(file))) {
+      dataInputStream.readFully(bytes);
+    } catch (IOException iOException) {
+      Log.w(LOG_TAG, "read: stored logo not readable: " + file.getName(), iOException);
+      return null;
+    }
+    return new Logo(radioId, version, checksum, bytes, file.lastModified());
+  }
+
+  // Encodes and stores logo in place of previous one; null if icon not found.
+  // Logo is still returned if it could not be stored.
+  @Nullable
+  private Logo store(@NonNull Radio radio, long version) {
+    final Bitmap icon = radio.getIcon();
+    if (icon == null) {
+      Log.w(LOG_TAG, "store: icon not found for " + radio.getName());
+      return null;
+    }
+    final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    Bitmap
+      .createScaledBitmap(icon, REMOTE_LOGO_SIZE, REMOTE_LOGO_SIZE, true)
+      .compress(Bitmap.CompressFormat.JPEG, QUALITY, byteArrayOutputStream);
+    final byte[] bytes = byteArrayOutputStream.toByteArray();
+    final CRC32 cRC32 = new CRC32();
+    cRC32.update(bytes);
+    final long checksum = cRC32.getValue();
+    final String name = radio.getId() + SEPARATOR + Long.toHexString(version) + SEPARATOR +
+      Long.toHexString(checksum) + EXTENSION;
+    // Written aside, in a file of its own, so that a stored file is always complete
+    final File file = new File(directory, name);
+    File temporaryFile = null;
+    boolean isWritten = false;
+    try {
+      temporaryFile = File.createTempFile(name, TEMPORARY_EXTENSION, directory);
+      try (FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile)) {
+        fileOutputStream.write(bytes);
+        isWritten = true;
+      }
+    } catch (IOException iOException) {
+      Log.w(LOG_TAG, "store: logo not stored for " + radio.getName(), iOException);
+    }
+    if (isWritten && temporaryFile.renameTo(file)) {
+      final File previousFile = files.put(radio.getId(), file);
+      if ((previousFile != null) && !previousFile.equals(file)) {
+        delete(previousFile);
+      }
+    } else if (temporaryFile != null) {
+      delete(temporaryFile);
+    }
+    Log.d(LOG_TAG, "Logo encoded for " + radio.getName() + ": " + bytes.length + " bytes");
+    return new Logo(radio.getId(), version, checksum, bytes,
+      file.isFile() ? file.lastModified() : System.currentTimeMillis());
+  }
+
+  private synchronized void put(@NonNull Logo logo) {
+    final Logo previousLogo = logos.put(logo.radioId, logo);
+    size += logo.bytes.length - ((previousLogo == null) ? 0 : previousLogo.bytes.length);
+    // Eldest first; last one is kept
+    final Iterator<Logo> iterator = logos.values().iterator();
+    while ((size > BUDGET) && (logos.size() > 1)) {
+      size -= iterator.next().bytes.length;
+      iterator.remove();
+    }
+  }
+
+  public static class Logo {
+    @NonNull
+    private final Long radioId;
+    private final long version;
+    // Of bytes
+    private final long checksum;
+    @NonNull
+    private final byte[] bytes;
+    // Encoding time
+    private final long lastModified;
+
+    private Logo(
+      @NonNull Long radioId,
+      long version,
+      long checksum,
+      @NonNull byte[] bytes,
+      long lastModified) {
+      this.radioId = radioId;
+      this.version = version;
+      this.checksum = checksum;
+      this.bytes = bytes;
+      this.lastModified = lastModified;
+    }
+
+    @NonNull
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    @NonNull
+    public String getETag() {
+      return "\"" + radioId + "-" + Long.toHexString(checksum) + "\"";
+    }
+  }
+
+  public interface RadioIdsSupplier {
+    @NonNull
+    List<Long> get();
+  }
+}
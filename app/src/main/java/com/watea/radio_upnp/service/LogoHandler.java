@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// Serves remote logos from LogoCache.
+// Path holds radio ID and icon version, so that a new icon gets a new URI.
+public class LogoHandler extends AbstractHandler {
+  private static final String LOG_TAG = LogoHandler.class.getName();
+  private static final String PREFIX = "logo";
+  private static final String SEPARATOR = "_";
+  private static final String EXTENSION = ".jpg";
+  private static final int MAX_AGE = 24 * 60 * 60; // s
+  // Resource threads are few: a logo not yet encoded is answered 503 after this time
+  private static final int ENCODING_TIMEOUT = 1000; // ms
+  private static final int RETRY_AFTER = 2; // s
+  @NonNull
+  private final LogoCache logoCache;
+
+  public LogoHandler(@NonNull LogoCache logoCache) {
+    super();
+    this.logoCache = logoCache;
+  }
+
+  @NonNull
+  public static Uri getHandledUri(@NonNull Uri uri, @NonNull Radio radio) {
+    return uri
+      .buildUpon()
+      .appendEncodedPath(PREFIX + SEPARATOR + radio.getId() + SEPARATOR +
+        Long.toHexString(LogoCache.getVersion(radio)) + EXTENSION)
+      .build();
+  }
+
+  // If-None-Match takes precedence over If-Modified-Since
+  private static boolean isNotModified(
+    @NonNull HttpServletRequest request, @NonNull LogoCache.Logo logo) {
+    final String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String eTag : ifNoneMatch.split(",")) {
+        eTag = eTag.trim();
+        if (eTag.equals("*") || eTag.equals(logo.getETag()) ||
+          eTag.equals("W/" + logo.getETag())) {
+          return true;
+        }
+      }
+      return false;
+    }
+    try {
+      final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      // HTTP dates have second precision
+      return (ifModifiedSince >= 0) && (logo.getLastModified() / 1000 <= ifModifiedSince / 1000);
+    } catch (IllegalArgumentException illegalArgumentException) {
+      Log.d(LOG_TAG, "Malformed If-Modified-Since header");
+      return false;
+    }
+  }
+
+  @Override
+  public void handle(
+    String target,
+    Request baseRequest,
+    HttpServletRequest request,
+    HttpServletResponse response) {
+    if ((target == null) || !target.startsWith("/" + PREFIX + SEPARATOR)) {
+      return;
+    }
+    // Current logo is served, even if icon version has changed
+    final String[] params = target.split(SEPARATOR);
+    final LogoCache.Logo logo;
+    try {
+      logo = logoCache.get(Long.valueOf(params[1]), ENCODING_TIMEOUT);
+    } catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
+      Log.i(LOG_TAG, "Unexpected request received: " + target);
+      return;
+    } catch (TimeoutException timeoutException) {
+      Log.d(LOG_TAG, "Logo not encoded yet: " + target);
+      baseRequest.setHandled(true);
+      response.setHeader("Retry-After", Integer.toString(RETRY_AFTER));
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    baseRequest.setHandled(true);
+    if (logo == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setHeader("ETag", logo.getETag());
+    response.setHeader("Cache-Control", "max-age=" + MAX_AGE);
+    response.setDateHeader("Last-Modified", logo.getLastModified());
+    if (isNotModified(request, logo)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setContentType("image/jpeg");
+    response.setContentLength(logo.getBytes().length);
+    response.setStatus(HttpServletResponse.SC_OK);
+    try (OutputStream outputStream = response.getOutputStream()) {
+      outputStream.write(logo.getBytes());
+    } catch (IOException iOException) {
+      Log.d(LOG_TAG, "handle: error sending logo", iOException);
+    }
+  }
+}
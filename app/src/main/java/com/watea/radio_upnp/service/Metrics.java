@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import androidx.annotation.NonNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process wide counters, exported in Prometheus text format.
+// Lock free: AtomicLong only (LongAdder requires API 24).
+public class Metrics {
+  // Shall be set before histograms
+  private static final double[] BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10}; // s
+  public static final AtomicLong ACTIVE_STREAMS = new AtomicLong();
+  public static final AtomicLong METADATA_UPDATES = new AtomicLong();
+  public static final AtomicLong REDIRECTS = new AtomicLong();
+  public static final AtomicLong RECONNECTS = new AtomicLong();
+  public static final AtomicLong WATCHDOG_FAILURES = new AtomicLong();
+  public static final Histogram CONNECT_LATENCY = new Histogram();
+  public static final Histogram TIME_TO_FIRST_BYTE = new Histogram();
+  private static final String PREFIX = "radioupnp_";
+  private static final ConcurrentHashMap<Long, AtomicLong> RELAYED_BYTES =
+    new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Histogram> UPNP_ACTION_LATENCIES =
+    new ConcurrentHashMap<>();
+
+  private Metrics() {
+  }
+
+  // Counter shall be kept by caller, so that hot path does no lookup
+  @NonNull
+  public static AtomicLong getRelayedBytes(@NonNull Long radioId) {
+    final AtomicLong relayedBytes = new AtomicLong();
+    final AtomicLong previousRelayedBytes = RELAYED_BYTES.putIfAbsent(radioId, relayedBytes);
+    return (previousRelayedBytes == null) ? relayedBytes : previousRelayedBytes;
+  }
+
+  public static void observeUpnpAction(@NonNull String actionName, long duration) {
+    final Histogram histogram = new Histogram();
+    final Histogram previousHistogram = UPNP_ACTION_LATENCIES.putIfAbsent(actionName, histogram);
+    ((previousHistogram == null) ? histogram : previousHistogram).observe(duration);
+  }
+
+  // Fill levels are given per radio ID
+  @NonNull
+  public static String export(@NonNull Map<Long, Integer> fillLevels) {
+    final StringBuilder stringBuilder = new StringBuilder();
+    exportHead(stringBuilder, "active_streams", "LAN streams being served", "gauge");
+    exportValue(stringBuilder, "active_streams", "", ACTIVE_STREAMS.get());
+    exportHead(stringBuilder, "relayed_bytes_total", "Bytes sent to LAN clients", "counter");
+    for (Map.Entry<Long, AtomicLong> entry : RELAYED_BYTES.entrySet()) {
+      exportValue(
+        stringBuilder, "relayed_bytes_total", getRadioLabel(entry.getKey()), entry.getValue().get());
+    }
+    exportHead(
+      stringBuilder, "buffer_fill_percent", "Ring buffer not yet read by slowest client", "gauge");
+    for (Map.Entry<Long, Integer> entry : fillLevels.entrySet()) {
+      exportValue(
+        stringBuilder, "buffer_fill_percent", getRadioLabel(entry.getKey()), entry.getValue());
+    }
+    exportHead(stringBuilder, "upstream_connect_seconds", "Upstream connection time", "histogram");
+    CONNECT_LATENCY.export(stringBuilder, "upstream_connect_seconds", "");
+    exportHead(
+      stringBuilder, "upstream_first_byte_seconds", "Upstream time to first byte", "histogram");
+    TIME_TO_FIRST_BYTE.export(stringBuilder, "upstream_first_byte_seconds", "");
+    exportHead(stringBuilder, "metadata_updates_total", "Stream title changes", "counter");
+    exportValue(stringBuilder, "metadata_updates_total", "", METADATA_UPDATES.get());
+    exportHead(stringBuilder, "redirects_total", "Upstream HTTP redirections", "counter");
+    exportValue(stringBuilder, "redirects_total", "", REDIRECTS.get());
+    exportHead(stringBuilder, "reconnects_total", "Upstream reconnections", "counter");
+    exportValue(stringBuilder, "reconnects_total", "", RECONNECTS.get());
+    exportHead(stringBuilder, "upnp_action_seconds", "UPnP action round trip", "histogram");
+    for (Map.Entry<String, Histogram> entry : UPNP_ACTION_LATENCIES.entrySet()) {
+      entry.getValue().export(
+        stringBuilder, "upnp_action_seconds", "action=\"" + entry.getKey() + "\"");
+    }
+    exportHead(stringBuilder, "watchdog_failures_total", "UPnP watchdog failures", "counter");
+    exportValue(stringBuilder, "watchdog_failures_total", "", WATCHDOG_FAILURES.get());
+    return stringBuilder.toString();
+  }
+
+  @NonNull
+  private static String getRadioLabel(@NonNull Long radioId) {
+    return "radio=\"" + radioId + "\"";
+  }
+
+  private static void exportHead(
+    @NonNull StringBuilder stringBuilder,
+    @NonNull String name,
+    @NonNull String help,
+    @NonNull String type) {
+    stringBuilder
+      .append("# HELP ").append(PREFIX).append(name).append(" ").append(help).append("\n")
+      .append("# TYPE ").append(PREFIX).append(name).append(" ").append(type).append("\n");
+  }
+
+  private static void exportValue(
+    @NonNull StringBuilder stringBuilder,
+    @NonNull String name,
+    @NonNull String labels,
+    @NonNull Object value) {
+    stringBuilder.append(PREFIX).append(name);
+    if (!labels.isEmpty()) {
+      stringBuilder.append("{").append(labels).append("}");
+    }
+    stringBuilder.append(" ").append(value).append("\n");
+  }
+
+  // Durations in ms, exported in s
+  public static class Histogram {
+    // Last one for +Inf
+    private final AtomicLong[] counts = new AtomicLong[BUCKETS.length + 1];
+    private final AtomicLong sum = new AtomicLong();
+
+    private Histogram() {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new AtomicLong();
+      }
+    }
+
+    public void observe(long duration) {
+      int i = 0;
+      while ((i < BUCKETS.length) && (duration > BUCKETS[i] * 1000)) {
+        i++;
+      }
+      counts[i].incrementAndGet();
+      sum.addAndGet(duration);
+    }
+
+    // Buckets are cumulative
+    private void export(
+      @NonNull StringBuilder stringBuilder, @NonNull String name, @NonNull String labels) {
+      final String separator = labels.isEmpty() ? "" : ",";
+      long count = 0;
+      for (int i = 0; i < counts.length; i++) {
+        count += counts[i].get();
+        exportValue(
+          stringBuilder,
+          name + "_bucket",
+          labels + separator + "le=\"" + ((i < BUCKETS.length) ? BUCKETS[i] : "+Inf") + "\"",
+          count);
+      }
+      exportValue(stringBuilder, name + "_sum", labels, sum.get() / 1000.0);
+      exportValue(stringBuilder, name + "_count", labels, count);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// Serves metrics in Prometheus text format, to local clients only
+public class MetricsHandler extends AbstractHandler {
+  public static final String TARGET = "/metrics";
+  private static final String LOG_TAG = MetricsHandler.class.getName();
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  @NonNull
+  private final RadioHandler radioHandler;
+
+  public MetricsHandler(@NonNull RadioHandler radioHandler) {
+    super();
+    this.radioHandler = radioHandler;
+  }
+
+  // Remote address is a literal IP address: no name lookup
+  static boolean isLocal(@Nullable String remoteAddress) {
+    try {
+      return (remoteAddress != null) && InetAddress.getByName(remoteAddress).isLoopbackAddress();
+    } catch (UnknownHostException unknownHostException) {
+      return false;
+    }
+  }
+
+  @Override
+  public void handle(
+    String target,
+    Request baseRequest,
+    HttpServletRequest request,
+    HttpServletResponse response) {
+    if (!TARGET.equals(target)) {
+      return;
+    }
+    baseRequest.setHandled(true);
+    if (!isLocal(request.getRemoteAddr())) {
+      Log.d(LOG_TAG, "handle: metrics refused to " + request.getRemoteAddr());
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    final byte[] bytes =
+      Metrics.export(radioHandler.getFillLevels()).getBytes(StandardCharsets.UTF_8);
+    response.setContentType(CONTENT_TYPE);
+    response.setContentLength(bytes.length);
+    response.setStatus(HttpServletResponse.SC_OK);
+    try (OutputStream outputStream = response.getOutputStream()) {
+      outputStream.write(bytes);
+    } catch (IOException iOException) {
+      Log.d(LOG_TAG, "handle: error sending metrics", iOException);
+    }
+  }
+}
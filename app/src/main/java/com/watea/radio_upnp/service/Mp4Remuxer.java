@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Repackages AAC ADTS stream as fragmented MP4, for renderers that only accept MP4.
+// Init segment is sent on first frame, then one fragment per second of audio.
+// Memory is bounded: one partial frame and one fragment.
+public class Mp4Remuxer extends FilterOutputStream {
+  private static final String LOG_TAG = Mp4Remuxer.class.getName();
+  private static final int FRAME_SIZE_MAX = 8191; // ADTS 13 bits length
+  private static final int FRAGMENT_DURATION = 1; // s
+  private static final int FRAGMENT_FRAMES_MAX = 128;
+  private static final int FRAGMENT_SIZE_MAX = 64 * 1024;
+  private static final int SAMPLES = 1024; // per frame
+  private static final int TRACK_ID = 1;
+  private static final int TIMESCALE = 1000; // movie
+  // ADTS frames being assembled
+  private final byte[] frame = new byte[FRAME_SIZE_MAX];
+  private final byte[] mdat = new byte[FRAGMENT_SIZE_MAX];
+  private final int[] sampleSizes = new int[FRAGMENT_FRAMES_MAX];
+  // For boxes
+  private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+  private final DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+  private int frameSize = 0;
+  private int mdatSize = 0;
+  private int sampleCount = 0;
+  private int sequenceNumber = 0;
+  // In samples
+  private long decodeTime = 0;
+  private int sampleRate = 0;
+
+  public Mp4Remuxer(@NonNull OutputStream outputStream) {
+    super(outputStream);
+  }
+
+  // True if source MIME type can be remuxed to target one
+  public static boolean isHandling(@Nullable String source, @Nullable String target) {
+    return (source != null) && (target != null) &&
+      (source.equals("audio/aac") || source.equals("audio/aacp") ||
+        source.equals("audio/x-aac")) &&
+      (target.equals("audio/mp4") || target.equals("audio/x-m4a"));
+  }
+
+  @Override
+  public void write(int oneByte) throws IOException {
+    write(new byte[]{(byte) oneByte}, 0, 1);
+  }
+
+  // ADTS data, may be cut anywhere
+  @Override
+  public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    final int end = offset + length;
+    int index = offset;
+    while (index < end) {
+      // Sync
+      if ((frameSize == 0) && (buffer[index] != (byte) 0xFF)) {
+        index++;
+        continue;
+      }
+      frame[frameSize++] = buffer[index++];
+      if (frameSize < AudioFrames.HEADER_SIZE) {
+        continue;
+      }
+      final int frameLength = AudioFrames.getFrameLength(frame, 0);
+      if ((frameLength == 0) || !AudioFrames.isAdts(frame, 0)) {
+        // Sync lost; search again from next byte
+        System.arraycopy(frame, 1, frame, 0, --frameSize);
+        while ((frameSize > 0) && (frame[0] != (byte) 0xFF)) {
+          System.arraycopy(frame, 1, frame, 0, --frameSize);
+        }
+        continue;
+      }
+      final int copied = Math.min(frameLength - frameSize, end - index);
+      System.arraycopy(buffer, index, frame, frameSize, copied);
+      frameSize += copied;
+      index += copied;
+      if (frameSize == frameLength) {
+        onFrame(frameLength);
+        frameSize = 0;
+      }
+    }
+  }
+
+  // Pending fragment is sent
+  @Override
+  public void close() throws IOException {
+    try {
+      writeFragment();
+    } finally {
+      super.close();
+    }
+  }
+
+  private void onFrame(int frameLength) throws IOException {
+    // Header with or without CRC
+    final int headerLength = ((frame[1] & 0x01) == 0) ? 9 : 7;
+    final int payloadLength = frameLength - headerLength;
+    if (payloadLength <= 0) {
+      return;
+    }
+    if ((frame[6] & 0x03) != 0) {
+      Log.d(LOG_TAG, "Several raw data blocks in ADTS frame not supported; frame dropped");
+      return;
+    }
+    if (sampleRate == 0) {
+      sampleRate = AudioFrames.getSampleRate(frame, 0);
+      writeInit();
+    }
+    if ((sampleCount == sampleSizes.length) || (mdatSize + payloadLength > mdat.length)) {
+      writeFragment();
+    }
+    System.arraycopy(frame, headerLength, mdat, mdatSize, payloadLength);
+    mdatSize += payloadLength;
+    sampleSizes[sampleCount++] = payloadLength;
+    if ((long) sampleCount * SAMPLES >= (long) FRAGMENT_DURATION * sampleRate) {
+      writeFragment();
+    }
+  }
+
+  // ftyp and moov
+  private void writeInit() throws IOException {
+    final int profile = (frame[2] >> 6) & 0x03;
+    final int sampleRateIndex = (frame[2] >> 2) & 0x0F;
+    final int channels = ((frame[2] & 0x01) << 2) | ((frame[3] >> 6) & 0x03);
+    // AudioSpecificConfig
+    final int audioSpecificConfig =
+      ((profile + 1) << 11) | (sampleRateIndex << 7) | (channels << 3);
+    final byte[] esds = fullBox("esds", 0, 0, concat(
+      descriptor(0x03, concat(
+        new byte[]{0, 0, 0}, // ES_ID, flags
+        descriptor(0x04, concat(
+          // AAC, audio stream, buffer size, bitrates
+          new byte[]{0x40, 0x15, 0, 0, 0},
+          ints(0, 0),
+          descriptor(0x05, new byte[]{
+            (byte) (audioSpecificConfig >> 8), (byte) audioSpecificConfig})
+        )),
+        descriptor(0x06, new byte[]{0x02})))));
+    final byte[] mp4a = box("mp4a", concat(
+      new byte[]{0, 0, 0, 0, 0, 0, 0, 1}, // reserved, data reference index
+      ints(0, 0),
+      shorts(Math.max(1, channels), 16, 0, 0),
+      // 16.16 fixed point: 0 if rate does not fit, actual one is in AudioSpecificConfig
+      ints((sampleRate > 0xFFFF) ? 0 : sampleRate << 16),
+      esds));
+    final byte[] stbl = box("stbl", concat(
+      fullBox("stsd", 0, 0, concat(ints(1), mp4a)),
+      fullBox("stts", 0, 0, ints(0)),
+      fullBox("stsc", 0, 0, ints(0)),
+      fullBox("stsz", 0, 0, ints(0, 0)),
+      fullBox("stco", 0, 0, ints(0))));
+    final byte[] minf = box("minf", concat(
+      fullBox("smhd", 0, 0, ints(0)),
+      box("dinf", fullBox("dref", 0, 0, concat(ints(1), fullBox("url ", 0, 1, new byte[0])))),
+      stbl));
+    final byte[] mdia = box("mdia", concat(
+      // Language "und"
+      fullBox("mdhd", 0, 0, concat(ints(0, 0, sampleRate, 0), shorts(0x55C4, 0))),
+      fullBox("hdlr", 0, 0, concat(
+        ints(0), "soun".getBytes(StandardCharsets.US_ASCII), ints(0, 0, 0),
+        "SoundHandler\0".getBytes(StandardCharsets.US_ASCII))),
+      minf));
+    final byte[] tkhd = fullBox("tkhd", 0, 3, concat(
+      ints(0, 0, TRACK_ID, 0, 0, 0, 0),
+      shorts(0, 0, 0x0100, 0),
+      getMatrix(),
+      ints(0, 0)));
+    final byte[] mvhd = fullBox("mvhd", 0, 0, concat(
+      ints(0, 0, TIMESCALE, 0, 0x00010000),
+      shorts(0x0100, 0),
+      ints(0, 0),
+      getMatrix(),
+      ints(0, 0, 0, 0, 0, 0, TRACK_ID + 1)));
+    final byte[] mvex = box("mvex", fullBox("trex", 0, 0, ints(TRACK_ID, 1, SAMPLES, 0, 0)));
+    out.write(box("ftyp", concat(
+      "iso6".getBytes(StandardCharsets.US_ASCII),
+      ints(0),
+      "iso6isommp41M4A ".getBytes(StandardCharsets.US_ASCII))));
+    out.write(box("moov", concat(mvhd, box("trak", concat(tkhd, mdia)), mvex)));
+    Log.d(LOG_TAG, "MP4 init sent; sample rate/channels: " + sampleRate + "/" + channels);
+  }
+
+  // moof and mdat; no allocation
+  private void writeFragment() throws IOException {
+    if (sampleCount == 0) {
+      return;
+    }
+    final int trunSize = 20 + 8 * sampleCount;
+    final int trafSize = 8 + 16 + 20 + trunSize;
+    final int moofSize = 8 + 16 + trafSize;
+    byteArrayOutputStream.reset();
+    dataOutputStream.writeInt(moofSize);
+    dataOutputStream.writeBytes("moof");
+    dataOutputStream.writeInt(16);
+    dataOutputStream.writeBytes("mfhd");
+    dataOutputStream.writeInt(0);
+    dataOutputStream.writeInt(++sequenceNumber);
+    dataOutputStream.writeInt(trafSize);
+    dataOutputStream.writeBytes("traf");
+    // Default base is moof
+    dataOutputStream.writeInt(16);
+    dataOutputStream.writeBytes("tfhd");
+    dataOutputStream.writeInt(0x020000);
+    dataOutputStream.writeInt(TRACK_ID);
+    dataOutputStream.writeInt(20);
+    dataOutputStream.writeBytes("tfdt");
+    dataOutputStream.writeInt(0x01000000);
+    dataOutputStream.writeLong(decodeTime);
+    // Data offset, sample duration and size
+    dataOutputStream.writeInt(trunSize);
+    dataOutputStream.writeBytes("trun");
+    dataOutputStream.writeInt(0x000301);
+    dataOutputStream.writeInt(sampleCount);
+    dataOutputStream.writeInt(moofSize + 8);
+    for (int i = 0; i < sampleCount; i++) {
+      dataOutputStream.writeInt(SAMPLES);
+      dataOutputStream.writeInt(sampleSizes[i]);
+    }
+    dataOutputStream.writeInt(8 + mdatSize);
+    dataOutputStream.writeBytes("mdat");
+    byteArrayOutputStream.writeTo(out);
+    out.write(mdat, 0, mdatSize);
+    decodeTime += (long) sampleCount * SAMPLES;
+    sampleCount = 0;
+    mdatSize = 0;
+  }
+
+  @NonNull
+  private static byte[] getMatrix() {
+    return ints(0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000);
+  }
+
+  @NonNull
+  private static byte[] box(@NonNull String type, @NonNull byte[] payload) {
+    return concat(ints(8 + payload.length), type.getBytes(StandardCharsets.US_ASCII), payload);
+  }
+
+  @NonNull
+  private static byte[] fullBox(
+    @NonNull String type, int version, int flags, @NonNull byte[] payload) {
+    return box(type, concat(ints((version << 24) | flags), payload));
+  }
+
+  // MPEG-4 descriptor, size on one byte
+  @NonNull
+  private static byte[] descriptor(int tag, @NonNull byte[] payload) {
+    return concat(new byte[]{(byte) tag, (byte) payload.length}, payload);
+  }
+
+  @NonNull
+  private static byte[] ints(int... values) {
+    final byte[] result = new byte[4 * values.length];
+    for (int i = 0; i < values.length; i++) {
+      for (int j = 0; j < 4; j++) {
+        result[4 * i + j] = (byte) (values[i] >> (24 - 8 * j));
+      }
+    }
+    return result;
+  }
+
+  @NonNull
+  private static byte[] shorts(int... values) {
+    final byte[] result = new byte[2 * values.length];
+    for (int i = 0; i < values.length; i++) {
+      result[2 * i] = (byte) (values[i] >> 8);
+      result[2 * i + 1] = (byte) values[i];
+    }
+    return result;
+  }
+
+  @NonNull
+  private static byte[] concat(@NonNull byte[]... arrays) {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      result.write(array, 0, array.length);
+    }
+    return result.toByteArray();
+  }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Resolves radio URL to stream connection, through playlists if any.
+// Supported formats: M3U (extended or not), PLS, ASX and XSPF.
+// HLS playlist is not resolved: its connection is returned, as stream URL.
+// Format is sniffed from body; content type only tells whether body is worth sniffing.
+// Playlists are parsed on the fly, token by token, with bounded memory.
+// Entries are tried in order, so that a mirror down is skipped.
+// Failover is only done on connection: a stream ending early is reconnected by StreamHub;
+// if the cached entry then fails, playlist is resolved again.
+public class PlaylistResolver {
+  private static final String LOG_TAG = PlaylistResolver.class.getName();
+  private static final int SNIFF_SIZE = 512;
+  private static final int TOKEN_MAX = 2048; // chars
+  private static final int CANDIDATES_MAX = 32;
+  // Playlist may reference another playlist
+  private static final int DEPTH_MAX = 2;
+  private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+  private static final String[] PLAYLIST_CONTENT_TYPES = {
+    "audio/x-mpegurl",
+    "audio/mpegurl",
+    "application/x-mpegurl",
+    "application/vnd.apple.mpegurl",
+    "audio/x-scpls",
+    "audio/scpls",
+    "video/x-ms-asf",
+    "video/x-ms-asx",
+    "audio/x-ms-asx",
+    "application/xspf+xml"};
+  private static final String[] PLAYLIST_EXTENSIONS = {
+    ".m3u", ".m3u8", ".pls", ".asx", ".xspf"};
+
+  private PlaylistResolver() {
+  }
+
+  // First available stream; throws if none
+  @NonNull
+  public static HttpURLConnection connect(
+    @NonNull URL uRL,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer) throws IOException {
+    return connect(Collections.singletonList(uRL), httpURLConnectionConsumer, DEPTH_MAX, false);
+  }
+
+  // Same as connect(), but stream content is not requested: HEAD request.
+  // Playlists are still read. Some servers handle HEAD badly, so result may be an error.
+  @NonNull
+  public static HttpURLConnection head(
+    @NonNull URL uRL,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer) throws IOException {
+    return connect(Collections.singletonList(uRL), httpURLConnectionConsumer, DEPTH_MAX, true);
+  }
+
+  // MIME type of first available stream, null if none
+  @Nullable
+  public static String getStreamContentType(@NonNull URL uRL) {
+    HttpURLConnection httpURLConnection = null;
+    try {
+      httpURLConnection = connect(uRL, null);
+      final String contentType = httpURLConnection.getContentType();
+      return (contentType == null) ? null : contentType.split(";")[0];
+    } catch (IOException iOException) {
+      Log.i(LOG_TAG, "No stream found for: " + uRL, iOException);
+      return null;
+    } finally {
+      if (httpURLConnection != null) {
+        httpURLConnection.disconnect();
+      }
+    }
+  }
+
+  @NonNull
+  private static HttpURLConnection connect(
+    @NonNull List<URL> uRLs,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer,
+    int depth,
+    boolean isHead) throws IOException {
+    IOException failure = null;
+    for (URL uRL : uRLs) {
+      HttpURLConnection httpURLConnection = null;
+      try {
+        httpURLConnection = getHttpURLConnection(uRL, httpURLConnectionConsumer, isHead);
+        if (!isPlaylistContent(httpURLConnection)) {
+          return httpURLConnection;
+        }
+        // Playlist has to be read
+        if (isHead) {
+          RadioURL.release(httpURLConnection);
+          httpURLConnection = getHttpURLConnection(
+            httpURLConnection.getURL(), httpURLConnectionConsumer, false);
+        }
+        final BufferedInputStream inputStream =
+          new BufferedInputStream(httpURLConnection.getInputStream(), SNIFF_SIZE);
+        final Format format = sniff(inputStream);
+        if ((format == Format.NONE) || (format == Format.HLS)) {
+          return reopen(httpURLConnection, format, httpURLConnectionConsumer, isHead);
+        }
+        final List<URL> candidates = getCandidates(httpURLConnection, inputStream, format);
+        // Playlist fully read, connection can be reused
+        RadioURL.release(httpURLConnection);
+        httpURLConnection = null;
+        Log.d(LOG_TAG, "Playlist found: " + uRL + "; entries: " + candidates.size());
+        if (depth == 0) {
+          throw new IOException("Too many nested playlists");
+        }
+        return connect(candidates, httpURLConnectionConsumer, depth - 1, isHead);
+      } catch (IOException iOException) {
+        Log.d(LOG_TAG, "Entry failed: " + uRL, iOException);
+        if (httpURLConnection != null) {
+          httpURLConnection.disconnect();
+        }
+        failure = iOException;
+      }
+    }
+    throw (failure == null) ? new IOException("Empty playlist") : failure;
+  }
+
+  // Only successful connection is returned
+  @NonNull
+  private static HttpURLConnection getHttpURLConnection(
+    @NonNull URL uRL,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer,
+    boolean isHead) throws IOException {
+    final HttpURLConnection httpURLConnection = new RadioURL(uRL).getActualHttpURLConnection(
+      isHead ?
+        connection -> {
+          if (httpURLConnectionConsumer != null) {
+            httpURLConnectionConsumer.accept(connection);
+          }
+          connection.setRequestMethod("HEAD");
+        } :
+        httpURLConnectionConsumer);
+    final int responseCode = httpURLConnection.getResponseCode();
+    if (responseCode / 100 != 2) {
+      httpURLConnection.disconnect();
+      throw new IOException("Connection refused: " + responseCode);
+    }
+    return httpURLConnection;
+  }
+
+  // Sniffed bytes are lost for connection input stream, so that a new connection is opened
+  // for stream (e.g. ICY stream, whose metadata alignment would be broken).
+  // HLS connection is kept, as it is only used for its URL.
+  @NonNull
+  private static HttpURLConnection reopen(
+    @NonNull HttpURLConnection httpURLConnection,
+    @NonNull Format format,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer,
+    boolean isHead) throws IOException {
+    if (format == Format.HLS) {
+      // Media playlist is the stream, read through HlsStream
+      Log.d(LOG_TAG, "HLS playlist found: " + httpURLConnection.getURL());
+      if (HlsStream.isHls(httpURLConnection)) {
+        return httpURLConnection;
+      }
+    } else {
+      // Unexpected content; stream is kept as is
+      Log.i(LOG_TAG, "Content not recognized as playlist: " + httpURLConnection.getURL());
+    }
+    httpURLConnection.disconnect();
+    return getHttpURLConnection(httpURLConnection.getURL(), httpURLConnectionConsumer, isHead);
+  }
+
+  @NonNull
+  private static List<URL> getCandidates(
+    @NonNull HttpURLConnection httpURLConnection,
+    @NonNull BufferedInputStream inputStream,
+    @NonNull Format format) throws IOException {
+    final Reader reader =
+      new InputStreamReader(inputStream, getCharset(httpURLConnection.getContentType()));
+    final List<URL> candidates = parse(format, reader, httpURLConnection.getURL());
+    if (candidates.isEmpty()) {
+      throw new IOException("No entry in playlist");
+    }
+    return candidates;
+  }
+
+  // Stream content types are never sniffed
+  private static boolean isPlaylistContent(@NonNull HttpURLConnection httpURLConnection) {
+    String contentType = httpURLConnection.getContentType();
+    contentType = (contentType == null) ?
+      "" : contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+    for (String playlistContentType : PLAYLIST_CONTENT_TYPES) {
+      if (contentType.equals(playlistContentType)) {
+        return true;
+      }
+    }
+    if (contentType.startsWith("text/") || contentType.endsWith("/xml")) {
+      return true;
+    }
+    // No reliable content type, rely on file extension
+    if (contentType.isEmpty() || contentType.equals("application/octet-stream")) {
+      final String path = httpURLConnection.getURL().getPath().toLowerCase(Locale.ROOT);
+      for (String playlistExtension : PLAYLIST_EXTENSIONS) {
+        if (path.endsWith(playlistExtension)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Body start is read, then given back to stream (but BOM)
+  @NonNull
+  private static Format sniff(@NonNull BufferedInputStream inputStream) throws IOException {
+    final byte[] bytes = new byte[SNIFF_SIZE];
+    inputStream.mark(SNIFF_SIZE);
+    int size = 0;
+    int length;
+    while ((size < SNIFF_SIZE) &&
+      ((length = inputStream.read(bytes, size, SNIFF_SIZE - size)) > 0)) {
+      size += length;
+    }
+    inputStream.reset();
+    // UTF-8 BOM is skipped
+    int start = 0;
+    if ((size >= UTF8_BOM.length) &&
+      (bytes[0] == UTF8_BOM[0]) && (bytes[1] == UTF8_BOM[1]) && (bytes[2] == UTF8_BOM[2])) {
+      start = UTF8_BOM.length;
+      if (inputStream.skip(start) != start) {
+        throw new IOException("sniff: unable to skip BOM");
+      }
+    }
+    final String head = new String(bytes, start, size - start, StandardCharsets.ISO_8859_1)
+      .trim()
+      .toLowerCase(Locale.ROOT);
+    if (head.startsWith("#extm3u")) {
+      return head.contains("#ext-x-") ? Format.HLS : Format.M3U;
+    }
+    if (head.startsWith("[playlist]")) {
+      return Format.PLS;
+    }
+    if (head.startsWith("<")) {
+      if (head.contains("<asx")) {
+        return Format.ASX;
+      }
+      if (head.contains("<playlist")) {
+        return Format.XSPF;
+      }
+    }
+    return isM3u(head) ? Format.M3U : Format.NONE;
+  }
+
+  // Plain M3U: only comment and entry lines; entries may be relative.
+  // Last line may be truncated by sniffing.
+  private static boolean isM3u(@NonNull String head) {
+    boolean isM3u = false;
+    for (String line : head.split("\n")) {
+      line = line.trim();
+      if (line.startsWith("#")) {
+        isM3u = true;
+      } else if (!line.isEmpty()) {
+        // Not text
+        if (line.startsWith("<") || line.contains(" ") || line.contains("\t")) {
+          return false;
+        }
+        isM3u = true;
+      }
+    }
+    return isM3u;
+  }
+
+  @NonNull
+  private static Charset getCharset(@Nullable String contentType) {
+    if (contentType != null) {
+      for (String parameter : contentType.split(";")) {
+        final String[] keyValue = parameter.trim().split("=", 2);
+        if ((keyValue.length == 2) && keyValue[0].trim().equalsIgnoreCase("charset")) {
+          try {
+            return Charset.forName(keyValue[1].trim().replace("\"", ""));
+          } catch (IllegalArgumentException illegalArgumentException) {
+            Log.w(LOG_TAG, "Unknown charset: " + keyValue[1]);
+          }
+        }
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  // Lines for M3U and PLS; XML formats are split on tag start
+  @NonNull
+  private static List<URL> parse(@NonNull Format format, @NonNull Reader reader, @NonNull URL base)
+    throws IOException {
+    final List<URL> candidates = new ArrayList<>();
+    final boolean isXml = (format == Format.ASX) || (format == Format.XSPF);
+    final StringBuilder token = new StringBuilder();
+    while ((candidates.size() < CANDIDATES_MAX) && readToken(reader, isXml ? '<' : '\n', token)) {
+      final String entry;
+      switch (format) {
+        case M3U:
+          entry = parseM3u(token);
+          break;
+        case PLS:
+          entry = parsePls(token);
+          break;
+        case ASX:
+          entry = parseAsx(token);
+          break;
+        default:
+          entry = parseXspf(token);
+      }
+      if (entry != null) {
+        try {
+          // Entry may be relative
+          final URL uRL = new URL(base, entry);
+          if ((uRL.getProtocol().equals("http") || uRL.getProtocol().equals("https")) &&
+            !candidates.contains(uRL)) {
+            candidates.add(uRL);
+          }
+        } catch (MalformedURLException malformedURLException) {
+          Log.d(LOG_TAG, "Malformed playlist entry: " + entry);
+        }
+      }
+    }
+    return candidates;
+  }
+
+  // Reads up to delimiter or end of stream; over-long tokens are truncated.
+  // Returns false at end of stream.
+  private static boolean readToken(
+    @NonNull Reader reader, char delimiter, @NonNull StringBuilder token) throws IOException {
+    token.setLength(0);
+    int c;
+    while (((c = reader.read()) >= 0) && (c != delimiter)) {
+      if (token.length() < TOKEN_MAX) {
+        token.append((char) c);
+      }
+    }
+    return (c >= 0) || (token.length() > 0);
+  }
+
+  // Comments and directives start with #
+  @Nullable
+  private static String parseM3u(@NonNull StringBuilder token) {
+    final String line = token.toString().trim();
+    return (line.isEmpty() || line.startsWith("#")) ? null : line;
+  }
+
+  // FileN=URL
+  @Nullable
+  private static String parsePls(@NonNull StringBuilder token) {
+    final String line = token.toString().trim();
+    final int index = line.indexOf('=');
+    return ((index > 0) && line.substring(0, index).trim().toLowerCase(Locale.ROOT)
+      .startsWith("file")) ? line.substring(index + 1).trim() : null;
+  }
+
+  // <ref href="URL"/> or <entryref href="URL"/>, case insensitive
+  @Nullable
+  private static String parseAsx(@NonNull StringBuilder token) {
+    final String tag = token.toString();
+    final String lowerTag = tag.toLowerCase(Locale.ROOT);
+    if (!lowerTag.startsWith("ref") && !lowerTag.startsWith("entryref")) {
+      return null;
+    }
+    final int index = lowerTag.indexOf("href");
+    if (index < 0) {
+      return null;
+    }
+    int start = tag.indexOf('=', index) + 1;
+    while ((start > 0) && (start < tag.length()) && Character.isWhitespace(tag.charAt(start))) {
+      start++;
+    }
+    if ((start <= 0) || (start >= tag.length())) {
+      return null;
+    }
+    final char quote = tag.charAt(start);
+    if ((quote != '"') && (quote != '\'')) {
+      return null;
+    }
+    final int end = tag.indexOf(quote, start + 1);
+    return (end < 0) ? null : unescapeXml(tag.substring(start + 1, end).trim());
+  }
+
+  // <location>URL</location>
+  @Nullable
+  private static String parseXspf(@NonNull StringBuilder token) {
+    final String tag = token.toString();
+    if (!tag.startsWith("location>")) {
+      return null;
+    }
+    final String location = tag.substring("location>".length()).trim();
+    return location.isEmpty() ? null : unescapeXml(location);
+  }
+
+  @NonNull
+  private static String unescapeXml(@NonNull String string) {
+    return string
+      .replace("&lt;", "<")
+      .replace("&gt;", ">")
+      .replace("&quot;", "\"")
+      .replace("&apos;", "'")
+      .replace("&amp;", "&");
+  }
+
+  private enum Format {
+    NONE, M3U, HLS, PLS, ASX, XSPF
+  }
+}
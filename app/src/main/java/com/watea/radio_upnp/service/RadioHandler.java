@@ -29,50 +29,88 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.watea.radio_upnp.BuildConfig;
 import com.watea.radio_upnp.model.Radio;
 
+import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 public class RadioHandler extends AbstractHandler {
   private static final String LOG_TAG = RadioHandler.class.getName();
-  private static final int METADATA_MAX = 256;
   private static final String PARAMS = "params";
   private static final String SEPARATOR = "_";
-  private static final Pattern PATTERN_ICY = Pattern.compile(".*StreamTitle='([^;]*)';.*");
+  private static final int PREFETCH_DURATION = 4; // s
+  private static final int PREPARE_TIMEOUT = 20; // s
+  private static final int RETRY_AFTER = 5; // s
+  // Warm radios are released if not renewed
+  private static final int WARM_UP_TIMEOUT = 60; // s
+  private static final int WARM_UP_RADIOS_MAX = 2;
+  private static final String WARM_UP_LOCK_KEY = "warm_up";
   @NonNull
   private final String userAgent;
   @NonNull
   private final Callback callback;
   @NonNull
   private final Listener listener;
+  @NonNull
+  private final ResolvedUrlCache resolvedUrlCache;
+  private final Map<Long, StreamHub> streamHubs = new HashMap<>();
+  // Clients registered ahead of LAN request, per lock key; guarded by streamHubs
+  private final Map<String, StreamHub.Cursor> preparedCursors = new HashMap<>();
+  private final ScheduledExecutorService scheduler =
+    Executors.newSingleThreadScheduledExecutor();
+  // Passive clients keeping radios connected ahead of zapping, per radio ID;
+  // guarded by streamHubs
+  private final Map<Long, StreamHub.Cursor> warmUpCursors = new HashMap<>();
+  private final ExecutorService warmUpExecutor = Executors.newCachedThreadPool();
+  // Guarded by streamHubs
+  @Nullable
+  private ScheduledFuture<?> warmUpTimeout = null;
+  // Each stream holds a server thread, or pump resources in asynchronous mode
+  @NonNull
+  private final Semaphore streamSlots;
+  // Null if blocking mode
+  @Nullable
+  private final StreamPump streamPump;
+  // AAC may be remuxed to MP4
+  private final boolean isRemuxing;
   @Nullable
   private Controller controller = null;
+  private boolean isStopped = false;
 
   public RadioHandler(
     @NonNull String userAgent,
     @NonNull Callback callback,
-    @NonNull Listener listener) {
+    @NonNull Listener listener,
+    @NonNull ResolvedUrlCache resolvedUrlCache,
+    int streamsMax,
+    boolean isAsync,
+    boolean isRemuxing) {
     super();
     this.userAgent = userAgent;
     this.callback = callback;
     this.listener = listener;
+    this.resolvedUrlCache = resolvedUrlCache;
+    streamSlots = new Semaphore(streamsMax);
+    streamPump = isAsync ? new StreamPump() : null;
+    this.isRemuxing = isRemuxing;
   }
 
   // Add ID and lock key to given URI as query parameter
@@ -86,8 +124,166 @@ public class RadioHandler extends AbstractHandler {
       .build();
   }
 
-  public void setController(@Nullable Controller controller) {
+  // Streaming threads are woken up to check new controller
+  public synchronized void setController(@Nullable Controller controller) {
     this.controller = controller;
+    notifyAll();
+    wakeUpStreamPump();
+    setStreamHubsPaused();
+  }
+
+  // Shall be called on each pause/resume of controller
+  public synchronized void onControllerStateChange() {
+    notifyAll();
+    wakeUpStreamPump();
+    setStreamHubsPaused();
+  }
+
+  // Running streams only
+  @NonNull
+  public Map<Long, Integer> getFillLevels() {
+    final Map<Long, Integer> fillLevels = new HashMap<>();
+    synchronized (streamHubs) {
+      for (Map.Entry<Long, StreamHub> entry : streamHubs.entrySet()) {
+        fillLevels.put(entry.getKey(), entry.getValue().getFillLevel());
+      }
+    }
+    return fillLevels;
+  }
+
+  // Release all streaming threads
+  public synchronized void stopStreaming() {
+    isStopped = true;
+    notifyAll();
+    cancelWarmUp();
+    warmUpExecutor.shutdownNow();
+    scheduler.shutdownNow();
+    if (streamPump != null) {
+      streamPump.stop();
+    }
+  }
+
+  // Blocking. Connects radio ahead of LAN client request; returns MIME type, null if failed.
+  // Connection and received data are kept for the first GET with same lock key,
+  // at most PREPARE_TIMEOUT.
+  @Nullable
+  public String prepare(@NonNull Radio radio, @NonNull String lockKey) {
+    final StreamHub streamHub;
+    final StreamHub.Cursor cursor;
+    synchronized (streamHubs) {
+      streamHub = getStreamHub(radio);
+      cursor = streamHub.addClient(lockKey);
+      final StreamHub.Cursor previousCursor = preparedCursors.put(lockKey, cursor);
+      if (previousCursor != null) {
+        releaseClient(previousCursor);
+      }
+    }
+    try {
+      streamHub.connect();
+      scheduler.schedule(
+        () -> {
+          synchronized (streamHubs) {
+            if (preparedCursors.get(lockKey) == cursor) {
+              Log.d(LOG_TAG, "Prepared connection not used: " + radio.getName());
+              preparedCursors.remove(lockKey);
+              releaseClient(cursor);
+            }
+          }
+        },
+        PREPARE_TIMEOUT,
+        TimeUnit.SECONDS);
+      return streamHub.getContentType();
+    } catch (Exception exception) {
+      Log.d(LOG_TAG, "prepare: connection failed for " + radio.getName(), exception);
+      // Not released if already taken over by LAN client
+      synchronized (streamHubs) {
+        if (preparedCursors.get(lockKey) == cursor) {
+          preparedCursors.remove(lockKey);
+          releaseClient(cursor);
+        }
+      }
+      return null;
+    }
+  }
+
+  // Connects given radios ahead of zapping, at most WARM_UP_RADIOS_MAX.
+  // Each keeps its ring buffer filled with the most recent data, rolling over, until a LAN
+  // client comes or WARM_UP_TIMEOUT is reached without new call.
+  // Other warm radios are released; current one after PREPARE_TIMEOUT, as its LAN request
+  // may come later.
+  public void warmUp(@NonNull Radio currentRadio, @NonNull List<Radio> radios) {
+    // Not under streamHubs lock, as stopStreaming() locks in reverse order
+    if (isStreamingStopped()) {
+      return;
+    }
+    final List<StreamHub.Cursor> newCursors = new ArrayList<>();
+    synchronized (streamHubs) {
+      final List<Long> radioIds = new ArrayList<>();
+      for (Radio radio : radios) {
+        if (!radio.getId().equals(currentRadio.getId()) && !radioIds.contains(radio.getId()) &&
+          (radioIds.size() < WARM_UP_RADIOS_MAX)) {
+          radioIds.add(radio.getId());
+          if (!warmUpCursors.containsKey(radio.getId())) {
+            final StreamHub.Cursor cursor = getStreamHub(radio).addClient(WARM_UP_LOCK_KEY, true);
+            warmUpCursors.put(radio.getId(), cursor);
+            newCursors.add(cursor);
+          }
+        }
+      }
+      for (Long radioId : new ArrayList<>(warmUpCursors.keySet())) {
+        if (!radioIds.contains(radioId)) {
+          final StreamHub.Cursor cursor = warmUpCursors.remove(radioId);
+          assert cursor != null;
+          if (radioId.equals(currentRadio.getId())) {
+            scheduler.schedule(
+              () -> {
+                synchronized (streamHubs) {
+                  releaseClient(cursor);
+                }
+              },
+              PREPARE_TIMEOUT,
+              TimeUnit.SECONDS);
+          } else {
+            releaseClient(cursor);
+          }
+        }
+      }
+      if (warmUpTimeout != null) {
+        warmUpTimeout.cancel(false);
+      }
+      warmUpTimeout = scheduler.schedule(this::cancelWarmUp, WARM_UP_TIMEOUT, TimeUnit.SECONDS);
+    }
+    for (StreamHub.Cursor cursor : newCursors) {
+      warmUpExecutor.execute(() -> {
+        try {
+          cursor.getStreamHub().connect();
+        } catch (Exception exception) {
+          Log.d(LOG_TAG, "warmUp: connection failed", exception);
+          synchronized (streamHubs) {
+            if (warmUpCursors.values().remove(cursor)) {
+              releaseClient(cursor);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  // All warm radios are released
+  public void cancelWarmUp() {
+    synchronized (streamHubs) {
+      if (!warmUpCursors.isEmpty()) {
+        Log.d(LOG_TAG, "Warm up cancelled");
+      }
+      for (StreamHub.Cursor cursor : warmUpCursors.values()) {
+        releaseClient(cursor);
+      }
+      warmUpCursors.clear();
+      if (warmUpTimeout != null) {
+        warmUpTimeout.cancel(false);
+        warmUpTimeout = null;
+      }
+    }
   }
 
   @Override
@@ -124,165 +320,335 @@ public class RadioHandler extends AbstractHandler {
       "handleConnection: entering for " + method + " " + radio.getName() + "; " + lockKey);
     // For further use
     final boolean isGet = (method != null) && method.equals("GET");
-    // Create WAN connection
-    HttpURLConnection httpURLConnection = null;
-    try (OutputStream outputStream = response.getOutputStream()) {
-      // Accept M3U format
-      httpURLConnection = new RadioURL(radio.getUrlFromM3u()).getActualHttpURLConnection(
-        connection -> {
-          // Default request method GET is used as some radio server handles HEAD too bad
-          connection.setRequestProperty("User-Agent", userAgent);
-          // ICY request
-          if (isGet) {
-            connection.setRequestProperty("Icy-Metadata", "1");
-          }
-        });
-      Log.d(LOG_TAG, "Connected to radio URL");
-      // Response to LAN
-      for (String header : httpURLConnection.getHeaderFields().keySet()) {
-        // ICY data not forwarded, as only used here
-        if ((header != null) && !header.toLowerCase().startsWith("icy-")) {
-          String value = httpURLConnection.getHeaderField(header);
-          if (value != null) {
-            response.setHeader(header, value);
-          }
+    // Range is not supported on live streams; whole stream is sent
+    if (request.getHeader("Range") != null) {
+      Log.d(LOG_TAG, "Range ignored: " + request.getHeader("Range"));
+    }
+    // HEAD answered without WAN connection, if stream is known
+    if (!isGet && handleHead(response, radio, controller)) {
+      Log.d(LOG_TAG, "handleConnection: HEAD answered from known stream data");
+      return;
+    }
+    if (isGet && !streamSlots.tryAcquire()) {
+      Log.i(LOG_TAG, "Too many streams; request rejected");
+      response.setHeader("Retry-After", Integer.toString(RETRY_AFTER));
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    if (isGet) {
+      Metrics.ACTIVE_STREAMS.incrementAndGet();
+    }
+    // Join WAN connection, shared between LAN clients
+    final StreamHub streamHub;
+    final StreamHub.Cursor cursor;
+    synchronized (streamHubs) {
+      streamHub = getStreamHub(radio);
+      // First GET takes over prepared client, so that data already received is sent
+      final StreamHub.Cursor preparedCursor = isGet ? preparedCursors.remove(lockKey) : null;
+      if ((preparedCursor != null) && (preparedCursor.getStreamHub() == streamHub)) {
+        Log.d(LOG_TAG, "Prepared connection used");
+        cursor = preparedCursor;
+      } else {
+        if (preparedCursor != null) {
+          releaseClient(preparedCursor);
         }
+        cursor = streamHub.addClient(lockKey);
       }
-      if (controller instanceof UpnpController) {
-        // DLNA header, as found in documentation, not sure it is useful (should not)
-        response.setHeader("contentFeatures.dlna.org", "*");
-        response.setHeader("transferMode.dlna.org", "Streaming");
-        // Force ContentType as some devices require it
-        String contentType = ((UpnpController) controller).getContentType();
-        if (contentType == null) {
-          // Should not happen
-          Log.e(LOG_TAG, "Internal failure; ContentType is null");
-        } else {
-          Log.d(LOG_TAG, "UPnP connection; ContentType forced: " + contentType);
-          response.setContentType(contentType);
-        }
+    }
+    OutputStream outputStream = null;
+    boolean isAsync = false;
+    try {
+      outputStream = response.getOutputStream();
+      streamHub.connect();
+      // Response to LAN
+      for (Map.Entry<String, String> header : streamHub.getHeaders().entrySet()) {
+        response.setHeader(header.getKey(), header.getValue());
       }
+      setLanHeaders(response, controller);
       response.setStatus(HttpServletResponse.SC_OK);
       response.flushBuffer();
       Log.d(LOG_TAG, "Response sent to LAN client");
       if (isGet) {
-        // Try to find charset
-        final String contentEncoding = httpURLConnection.getContentEncoding();
-        Charset charset = (contentEncoding == null) ?
-          Charset.defaultCharset() : Charset.forName(contentEncoding);
-        // Find metadata place, 0 if undefined
-        int metadataOffset = 0;
-        List<String> headerMeta = httpURLConnection.getHeaderFields().get("icy-metaint");
-        try {
-          metadataOffset = (headerMeta == null) ? 0 : Integer.parseInt(headerMeta.get(0));
-        } catch (NumberFormatException numberFormatException) {
-          Log.w(LOG_TAG, "Malformed header icy-metaint");
-        }
-        if (metadataOffset > 0) {
-          Log.i(LOG_TAG, "Metadata expected at index: " + metadataOffset);
-        } else if (metadataOffset == 0) {
-          Log.i(LOG_TAG, "No metadata expected");
+        outputStream = getLanOutputStream(outputStream, streamHub.getContentType(), controller);
+        // Send current information
+        cursor.tellListener();
+        if ((streamPump != null) && request.isAsyncSupported()) {
+          // Server thread is released, stream pump takes over
+          final AsyncContext asyncContext = request.startAsync();
+          asyncContext.setTimeout(0);
+          streamPump.add(new AsyncStream(
+            asyncContext,
+            Request.getRequest(request).getConnection().getEndPoint(),
+            streamHub,
+            cursor,
+            outputStream,
+            controller));
+          isAsync = true;
+          Log.d(LOG_TAG, "Stream handled asynchronously");
         } else {
-          metadataOffset = 0;
-          Log.w(LOG_TAG, "Wrong metadata value");
+          final byte[] buffer = StreamHub.acquireBuffer();
+          try {
+            handleStreaming(streamHub, cursor, outputStream, buffer, controller);
+          } finally {
+            StreamHub.releaseBuffer(buffer);
+          }
         }
-        handleStreaming(
-          httpURLConnection.getInputStream(),
-          charset.newDecoder(),
-          metadataOffset,
-          outputStream,
-          httpURLConnection.getHeaderField("icy-br"),
-          lockKey,
-          controller);
       }
     } catch (Exception exception) {
       Log.d(LOG_TAG, "handleConnection error", exception);
     } finally {
-      if (httpURLConnection != null) {
-        httpURLConnection.disconnect();
+      if (!isAsync) {
+        release(cursor, outputStream, isGet);
       }
     }
     Log.d(LOG_TAG, "handleConnection: leaving");
   }
 
-  // Forward stream data and handle metadata
-  // metadataOffset = 0 if no metadata
+  // Content type from running stream, else from cache. Returns false if unknown.
+  private boolean handleHead(
+    @NonNull HttpServletResponse response,
+    @NonNull Radio radio,
+    @NonNull Controller controller) {
+    String contentType = null;
+    synchronized (streamHubs) {
+      final StreamHub streamHub = streamHubs.get(radio.getId());
+      if ((streamHub != null) && !streamHub.isClosed()) {
+        contentType = streamHub.getContentType();
+      }
+    }
+    if (contentType == null) {
+      final ResolvedUrlCache.Entry entry = resolvedUrlCache.get(radio);
+      contentType = (entry == null) ? null : entry.getContentType();
+    }
+    if (contentType == null) {
+      return false;
+    }
+    response.setContentType(contentType);
+    // May be forced
+    setLanHeaders(response, controller);
+    response.setStatus(HttpServletResponse.SC_OK);
+    return true;
+  }
+
+  private void setLanHeaders(
+    @NonNull HttpServletResponse response, @NonNull Controller controller) {
+    // Live stream
+    response.setHeader("Accept-Ranges", "none");
+    if (controller instanceof UpnpController) {
+      // DLNA header, as found in documentation, not sure it is useful (should not)
+      response.setHeader("contentFeatures.dlna.org", "*");
+      response.setHeader("transferMode.dlna.org", "Streaming");
+      // Force ContentType as some devices require it
+      String contentType = ((UpnpController) controller).getContentType();
+      if (contentType == null) {
+        // Should not happen
+        Log.e(LOG_TAG, "Internal failure; ContentType is null");
+      } else {
+        Log.d(LOG_TAG, "UPnP connection; ContentType forced: " + contentType);
+        response.setContentType(contentType);
+      }
+    }
+  }
+
+  // Stream is repackaged if renderer was given another MIME type than upstream one,
+  // if allowed
+  @NonNull
+  private OutputStream getLanOutputStream(
+    @NonNull OutputStream outputStream,
+    @Nullable String contentType,
+    @NonNull Controller controller) {
+    if (isRemuxing && (controller instanceof UpnpController)) {
+      final String lanContentType = ((UpnpController) controller).getContentType();
+      if (Mp4Remuxer.isHandling(contentType, lanContentType)) {
+        Log.d(LOG_TAG, "Stream remuxed: " + contentType + " => " + lanContentType);
+        return new Mp4Remuxer(outputStream);
+      }
+    }
+    return outputStream;
+  }
+
+  // End of LAN client request
+  private void release(
+    @NonNull StreamHub.Cursor cursor, @Nullable OutputStream outputStream, boolean isGet) {
+    if (outputStream != null) {
+      try {
+        outputStream.close();
+      } catch (IOException iOException) {
+        Log.d(LOG_TAG, "release: error closing LAN stream", iOException);
+      }
+    }
+    synchronized (streamHubs) {
+      releaseClient(cursor);
+    }
+    if (isGet) {
+      Metrics.ACTIVE_STREAMS.decrementAndGet();
+      streamSlots.release();
+    }
+  }
+
+  // Shall be called under streamHubs lock
+  @NonNull
+  private StreamHub getStreamHub(@NonNull Radio radio) {
+    final StreamHub streamHub = streamHubs.get(radio.getId());
+    if ((streamHub != null) && !streamHub.isClosed()) {
+      return streamHub;
+    }
+    final StreamHub newStreamHub =
+      new StreamHub(radio, userAgent, listener, resolvedUrlCache, PREFETCH_DURATION);
+    if (streamPump != null) {
+      // Only sessions of this hub are woken up
+      newStreamHub.setDataCallback(() -> streamPump.wakeUp(newStreamHub));
+    }
+    streamHubs.put(radio.getId(), newStreamHub);
+    return newStreamHub;
+  }
+
+  // Streams of current controller only are served: all are paused with it.
+  // Shall be called under lock.
+  private void setStreamHubsPaused() {
+    final boolean isPaused = (controller != null) && controller.isPaused();
+    synchronized (streamHubs) {
+      for (StreamHub streamHub : streamHubs.values()) {
+        streamHub.setPaused(isPaused);
+      }
+    }
+  }
+
+  private void wakeUpStreamPump() {
+    if (streamPump != null) {
+      streamPump.wakeUp();
+    }
+  }
+
+  private synchronized boolean isStreamingStopped() {
+    return isStopped;
+  }
+
+  private synchronized boolean isCurrent(@NonNull Controller controller) {
+    return !isStopped && (controller == this.controller);
+  }
+
+  // Shall be called under streamHubs lock
+  private void releaseClient(@NonNull StreamHub.Cursor cursor) {
+    final StreamHub streamHub = cursor.getStreamHub();
+    streamHub.removeClient(cursor);
+    if (streamHub.isClosed()) {
+      streamHubs.values().remove(streamHub);
+    }
+  }
+
+  // Forward shared stream data to LAN client
   private void handleStreaming(
-    @NonNull final InputStream inputStream,
-    @NonNull final CharsetDecoder charsetDecoder,
-    final int metadataOffset,
+    @NonNull final StreamHub streamHub,
+    @NonNull final StreamHub.Cursor cursor,
     @NonNull final OutputStream outputStream,
-    @Nullable final String rate,
-    @NonNull final String lockKey,
+    @NonNull final byte[] buffer,
     @NonNull final Controller controller) throws IOException {
     Log.d(LOG_TAG, "handleStreaming: entering");
-    // Send rate
-    listener.onNewInformation("", rate, lockKey);
-    byte[] buffer = new byte[1];
-    ByteBuffer metadataBuffer = ByteBuffer.allocate(METADATA_MAX);
-    int metadataBlockBytesRead = 0;
-    int metadataSize = 0;
-    // Stop if not current controller
-    while (controller == this.controller) {
-      // Do not read if paused
-      if (!controller.isPaused()) {
-        int readResult = inputStream.read(buffer);
-        if (readResult < 0) {
-          Log.d(LOG_TAG, "No more data to read");
-          break;
-        }
-        if (readResult > 0) {
-          // Only stream data are transferred
-          if ((metadataOffset == 0) || (++metadataBlockBytesRead <= metadataOffset)) {
-            outputStream.write(buffer);
-          } else {
-            // Metadata: look for title information
-            int metadataIndex = metadataBlockBytesRead - metadataOffset - 1;
-            // First byte gives size (16 bytes chunks) to read for metadata
-            if (metadataIndex == 0) {
-              metadataSize = buffer[0] * 16;
-              metadataBuffer.clear();
-            } else if (metadataIndex <= METADATA_MAX) {
-              // Other bytes are metadata
-              metadataBuffer.put(buffer[0]);
-            }
-            // End of metadata, extract pattern
-            if (metadataIndex == metadataSize) {
-              CharBuffer metadata = null;
-              metadataBuffer.flip();
-              // Exception blocked on metadata
-              try {
-                metadata = charsetDecoder.decode(metadataBuffer);
-              } catch (Exception exception) {
-                if (BuildConfig.DEBUG) {
-                  Log.w(LOG_TAG, "Error decoding metadata", exception);
-                }
-              }
-              if ((metadata != null) && (metadata.length() > 0)) {
-                if (BuildConfig.DEBUG) {
-                  Log.d(LOG_TAG, "Size|Metadata: " + metadataSize + "|" + metadata);
-                }
-                Matcher matcher = PATTERN_ICY.matcher(metadata);
-                // Tell listener
-                String information =
-                  (matcher.find() && (matcher.groupCount() > 0)) ? matcher.group(1) : null;
-                if (information != null) {
-                  listener.onNewInformation(information, rate, lockKey);
-                }
-              }
-              metadataBlockBytesRead = 0;
-            }
-          }
-        }
+    // Stop if not current controller; do not read if paused
+    while (waitWhilePaused(controller)) {
+      final int readResult = streamHub.read(cursor, buffer);
+      if (readResult < 0) {
+        Log.d(LOG_TAG, "No more data to read");
+        break;
       }
+      outputStream.write(buffer, 0, readResult);
     }
     Log.d(LOG_TAG, "handleStreaming: leaving");
   }
 
+  // Blocking while controller is paused.
+  // Returns false if streaming shall stop: controller is no more current or handler stopped.
+  private synchronized boolean waitWhilePaused(@NonNull Controller controller) {
+    try {
+      while (!isStopped && (controller == this.controller) && controller.isPaused()) {
+        wait();
+      }
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !isStopped && (controller == this.controller);
+  }
+
+  // Stream of an asynchronous request, served by stream pump
+  private class AsyncStream implements StreamPump.Session {
+    @NonNull
+    private final AsyncContext asyncContext;
+    // Its idle time bounds blocking writes
+    @NonNull
+    private final EndPoint endPoint;
+    private final int maxIdleTime;
+    @NonNull
+    private final StreamHub streamHub;
+    @NonNull
+    private final StreamHub.Cursor cursor;
+    @NonNull
+    private final OutputStream outputStream;
+    @NonNull
+    private final Controller controller;
+
+    private AsyncStream(
+      @NonNull AsyncContext asyncContext,
+      @NonNull EndPoint endPoint,
+      @NonNull StreamHub streamHub,
+      @NonNull StreamHub.Cursor cursor,
+      @NonNull OutputStream outputStream,
+      @NonNull Controller controller) {
+      this.asyncContext = asyncContext;
+      this.endPoint = endPoint;
+      maxIdleTime = endPoint.getMaxIdleTime();
+      this.streamHub = streamHub;
+      this.cursor = cursor;
+      this.outputStream = outputStream;
+      this.controller = controller;
+    }
+
+    // Same rules as handleStreaming, without waiting
+    @Override
+    public int pump(@NonNull byte[] buffer) throws IOException {
+      if (!isCurrent(controller)) {
+        return -1;
+      }
+      if (controller.isPaused()) {
+        return 0;
+      }
+      final int readResult = streamHub.read(cursor, buffer, false);
+      if (readResult > 0) {
+        // Connection is closed if client takes no data meanwhile
+        endPoint.setMaxIdleTime(StreamPump.WRITE_TIMEOUT);
+        try {
+          outputStream.write(buffer, 0, readResult);
+        } finally {
+          endPoint.setMaxIdleTime(maxIdleTime);
+        }
+      }
+      return readResult;
+    }
+
+    @NonNull
+    @Override
+    public Object getSource() {
+      return streamHub;
+    }
+
+    @Override
+    public void close() {
+      Log.d(LOG_TAG, "Asynchronous stream over");
+      release(cursor, outputStream, true);
+      try {
+        asyncContext.complete();
+      } catch (IllegalStateException illegalStateException) {
+        Log.d(LOG_TAG, "Asynchronous request already over", illegalStateException);
+      }
+    }
+  }
+
   public interface Listener {
     void onNewInformation(
       @NonNull String information,
       @Nullable String rate,
+      @Nullable String format,
       @NonNull String lockKey);
   }
 
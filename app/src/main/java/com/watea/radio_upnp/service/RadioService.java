@@ -56,6 +56,7 @@ import androidx.media.MediaBrowserServiceCompat;
 import androidx.media.VolumeProviderCompat;
 import androidx.media.session.MediaButtonReceiver;
 
+import com.watea.radio_upnp.BuildConfig;
 import com.watea.radio_upnp.R;
 import com.watea.radio_upnp.activity.MainActivity;
 import com.watea.radio_upnp.adapter.LocalPlayerAdapter;
@@ -70,6 +71,7 @@ import org.fourthline.cling.android.AndroidUpnpServiceImpl;
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.RemoteDevice;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -154,11 +156,13 @@ public class RadioService
       getString(R.string.app_name),
       radioLibrary::getFrom,
       this,
+      new ResolvedUrlCache(this),
       () -> {
         Log.d(LOG_TAG, "HTTP Server error");
         stopSelf();
       });
     httpServer.start();
+    httpServer.prefetchLogos(radioLibrary::getAllRadioIds);
     // Bind to UPnP service, launch if not already
     if (!bindService(
       new Intent(this, AndroidUpnpServiceImpl.class),
@@ -217,6 +221,7 @@ public class RadioService
   public void onNewInformation(
     @NonNull final String information,
     @Nullable final String rate,
+    @Nullable final String format,
     @NonNull final String lockKey) {
     // We add current radio information to current media data
     handler.post(() -> {
@@ -227,6 +232,8 @@ public class RadioService
             .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_SUBTITLE, information)
             // Use WRITER for rate
             .putString(MediaMetadataCompat.METADATA_KEY_WRITER, rate)
+            // Use DISPLAY_DESCRIPTION for codec and sample rate
+            .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_DESCRIPTION, format)
             .build());
         // Update notification
         notificationManager.notify(NOTIFICATION_ID, getNotification());
@@ -239,6 +246,10 @@ public class RadioService
   @Override
   public void onPlaybackStateChange(
     @NonNull final PlaybackStateCompat state, @NonNull final String lockKey) {
+    // Streaming threads are waiting for pause/resume
+    if (httpServer != null) {
+      httpServer.onRadioHandlerControllerStateChange();
+    }
     handler.post(() -> {
       if (hasLockKey(lockKey)) {
         Log.d(LOG_TAG, "New valid state/lock key received: " + state.getState() + "/" + lockKey);
@@ -393,7 +404,9 @@ public class RadioService
         // Title, radio name
         .setContentTitle(description.getTitle())
         // Radio current track
-        .setContentText(description.getSubtitle());
+        .setContentText(description.getSubtitle())
+        // Codec and sample rate
+        .setSubText(description.getDescription());
     }
     final int[] actions012 = {0, 1, 2};
     final int[] actions0123 = {0, 1, 2, 3};
@@ -451,7 +464,9 @@ public class RadioService
     public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
       androidUpnpService = (AndroidUpnpService) iBinder;
       if (androidUpnpService != null) {
-        upnpActionController = new UpnpActionController(androidUpnpService);
+        // Stream is connected by HTTP server ahead of renderer request
+        upnpActionController =
+          new UpnpActionController(androidUpnpService, httpServer::prepareRadio);
       }
     }
 
@@ -507,7 +522,7 @@ public class RadioService
           radio,
           lockKey,
           RadioHandler.getHandledUri(serverUri, radio, lockKey),
-          httpServer.createLogoFile(radio),
+          httpServer.getLogoUri(radio),
           chosenDevice,
           upnpActionController);
         session.setPlaybackToRemote(volumeProviderCompat);
@@ -522,6 +537,9 @@ public class RadioService
       }
       // PlayerAdapter controls radio stream
       httpServer.setRadioHandlerController(playerAdapter);
+      if (BuildConfig.STATION_WARM_UP) {
+        warmUp(extras);
+      }
       // Start service, must be done while activity has foreground
       ContextCompat.startForegroundService(
         RadioService.this, new Intent(RadioService.this, RadioService.class));
@@ -554,6 +572,7 @@ public class RadioService
 
     @Override
     public void onStop() {
+      httpServer.cancelWarmUp();
       playerAdapter.stop();
     }
 
@@ -578,6 +597,21 @@ public class RadioService
       return null;
     }
 
+    // Next and previous radios are connected ahead of zapping, in same list
+    private void warmUp(@NonNull Bundle extras) {
+      assert radio != null;
+      final boolean isPreferred = extras.getBoolean(getString(R.string.key_preferred_radios));
+      final List<Radio> radios = new ArrayList<>();
+      for (int direction : new int[]{1, -1}) {
+        final Long radioId = radioLibrary.get(radio.getId(), isPreferred, direction);
+        final Radio neighbourRadio = (radioId == null) ? null : radioLibrary.getFrom(radioId);
+        if (neighbourRadio != null) {
+          radios.add(neighbourRadio);
+        }
+      }
+      httpServer.warmUp(radio, radios);
+    }
+
     // Do nothing if no active session or no radio fund
     private void skipTo(int direction) {
       if (mediaController != null) {
@@ -33,6 +33,7 @@ import androidx.annotation.Nullable;
 import com.google.android.exoplayer2.upstream.DefaultHttpDataSource;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
@@ -51,6 +52,10 @@ public class RadioURL {
   private static final int CONNECT_TIMEOUT =
     DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS * 2;
   private static final int READ_TIMEOUT = DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS * 2;
+  private static final int SSL_SESSION_CACHE_SIZE = 32;
+  private static final int SSL_SESSION_TIMEOUT = 60 * 60; // s
+  private static final int DRAIN_BUFFER_SIZE = 1024;
+  private static final int DRAIN_MAX = 8 * DRAIN_BUFFER_SIZE;
   // Create the SSL connection for HTTPS
   private static final SSLSocketFactory sSLSocketFactory;
 
@@ -60,6 +65,9 @@ public class RadioURL {
       sSLContext = SSLContext.getInstance("TLS");
       sSLContext.init(
         null, new TrustManager[]{new EasyX509TrustManager()}, new java.security.SecureRandom());
+      // Shared socket factory: TLS sessions are resumed on same host
+      sSLContext.getClientSessionContext().setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+      sSLContext.getClientSessionContext().setSessionTimeout(SSL_SESSION_TIMEOUT);
     } catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException exception) {
       Log.e(LOG_TAG, "Error handling SSL connection", exception);
     }
@@ -73,6 +81,40 @@ public class RadioURL {
     this.uRL = uRL;
   }
 
+  // Read remaining content (bounded) and close, so that connection can be reused
+  // by platform keep-alive pool.
+  // Shall not be used on stream content.
+  public static void release(@NonNull HttpURLConnection httpURLConnection) {
+    InputStream inputStream = null;
+    try {
+      inputStream = (httpURLConnection.getResponseCode() < 400) ?
+        httpURLConnection.getInputStream() : httpURLConnection.getErrorStream();
+      if (inputStream != null) {
+        final byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        int total = 0;
+        int length;
+        while ((total < DRAIN_MAX) && ((length = inputStream.read(buffer)) > 0)) {
+          total += length;
+        }
+        if (total >= DRAIN_MAX) {
+          // Too much to read, not worth keeping
+          httpURLConnection.disconnect();
+        }
+      }
+    } catch (IOException iOException) {
+      Log.d(LOG_TAG, "release: connection not reusable", iOException);
+      httpURLConnection.disconnect();
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException iOException) {
+          Log.d(LOG_TAG, "release: error closing stream", iOException);
+        }
+      }
+    }
+  }
+
   // MIME type
   @Nullable
   public String getStreamContentType() {
@@ -121,7 +163,7 @@ public class RadioURL {
       // Set headers
       URLConnection uRLConnection = uRL.openConnection();
       if (uRLConnection instanceof HttpURLConnection) {
-        httpURLConnection = (HttpURLConnection) uRL.openConnection();
+        httpURLConnection = (HttpURLConnection) uRLConnection;
       } else {
         throw new IOException("getActualHttpURLConnection: URL is not HTTP");
       }
@@ -136,8 +178,12 @@ public class RadioURL {
       }
       // Get answer
       if (httpURLConnection.getResponseCode() / 100 == 3) {
-        uRL = new URL(httpURLConnection.getHeaderField("Location"));
+        // Location may be relative
+        uRL = new URL(uRL, httpURLConnection.getHeaderField("Location"));
+        Metrics.REDIRECTS.incrementAndGet();
         Log.d(LOG_TAG, "Redirecting to URL: " + uRL);
+        // Give connection back to keep-alive pool
+        release(httpURLConnection);
       } else {
         Log.d(LOG_TAG, "Connection to URL: " + uRL);
         break;
@@ -153,8 +199,8 @@ public class RadioURL {
       Log.i(LOG_TAG, "getBitmap: decoding image on null URL");
       return null;
     }
-    try {
-      return BitmapFactory.decodeStream(uRL.openConnection().getInputStream());
+    try (InputStream inputStream = uRL.openConnection().getInputStream()) {
+      return BitmapFactory.decodeStream(inputStream);
     } catch (Exception exception) {
       Log.i(LOG_TAG, "getBitmap: error decoding image on " + uRL, exception);
       return null;
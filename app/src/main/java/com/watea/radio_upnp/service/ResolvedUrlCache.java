@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.watea.radio_upnp.model.Radio;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Persistent cache of stream resolution per radio: playlists, redirections and stream headers.
+// Stale entries are still used, then revalidated in background, once at a time per radio.
+// Entries are invalidated on connection failure or if radio URL has changed.
+public class ResolvedUrlCache {
+  private static final String LOG_TAG = ResolvedUrlCache.class.getName();
+  private static final String PREFERENCES_NAME = "resolved_urls";
+  private static final String SPACER = "\n";
+  private static final long TTL = 24 * 60 * 60 * 1000L; // ms
+  @NonNull
+  private final SharedPreferences sharedPreferences;
+  private final Map<Long, Entry> entries = new Hashtable<>();
+  // Radio IDs
+  private final Set<Long> revalidations = Collections.synchronizedSet(new HashSet<>());
+
+  public ResolvedUrlCache(@NonNull Context context) {
+    sharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    for (Map.Entry<String, ?> preference : sharedPreferences.getAll().entrySet()) {
+      try {
+        entries.put(
+          Long.valueOf(preference.getKey()), new Entry(preference.getValue().toString()));
+      } catch (Exception exception) {
+        Log.w(LOG_TAG, "Malformed entry: " + preference.getKey());
+      }
+    }
+  }
+
+  // Only if radio URL has not changed
+  @Nullable
+  public Entry get(@NonNull Radio radio) {
+    final Entry entry = entries.get(radio.getId());
+    return ((entry != null) && entry.radioUrl.equals(radio.getURL().toString())) ? entry : null;
+  }
+
+  public void invalidate(@NonNull Radio radio) {
+    if (entries.remove(radio.getId()) != null) {
+      Log.d(LOG_TAG, "Entry invalidated: " + radio.getName());
+      sharedPreferences.edit().remove(radio.getId().toString()).apply();
+    }
+  }
+
+  // Connect to cached stream URL if any, else resolve radio URL and store result
+  @NonNull
+  public HttpURLConnection connect(
+    @NonNull Radio radio,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer) throws IOException {
+    final Entry entry = get(radio);
+    if (entry != null) {
+      try {
+        final HttpURLConnection httpURLConnection =
+          new RadioURL(entry.url).getActualHttpURLConnection(httpURLConnectionConsumer);
+        if (httpURLConnection.getResponseCode() / 100 == 2) {
+          Log.d(LOG_TAG, "Connected to cached URL: " + entry.url);
+          if (entry.isStale() && revalidations.add(radio.getId())) {
+            new Thread(() -> revalidate(radio, httpURLConnectionConsumer)).start();
+          }
+          return httpURLConnection;
+        }
+        httpURLConnection.disconnect();
+      } catch (IOException iOException) {
+        Log.d(LOG_TAG, "Cached URL failed: " + entry.url, iOException);
+      }
+      invalidate(radio);
+    }
+    return resolve(radio, httpURLConnectionConsumer);
+  }
+
+  @NonNull
+  private HttpURLConnection resolve(
+    @NonNull Radio radio,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer) throws IOException {
+    // Playlist entries are tried in order
+    final HttpURLConnection httpURLConnection =
+      PlaylistResolver.connect(radio.getURL(), httpURLConnectionConsumer);
+    put(radio, httpURLConnection);
+    return httpURLConnection;
+  }
+
+  // Stream is being played from cached URL: only playlists and stream headers are fetched.
+  // On failure (e.g. HEAD not supported), entry is kept as its URL has just been connected.
+  private void revalidate(
+    @NonNull Radio radio,
+    @Nullable RadioURL.HttpURLConnectionConsumer httpURLConnectionConsumer) {
+    HttpURLConnection httpURLConnection = null;
+    try {
+      httpURLConnection = PlaylistResolver.head(radio.getURL(), httpURLConnectionConsumer);
+      if (httpURLConnection.getContentType() == null) {
+        throw new IOException("No content type");
+      }
+      put(radio, httpURLConnection);
+      Log.d(LOG_TAG, "Entry revalidated: " + radio.getName());
+    } catch (IOException iOException) {
+      Log.d(LOG_TAG, "Revalidation failed, entry kept: " + radio.getName(), iOException);
+    } finally {
+      if (httpURLConnection != null) {
+        httpURLConnection.disconnect();
+      }
+      revalidations.remove(radio.getId());
+    }
+  }
+
+  private void put(@NonNull Radio radio, @NonNull HttpURLConnection httpURLConnection) {
+    // MIME type is first asset of Content-Type
+    String contentType = httpURLConnection.getHeaderField("Content-Type");
+    if (contentType != null) {
+      contentType = contentType.split(";")[0];
+    }
+    // HLS: MIME type of audio is only known once segments are read
+    if (HlsStream.isHls(httpURLConnection)) {
+      contentType = null;
+    }
+    int metadataOffset = 0;
+    final List<String> headerMeta = httpURLConnection.getHeaderFields().get("icy-metaint");
+    try {
+      metadataOffset = (headerMeta == null) ? 0 : Integer.parseInt(headerMeta.get(0));
+    } catch (NumberFormatException numberFormatException) {
+      Log.w(LOG_TAG, "Malformed header icy-metaint");
+    }
+    final Entry entry = new Entry(
+      radio.getURL().toString(),
+      // Actual URL after redirections
+      httpURLConnection.getURL(),
+      contentType,
+      httpURLConnection.getHeaderField("icy-br"),
+      metadataOffset,
+      System.currentTimeMillis());
+    entries.put(radio.getId(), entry);
+    sharedPreferences.edit().putString(radio.getId().toString(), entry.marshall()).apply();
+  }
+
+  public static class Entry {
+    @NonNull
+    private final String radioUrl;
+    @NonNull
+    private final URL url;
+    @Nullable
+    private final String contentType;
+    @Nullable
+    private final String rate;
+    private final int metadataOffset;
+    private final long time;
+
+    private Entry(
+      @NonNull String radioUrl,
+      @NonNull URL url,
+      @Nullable String contentType,
+      @Nullable String rate,
+      int metadataOffset,
+      long time) {
+      this.radioUrl = radioUrl;
+      this.url = url;
+      this.contentType = contentType;
+      this.rate = rate;
+      this.metadataOffset = metadataOffset;
+      this.time = time;
+    }
+
+    // Symmetrical to marshall()
+    private Entry(@NonNull String string) throws MalformedURLException {
+      this(string.split(SPACER, -1));
+    }
+
+    private Entry(@NonNull String[] strings) throws MalformedURLException {
+      this(
+        strings[0],
+        new URL(strings[1]),
+        strings[2].isEmpty() ? null : strings[2],
+        strings[3].isEmpty() ? null : strings[3],
+        Integer.parseInt(strings[4]),
+        Long.parseLong(strings[5]));
+    }
+
+    @NonNull
+    public URL getUrl() {
+      return url;
+    }
+
+    @Nullable
+    public String getContentType() {
+      return contentType;
+    }
+
+    @Nullable
+    public String getRate() {
+      return rate;
+    }
+
+    public int getMetadataOffset() {
+      return metadataOffset;
+    }
+
+    public boolean isStale() {
+      return (System.currentTimeMillis() - time > TTL);
+    }
+
+    @NonNull
+    private String marshall() {
+      return radioUrl + SPACER +
+        url + SPACER +
+        ((contentType == null) ? "" : contentType) + SPACER +
+        ((rate == null) ? "" : rate) + SPACER +
+        metadataOffset + SPACER +
+        time;
+    }
+  }
+}
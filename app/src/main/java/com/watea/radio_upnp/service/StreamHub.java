@@ -0,0 +1,755 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.watea.radio_upnp.BuildConfig;
+import com.watea.radio_upnp.model.Radio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One upstream connection per radio, shared by all LAN clients.
+// Audio data is stored in a ring buffer, each client reads it from its own cursor.
+// Ring buffer is sized to hold prefetch duration of audio, twice, according to bitrate.
+// Producer is paced by upstream only, so that a slow client does not stall upstream
+// (servers drop stalled sources) nor other clients: a client too slow to follow is moved
+// forward when its data is overwritten.
+// While paused, that is all clients paused, upstream is no more read once ring is full:
+// paused clients lose no data and the producer costs no CPU.
+// A new client gets last prefetch duration of data at once (from a frame boundary if known),
+// so that renderers fill their buffer without waiting.
+// On upstream failure, upstream is reconnected while clients are attached; they drain
+// buffered data meanwhile. MP3/AAC data from new connection starts on a frame boundary.
+public class StreamHub {
+  private static final String LOG_TAG = StreamHub.class.getName();
+  private static final int BUFFER_SIZE = 16384;
+  private static final int RING_SIZE_MIN = 4 * BUFFER_SIZE;
+  private static final int DEFAULT_RATE = 128; // kbit/s
+  private static final int PREFETCH_DURATION_MIN = 2; // s
+  private static final int PREFETCH_DURATION_MAX = 10; // s
+  private static final int POOLED_BUFFERS_MAX = 4;
+  private static final int RECONNECT_TRIES = 5;
+  static final int RECONNECT_DELAY = 500; // ms, doubled on each try
+  // Splice is given up if no frame found within this amount of data
+  private static final int SPLICE_SEARCH_MAX = 4 * BUFFER_SIZE;
+  private static final Queue<byte[]> BUFFERS = new ConcurrentLinkedQueue<>();
+  @NonNull
+  private final Radio radio;
+  @NonNull
+  private final String userAgent;
+  @NonNull
+  private final RadioHandler.Listener listener;
+  @NonNull
+  private final ResolvedUrlCache resolvedUrlCache;
+  private final List<Cursor> cursors = new Vector<>();
+  private final Map<String, String> headers = new Hashtable<>();
+  private final Object connectLock = new Object();
+  private final int prefetchDuration;
+  // Bytes sent to LAN clients, for metrics
+  @NonNull
+  private final AtomicLong relayedBytes;
+  @NonNull
+  private byte[] ring = new byte[0];
+  // Amount of data to buffer before sending to a client
+  private int prefetchSize = 0;
+  @Nullable
+  private Upstream upstream = null;
+  @Nullable
+  private String rate = null;
+  @Nullable
+  private String contentType = null;
+  // Codec and sample rate, if found by frame scanner
+  @Nullable
+  private String format = null;
+  // Only for MP3/AAC streams
+  @Nullable
+  private FrameScanner frameScanner = null;
+  @NonNull
+  private String information = "";
+  // Total amount of audio bytes written in ring
+  private long writePosition = 0;
+  private boolean isConnected = false;
+  private boolean isClosed = false;
+  private boolean isPaused = false;
+  // Set on reconnection, until a frame boundary is found
+  private boolean isSplicing = false;
+  private int spliceSkipped = 0;
+  // Start of upstream connection, for time to first byte
+  private long connectStart = 0;
+  // Called on new data and on close, for non-blocking readers
+  @Nullable
+  private Runnable dataCallback = null;
+
+  public StreamHub(
+    @NonNull Radio radio,
+    @NonNull String userAgent,
+    @NonNull RadioHandler.Listener listener,
+    @NonNull ResolvedUrlCache resolvedUrlCache,
+    int prefetchDuration) {
+    this.radio = radio;
+    this.userAgent = userAgent;
+    this.listener = listener;
+    this.resolvedUrlCache = resolvedUrlCache;
+    this.prefetchDuration =
+      Math.max(PREFETCH_DURATION_MIN, Math.min(PREFETCH_DURATION_MAX, prefetchDuration));
+    relayedBytes = Metrics.getRelayedBytes(radio.getId());
+  }
+
+  // Recycle relay buffers so that sessions do not allocate on the heap
+  @NonNull
+  static byte[] acquireBuffer() {
+    final byte[] buffer = BUFFERS.poll();
+    return (buffer == null) ? new byte[BUFFER_SIZE] : buffer;
+  }
+
+  static void releaseBuffer(@NonNull byte[] buffer) {
+    if (BUFFERS.size() < POOLED_BUFFERS_MAX) {
+      BUFFERS.offer(buffer);
+    }
+  }
+
+  // Bitrate in kbit/s from icy-br header, which may hold several values
+  private static int getRate(@Nullable String rate) {
+    if (rate != null) {
+      try {
+        final int result = Integer.parseInt(rate.split(",")[0].trim());
+        if (result > 0) {
+          return result;
+        }
+      } catch (NumberFormatException numberFormatException) {
+        Log.w(LOG_TAG, "Malformed header icy-br");
+      }
+    }
+    return DEFAULT_RATE;
+  }
+
+  public synchronized void setDataCallback(@Nullable Runnable dataCallback) {
+    this.dataCallback = dataCallback;
+  }
+
+  public synchronized boolean isClosed() {
+    return isClosed;
+  }
+
+  public synchronized void setPaused(boolean isPaused) {
+    this.isPaused = isPaused;
+    notifyAll();
+  }
+
+  // Percentage of ring buffer not yet read by slowest client; 100 if overrun.
+  // Passive clients do not read: 0 if no other client.
+  public synchronized int getFillLevel() {
+    return (ring.length == 0) ?
+      0 : (int) Math.min(100, 100 * (writePosition - getSlowestPosition()) / ring.length);
+  }
+
+  public boolean hasClients() {
+    return !cursors.isEmpty();
+  }
+
+  // Caller shall synchronize client registration
+  @NonNull
+  public Cursor addClient(@NonNull String lockKey) {
+    return addClient(lockKey, false);
+  }
+
+  // Passive client does not read; it keeps upstream connected and buffered.
+  // Its cursor follows live data as ring rolls over, so that buffered data stays recent.
+  // Caller shall synchronize client registration.
+  @NonNull
+  public synchronized Cursor addClient(@NonNull String lockKey, boolean isPassive) {
+    final Cursor cursor = new Cursor(lockKey, getBurstStart(), isPassive);
+    cursors.add(cursor);
+    return cursor;
+  }
+
+  // Caller shall synchronize client registration.
+  // Upstream is released with last client.
+  public synchronized void removeClient(@NonNull Cursor cursor) {
+    cursors.remove(cursor);
+    if (cursors.isEmpty()) {
+      close();
+    } else {
+      // May have been slowest client
+      notifyAll();
+    }
+  }
+
+  // Connect upstream if not already done; first caller connects, others wait for it
+  public void connect() throws IOException {
+    synchronized (connectLock) {
+      if (isClosed()) {
+        throw new IOException("connect: hub is closed");
+      }
+      if (!isConnected) {
+        connectUpstream();
+        isConnected = true;
+      }
+    }
+  }
+
+  private void connectUpstream() throws IOException {
+    try {
+      final Upstream upstream = openUpstream();
+      // Headers, MIME type and buffers are given by first connection.
+      // HLS: playlist headers do not apply to stream, rate is measured.
+      if (upstream.hlsStream == null) {
+        for (String header : upstream.httpURLConnection.getHeaderFields().keySet()) {
+          // ICY data not forwarded, as only used here
+          if ((header != null) && !header.toLowerCase().startsWith("icy-")) {
+            String value = upstream.httpURLConnection.getHeaderField(header);
+            if (value != null) {
+              headers.put(header, value);
+            }
+          }
+        }
+        rate = upstream.httpURLConnection.getHeaderField("icy-br");
+      }
+      contentType = upstream.contentType;
+      // Size buffers
+      final int bytesPerSecond = getRate(rate) * 1000 / 8;
+      synchronized (this) {
+        prefetchSize = prefetchDuration * bytesPerSecond;
+        ring = new byte[Math.max(RING_SIZE_MIN, 2 * prefetchSize)];
+        frameScanner = AudioFrames.isFramed(contentType) ? new FrameScanner() : null;
+      }
+      Log.d(LOG_TAG, "Prefetch/ring size: " + prefetchSize + "/" + ring.length);
+      new Thread(() -> produce(upstream)).start();
+    } catch (IOException | RuntimeException exception) {
+      close();
+      throw exception;
+    }
+  }
+
+  // MIME type is first asset of Content-Type
+  @Nullable
+  private static String getContentType(@NonNull HttpURLConnection httpURLConnection) {
+    final String contentType = httpURLConnection.getContentType();
+    return (contentType == null) ? null : contentType.split(";")[0];
+  }
+
+  @NonNull
+  private Upstream openUpstream() throws IOException {
+    connectStart = System.currentTimeMillis();
+    // Use cached resolution if any
+    final HttpURLConnection newHttpURLConnection = resolvedUrlCache.connect(
+      radio,
+      connection -> {
+        // Default request method GET is used as some radio server handles HEAD too bad
+        connection.setRequestProperty("User-Agent", userAgent);
+        // ICY request
+        connection.setRequestProperty("Icy-Metadata", "1");
+      });
+    Metrics.CONNECT_LATENCY.observe(System.currentTimeMillis() - connectStart);
+    Log.d(LOG_TAG, "Connected to radio URL: " + radio.getName());
+    if (HlsStream.isHls(newHttpURLConnection)) {
+      return openHlsUpstream(newHttpURLConnection);
+    }
+    // Try to find charset
+    final String contentEncoding = newHttpURLConnection.getContentEncoding();
+    final Charset charset = (contentEncoding == null) ?
+      Charset.defaultCharset() : Charset.forName(contentEncoding);
+    // Find metadata place, 0 if undefined
+    int metadataOffset = 0;
+    List<String> headerMeta = newHttpURLConnection.getHeaderFields().get("icy-metaint");
+    try {
+      metadataOffset = (headerMeta == null) ? 0 : Integer.parseInt(headerMeta.get(0));
+    } catch (NumberFormatException numberFormatException) {
+      Log.w(LOG_TAG, "Malformed header icy-metaint");
+    }
+    if (metadataOffset > 0) {
+      Log.i(LOG_TAG, "Metadata expected at index: " + metadataOffset);
+    } else if (metadataOffset == 0) {
+      Log.i(LOG_TAG, "No metadata expected");
+    } else {
+      metadataOffset = 0;
+      Log.w(LOG_TAG, "Wrong metadata value");
+    }
+    return setUpstream(new Upstream(
+      newHttpURLConnection,
+      null,
+      newHttpURLConnection.getInputStream(),
+      getContentType(newHttpURLConnection),
+      new IcyMetadata(charset),
+      metadataOffset));
+  }
+
+  // Playlist connection is only used for its actual URL; no ICY metadata in HLS
+  @NonNull
+  private Upstream openHlsUpstream(@NonNull HttpURLConnection playlistHttpURLConnection)
+    throws IOException {
+    playlistHttpURLConnection.disconnect();
+    final HlsStream hlsStream = new HlsStream(
+      playlistHttpURLConnection.getURL(),
+      connection -> connection.setRequestProperty("User-Agent", userAgent));
+    Log.i(LOG_TAG, "HLS stream: " + radio.getName());
+    return setUpstream(new Upstream(
+      playlistHttpURLConnection,
+      hlsStream,
+      hlsStream,
+      hlsStream.getContentType(),
+      new IcyMetadata(Charset.defaultCharset()),
+      0));
+  }
+
+  // Current upstream is released on close
+  @NonNull
+  private synchronized Upstream setUpstream(@NonNull Upstream newUpstream) throws IOException {
+    if (isClosed) {
+      newUpstream.disconnect();
+      throw new IOException("openUpstream: hub is closed");
+    }
+    upstream = newUpstream;
+    return newUpstream;
+  }
+
+  // Non ICY headers of upstream connection
+  @NonNull
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  // MIME type of upstream connection, null if unknown or not connected
+  @Nullable
+  public String getContentType() {
+    return contentType;
+  }
+
+  // Blocking; returns number of bytes read, -1 if no more data.
+  // First read waits for prefetch, at most prefetch duration.
+  // A client too slow to follow is moved forward to the oldest available data.
+  public int read(@NonNull Cursor cursor, @NonNull byte[] buffer) throws IOException {
+    return read(cursor, buffer, true);
+  }
+
+  // If not blocking, returns 0 instead of waiting; data callback tells when to retry
+  public int read(@NonNull Cursor cursor, @NonNull byte[] buffer, boolean isBlocking)
+    throws IOException {
+    final long available;
+    synchronized (this) {
+      try {
+        if (cursor.isPrefetching) {
+          if (cursor.prefetchEnd == 0) {
+            cursor.prefetchEnd = System.currentTimeMillis() + prefetchDuration * 1000L;
+          }
+          long delay;
+          while (!isClosed &&
+            (writePosition - cursor.position < prefetchSize) &&
+            ((delay = cursor.prefetchEnd - System.currentTimeMillis()) > 0)) {
+            if (!isBlocking) {
+              return 0;
+            }
+            wait(delay);
+          }
+          cursor.isPrefetching = false;
+        }
+        while (!isClosed && (cursor.position == writePosition)) {
+          if (!isBlocking) {
+            return 0;
+          }
+          wait();
+        }
+      } catch (InterruptedException interruptedException) {
+        Thread.currentThread().interrupt();
+        throw new IOException("read: interrupted");
+      }
+      if (cursor.position == writePosition) {
+        return -1;
+      }
+      if (writePosition - cursor.position > ring.length) {
+        // Moved to burst start, not to oldest data, which is about to be overwritten
+        Log.d(LOG_TAG, "Client overrun: " + cursor.lockKey);
+        cursor.position = getBurstStart();
+      }
+      available = Math.min(buffer.length, writePosition - cursor.position);
+      final int index = (int) (cursor.position % ring.length);
+      final int length = (int) Math.min(available, ring.length - index);
+      System.arraycopy(ring, index, buffer, 0, length);
+      System.arraycopy(ring, 0, buffer, length, (int) available - length);
+      cursor.position += available;
+      relayedBytes.addAndGet(available);
+    }
+    return (int) available;
+  }
+
+  // Oldest data a new client can get at once; live data if no frame boundary found.
+  // Shall be called under lock.
+  private long getBurstStart() {
+    // Ring is twice prefetch size: burst data is not overwritten before prefetch is read
+    final long start = Math.max(0, writePosition - prefetchSize);
+    if (frameScanner == null) {
+      return start;
+    }
+    final long frameStart = frameScanner.getFrameStart(start);
+    return (frameStart < 0) ? writePosition : frameStart;
+  }
+
+  // Passive clients excluded. Shall be called under lock.
+  private long getSlowestPosition() {
+    long position = writePosition;
+    for (Cursor cursor : cursors) {
+      if (!cursor.isPassive) {
+        position = Math.min(position, cursor.position);
+      }
+    }
+    return position;
+  }
+
+  private synchronized void close() {
+    if (!isClosed) {
+      Log.d(LOG_TAG, "Hub closed: " + radio.getName());
+      isClosed = true;
+      notifyAll();
+      tellDataCallback();
+      if (upstream != null) {
+        upstream.disconnect();
+      }
+    }
+  }
+
+  // Producer thread
+  private void produce(@NonNull Upstream upstream) {
+    Log.d(LOG_TAG, "produce: entering");
+    final byte[] buffer = acquireBuffer();
+    try {
+      int tries = 0;
+      while (true) {
+        final long startPosition = getWritePosition();
+        try {
+          if (upstream.metadataOffset == 0) {
+            handlePassThrough(upstream.inputStream, buffer);
+          } else {
+            handleStreaming(
+              upstream.inputStream, upstream.icyMetadata, upstream.metadataOffset, buffer);
+          }
+        } catch (IOException iOException) {
+          Log.d(LOG_TAG, "produce: upstream error", iOException);
+        }
+        upstream.disconnect();
+        // Tries are counted until data is received again
+        if (getWritePosition() > startPosition) {
+          tries = 0;
+        }
+        // Exponential backoff, while clients are attached
+        Upstream newUpstream = null;
+        while ((newUpstream == null) && (tries < RECONNECT_TRIES) && waitReconnect(tries++)) {
+          Log.d(LOG_TAG, "Reconnecting: " + radio.getName() + "; try " + tries);
+          try {
+            newUpstream = reconnect();
+          } catch (IOException | RuntimeException exception) {
+            Log.d(LOG_TAG, "Reconnection failed: " + radio.getName(), exception);
+          }
+        }
+        if (newUpstream == null) {
+          Log.i(LOG_TAG, "Upstream lost: " + radio.getName());
+          break;
+        }
+        upstream = newUpstream;
+      }
+    } finally {
+      releaseBuffer(buffer);
+      close();
+    }
+    Log.d(LOG_TAG, "produce: leaving");
+  }
+
+  // Returns false if hub is closed meanwhile
+  private synchronized boolean waitReconnect(int tries) {
+    final long end = System.currentTimeMillis() + ((long) RECONNECT_DELAY << tries);
+    long delay;
+    try {
+      while (!isClosed && ((delay = end - System.currentTimeMillis()) > 0)) {
+        wait(delay);
+      }
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return !isClosed;
+  }
+
+  // New data is spliced on frame boundary, if MIME type allows
+  @NonNull
+  private Upstream reconnect() throws IOException {
+    final Upstream upstream = openUpstream();
+    final String newContentType = upstream.contentType;
+    if ((newContentType != null) && !newContentType.equals(contentType)) {
+      // Clients can not decode it; may be a temporary error page
+      upstream.disconnect();
+      throw new IOException("reconnect: unexpected content type " + newContentType);
+    }
+    Metrics.RECONNECTS.incrementAndGet();
+    synchronized (this) {
+      isSplicing = AudioFrames.isFramed(contentType);
+      spliceSkipped = 0;
+      if (frameScanner != null) {
+        frameScanner.reset();
+      }
+    }
+    return upstream;
+  }
+
+  private synchronized long getWritePosition() {
+    return writePosition;
+  }
+
+  // Blocking while paused and next upstream data may overwrite data not read yet
+  private synchronized void waitWhilePaused() throws IOException {
+    try {
+      while (!isClosed && isPaused &&
+        (writePosition - getSlowestPosition() + BUFFER_SIZE > ring.length)) {
+        wait();
+      }
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      throw new IOException("waitWhilePaused: interrupted");
+    }
+  }
+
+  // Never blocks: oldest data is overwritten, lagging clients skip it on read.
+  // While splicing, data before first frame boundary is dropped.
+  // Returns true if measured bitrate or format has changed.
+  private synchronized boolean write(@NonNull byte[] buffer, int offset, int length) {
+    if (isSplicing) {
+      final int index = AudioFrames.findFrame(buffer, offset, length);
+      if (index < 0) {
+        spliceSkipped += length;
+        if (spliceSkipped < SPLICE_SEARCH_MAX) {
+          return false;
+        }
+        Log.w(LOG_TAG, "No frame boundary found; splice given up");
+      } else {
+        Log.d(LOG_TAG, "Spliced after " + (spliceSkipped + index - offset) + " bytes");
+        length -= index - offset;
+        offset = index;
+      }
+      isSplicing = false;
+    }
+    if (frameScanner != null) {
+      frameScanner.scan(buffer, offset, length, writePosition);
+    }
+    final int index = (int) (writePosition % ring.length);
+    final int first = Math.min(length, ring.length - index);
+    System.arraycopy(buffer, offset, ring, index, first);
+    System.arraycopy(buffer, offset + first, ring, 0, length - first);
+    if (writePosition == 0) {
+      Metrics.TIME_TO_FIRST_BYTE.observe(System.currentTimeMillis() - connectStart);
+    }
+    writePosition += length;
+    // Passive cursors are kept within ring
+    for (Cursor cursor : cursors) {
+      if (cursor.isPassive && (writePosition - cursor.position > ring.length)) {
+        cursor.position = writePosition - ring.length;
+      }
+    }
+    notifyAll();
+    tellDataCallback();
+    return (frameScanner != null) && frameScanner.hasChanged();
+  }
+
+  // Shall be called under lock
+  private void tellDataCallback() {
+    if (dataCallback != null) {
+      dataCallback.run();
+    }
+  }
+
+  // Forward stream data as is, no metadata
+  private void handlePassThrough(
+    @NonNull final InputStream inputStream,
+    @NonNull final byte[] buffer) throws IOException {
+    while (!isClosed()) {
+      waitWhilePaused();
+      final int readResult = inputStream.read(buffer);
+      if (readResult < 0) {
+        Log.d(LOG_TAG, "No more data to read");
+        break;
+      }
+      if (write(buffer, 0, readResult)) {
+        handleFormat();
+      }
+    }
+  }
+
+  // Forward stream data and handle metadata
+  // metadataOffset > 0
+  private void handleStreaming(
+    @NonNull final InputStream inputStream,
+    @NonNull final IcyMetadata icyMetadata,
+    final int metadataOffset,
+    @NonNull final byte[] buffer) throws IOException {
+    // Audio bytes to forward before next metadata block
+    int audioBytesToRead = metadataOffset;
+    // Metadata bytes to read in current metadata block, -1 if size byte is expected
+    int metadataBytesToRead = -1;
+    int metadataSize = 0;
+    while (!isClosed()) {
+      waitWhilePaused();
+      final int readResult = inputStream.read(buffer);
+      if (readResult < 0) {
+        Log.d(LOG_TAG, "No more data to read");
+        break;
+      }
+      int index = 0;
+      while (index < readResult) {
+        if (audioBytesToRead > 0) {
+          // Forward audio run up to next metadata block
+          final int length = Math.min(audioBytesToRead, readResult - index);
+          if (write(buffer, index, length)) {
+            handleFormat();
+          }
+          index += length;
+          audioBytesToRead -= length;
+        } else if (metadataBytesToRead < 0) {
+          // First byte gives size (16 bytes chunks) to read for metadata
+          metadataSize = (buffer[index++] & 0xFF) * 16;
+          metadataBytesToRead = metadataSize;
+          icyMetadata.clear();
+        } else {
+          // Other bytes are metadata
+          final int length = Math.min(metadataBytesToRead, readResult - index);
+          icyMetadata.put(buffer, index, length);
+          index += length;
+          metadataBytesToRead -= length;
+        }
+        // End of metadata, extract pattern
+        if ((audioBytesToRead == 0) && (metadataBytesToRead == 0)) {
+          handleMetadata(icyMetadata, metadataSize);
+          audioBytesToRead = metadataOffset;
+          metadataBytesToRead = -1;
+        }
+      }
+    }
+  }
+
+  // Listeners are only told on new title
+  private void handleMetadata(@NonNull final IcyMetadata icyMetadata, final int metadataSize) {
+    if (BuildConfig.DEBUG) {
+      Log.d(LOG_TAG, "Size|Metadata: " + metadataSize + "|" + icyMetadata);
+    }
+    if (icyMetadata.parse()) {
+      Metrics.METADATA_UPDATES.incrementAndGet();
+      information = icyMetadata.getTitle();
+      if (BuildConfig.DEBUG) {
+        Log.d(LOG_TAG, "Title|URL: " + information + "|" + icyMetadata.getUrl());
+      }
+      for (Cursor cursor : cursors.toArray(new Cursor[0])) {
+        listener.onNewInformation(information, rate, format, cursor.lockKey);
+      }
+    }
+  }
+
+  // Measured bitrate replaces icy-br
+  private void handleFormat() {
+    synchronized (this) {
+      assert frameScanner != null;
+      if (frameScanner.getBitrate() > 0) {
+        rate = Integer.toString(frameScanner.getBitrate());
+      }
+      format = frameScanner.getFormat();
+    }
+    Log.d(LOG_TAG, "Rate|Format: " + rate + "|" + format);
+    for (Cursor cursor : cursors.toArray(new Cursor[0])) {
+      listener.onNewInformation(information, rate, format, cursor.lockKey);
+    }
+  }
+
+  // Current upstream connection; for HLS, data is read from HLS stream
+  private static class Upstream {
+    @NonNull
+    private final HttpURLConnection httpURLConnection;
+    @Nullable
+    private final HlsStream hlsStream;
+    @NonNull
+    private final InputStream inputStream;
+    @Nullable
+    private final String contentType;
+    @NonNull
+    private final IcyMetadata icyMetadata;
+    private final int metadataOffset;
+
+    private Upstream(
+      @NonNull HttpURLConnection httpURLConnection,
+      @Nullable HlsStream hlsStream,
+      @NonNull InputStream inputStream,
+      @Nullable String contentType,
+      @NonNull IcyMetadata icyMetadata,
+      int metadataOffset) {
+      this.httpURLConnection = httpURLConnection;
+      this.hlsStream = hlsStream;
+      this.inputStream = inputStream;
+      this.contentType = contentType;
+      this.icyMetadata = icyMetadata;
+      this.metadataOffset = metadataOffset;
+    }
+
+    private void disconnect() {
+      httpURLConnection.disconnect();
+      if (hlsStream != null) {
+        hlsStream.close();
+      }
+    }
+  }
+
+  // Reading position of a LAN client
+  public class Cursor {
+    @NonNull
+    private final String lockKey;
+    private final boolean isPassive;
+    private long position;
+    private boolean isPrefetching = true;
+    // Set on first read
+    private long prefetchEnd = 0;
+
+    private Cursor(@NonNull String lockKey, long position, boolean isPassive) {
+      this.lockKey = lockKey;
+      this.position = position;
+      this.isPassive = isPassive;
+    }
+
+    @NonNull
+    public StreamHub getStreamHub() {
+      return StreamHub.this;
+    }
+
+    // Current information for this client
+    public void tellListener() {
+      listener.onNewInformation(information, rate, format, lockKey);
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves asynchronous streams with a few threads, so that idle or paused LAN clients
+// cost no thread. Sessions are served in turn, one buffer at a time, while data is available;
+// others wait for a wake up of their source (new data) or of all (state change).
+// Nota: servlet 3.0 has no non-blocking write. Sessions shall bound their writes to
+// WRITE_TIMEOUT, so that a stalled client is dropped instead of holding a pump thread.
+public class StreamPump {
+  // Longest write to a LAN client, that is pump thread lost for others
+  public static final int WRITE_TIMEOUT = 10 * 1000; // ms
+  private static final String LOG_TAG = StreamPump.class.getName();
+  private static final int THREADS = 4;
+  private final Queue<Entry> readyEntries = new LinkedList<>();
+  private final List<Entry> waitingEntries = new LinkedList<>();
+  // Being pumped
+  private final List<Entry> busyEntries = new LinkedList<>();
+  private final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+  private boolean isStopped = false;
+
+  public StreamPump() {
+    for (int i = 0; i < THREADS; i++) {
+      executorService.execute(this::pump);
+    }
+  }
+
+  public synchronized void add(@NonNull Session session) {
+    if (isStopped) {
+      session.close();
+    } else {
+      readyEntries.add(new Entry(session));
+      notifyAll();
+    }
+  }
+
+  // All waiting sessions are reconsidered
+  public void wakeUp() {
+    wakeUp(null);
+  }
+
+  // Waiting sessions of source are reconsidered, all if source is null.
+  // A session being pumped is not parked afterwards.
+  public synchronized void wakeUp(@Nullable Object source) {
+    final Iterator<Entry> iterator = waitingEntries.iterator();
+    while (iterator.hasNext()) {
+      final Entry entry = iterator.next();
+      if (entry.isFrom(source)) {
+        iterator.remove();
+        readyEntries.add(entry);
+      }
+    }
+    for (Entry entry : busyEntries) {
+      entry.isWoken = entry.isWoken || entry.isFrom(source);
+    }
+    notifyAll();
+  }
+
+  // All sessions are closed
+  public synchronized void stop() {
+    isStopped = true;
+    wakeUp();
+    executorService.shutdown();
+  }
+
+  // Pump thread
+  private void pump() {
+    final byte[] buffer = StreamHub.acquireBuffer();
+    try {
+      Entry entry;
+      while ((entry = next()) != null) {
+        int result;
+        try {
+          result = isStopped() ? -1 : entry.session.pump(buffer);
+        } catch (IOException iOException) {
+          Log.d(LOG_TAG, "pump: LAN client error", iOException);
+          result = -1;
+        }
+        if (result < 0) {
+          release(entry);
+          entry.session.close();
+        } else {
+          park(entry, result > 0);
+        }
+      }
+    } finally {
+      StreamHub.releaseBuffer(buffer);
+    }
+    Log.d(LOG_TAG, "pump: leaving");
+  }
+
+  private synchronized boolean isStopped() {
+    return isStopped;
+  }
+
+  // Null if stopped and no more session to close
+  @Nullable
+  private synchronized Entry next() {
+    try {
+      while (!isStopped && readyEntries.isEmpty()) {
+        wait();
+      }
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      isStopped = true;
+    }
+    final Entry entry = readyEntries.poll();
+    if (entry != null) {
+      entry.isWoken = false;
+      busyEntries.add(entry);
+    }
+    return entry;
+  }
+
+  private synchronized void release(@NonNull Entry entry) {
+    busyEntries.remove(entry);
+  }
+
+  // Session with data goes back in turn; others wait, unless woken up meanwhile
+  private synchronized void park(@NonNull Entry entry, boolean hasSent) {
+    busyEntries.remove(entry);
+    if (hasSent || entry.isWoken) {
+      readyEntries.add(entry);
+      notifyAll();
+    } else {
+      waitingEntries.add(entry);
+    }
+  }
+
+  public interface Session {
+    // Shall not block while no data, nor write longer than WRITE_TIMEOUT.
+    // Returns number of bytes sent, 0 if none, -1 if over.
+    int pump(@NonNull byte[] buffer) throws IOException;
+
+    // Data of session comes from this source, see wakeUp()
+    @NonNull
+    Object getSource();
+
+    // Called once, when over
+    void close();
+  }
+
+  private static class Entry {
+    @NonNull
+    private final Session session;
+    // Woken up while being pumped
+    private boolean isWoken = false;
+
+    private Entry(@NonNull Session session) {
+      this.session = session;
+    }
+
+    private boolean isFrom(@Nullable Object source) {
+      return (source == null) || (source == session.getSource());
+    }
+  }
+}
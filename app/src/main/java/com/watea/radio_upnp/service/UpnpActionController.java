@@ -46,12 +46,17 @@ import java.util.Vector;
 public class UpnpActionController {
   @NonNull
   private final AndroidUpnpService androidUpnpService;
+  @NonNull
+  private final StreamPreparer streamPreparer;
   private final Map<Radio, String> contentTypes = new Hashtable<>();
   private final Map<Device<?, ?, ?>, List<String>> protocolInfos = new Hashtable<>();
   private final List<UpnpAction> upnpActions = new Vector<>();
 
-  public UpnpActionController(@NonNull AndroidUpnpService androidUpnpService) {
+  public UpnpActionController(
+    @NonNull AndroidUpnpService androidUpnpService,
+    @NonNull StreamPreparer streamPreparer) {
     this.androidUpnpService = androidUpnpService;
+    this.streamPreparer = streamPreparer;
   }
 
   @Nullable
@@ -64,8 +69,10 @@ public class UpnpActionController {
     return protocolInfos.get(device);
   }
 
-  public void fetchContentType(@NonNull Radio radio) {
-    String contentType = new RadioURL(radio.getURL()).getStreamContentType();
+  // Blocking. Stream connection is opened here and kept for the renderer request.
+  // Previous value is kept if connection fails.
+  public void fetchContentType(@NonNull Radio radio, @NonNull String lockKey) {
+    final String contentType = streamPreparer.prepare(radio, lockKey);
     if (contentType != null) {
       contentTypes.put(radio, contentType);
     }
@@ -118,6 +125,12 @@ public class UpnpActionController {
     androidUpnpService.getControlPoint().execute(actionCallback);
   }
 
+  public interface StreamPreparer {
+    // Returns MIME type of stream, null if connection failed
+    @Nullable
+    String prepare(@NonNull Radio radio, @NonNull String lockKey);
+  }
+
   public static abstract class UpnpAction {
     private static final String LOG_TAG = UpnpAction.class.getName();
     @NonNull
@@ -133,9 +146,11 @@ public class UpnpActionController {
 
     public void execute() {
       Log.d(LOG_TAG, "Execute: " + action.getName() + " on: " + getDevice().getDisplayString());
+      final long start = System.currentTimeMillis();
       upnpActionController.execute(new ActionCallback(getActionInvocation()) {
         @Override
         public void success(ActionInvocation actionInvocation) {
+          Metrics.observeUpnpAction(action.getName(), System.currentTimeMillis() - start);
           Log.d(LOG_TAG,
             "Successfully called UPnP action: " + actionInvocation.getAction().getName());
           UpnpAction.this.success(actionInvocation);
@@ -144,6 +159,7 @@ public class UpnpActionController {
         @Override
         public void failure(
           ActionInvocation actionInvocation, UpnpResponse operation, String defaultMsg) {
+          Metrics.observeUpnpAction(action.getName(), System.currentTimeMillis() - start);
           Log.d(LOG_TAG,
             "UPnP error: " + actionInvocation.getAction().getName() + " => " + defaultMsg);
           UpnpAction.this.failure();
@@ -85,6 +85,7 @@ public class UpnpWatchdog {
 
         private void tellListener(@NonNull String message) {
           Log.d(LOG_TAG, message);
+          Metrics.WATCHDOG_FAILURES.incrementAndGet();
           if (failureCount++ >= TOLERANCE) {
             listener.run();
           }
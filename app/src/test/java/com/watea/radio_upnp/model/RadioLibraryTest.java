@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class RadioLibraryTest {
+  // From RadioLibrary.RadioDbSQLHelper
+  private static final String DATABASE_NAME = "Radio.db";
+  private static final int GET_FROM_RADIOS = 5000;
+  private static final int FOR_EACH_RADIOS = 10000;
+  private static final int SCHEMA_RADIOS = 10000;
+  private static final int SCHEMA_ROUNDS = 100;
+  private static final int IMPORT_RADIOS = 1000;
+  // Version 1: no index, isPreferred as TEXT "true"/"false"
+  private static final String SQL_CREATE_ENTRIES_V1 = RadioSQLContract.SQL_CREATE_ENTRIES.replace(
+    RadioSQLContract.Columns.COLUMN_IS_PREFERRED + " INTEGER",
+    RadioSQLContract.Columns.COLUMN_IS_PREFERRED + " TEXT");
+  private Context context;
+  private RadioLibrary radioLibrary;
+
+  // One preferred radio out of 10
+  @NonNull
+  private static List<Radio> getRadios(int count) throws MalformedURLException {
+    final Bitmap icon = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+    final List<Radio> radios = new Vector<>();
+    for (int i = 0; i < count; i++) {
+      radios.add(new Radio(
+        "Radio " + i, new URL("http://radio" + i + ".test/stream"), null, (i % 10 == 0), icon));
+    }
+    return radios;
+  }
+
+  // Former getFrom(): one query per call
+  @Nullable
+  private static Radio query(@NonNull SQLiteDatabase database, @NonNull Long radioId) {
+    final Cursor cursor = database.query(
+      RadioSQLContract.Columns.TABLE_RADIO,
+      null,
+      RadioSQLContract.Columns._ID + " = ?",
+      new String[]{radioId.toString()},
+      null,
+      null,
+      null);
+    final Radio radio = cursor.moveToNext() ? new Radio(cursor) : null;
+    cursor.close();
+    return radio;
+  }
+
+  // Max position and preferred radios, as RadioLibrary; time per round
+  private static long getQueriesTime(
+    @NonNull SQLiteDatabase database, @NonNull String preferredValue) {
+    final SQLiteStatement maxPositionStatement = database.compileStatement(
+      "SELECT MAX(" + RadioSQLContract.Columns.COLUMN_POSITION + ") FROM " +
+        RadioSQLContract.Columns.TABLE_RADIO);
+    final String preferredQuery = getPreferredQuery(preferredValue);
+    // Warm up, then measure
+    long time = 0;
+    for (int run = 0; run < 2; run++) {
+      final long start = System.nanoTime();
+      for (int i = 0; i < SCHEMA_ROUNDS; i++) {
+        assertEquals(SCHEMA_RADIOS, maxPositionStatement.simpleQueryForLong());
+        final Cursor cursor = database.rawQuery(preferredQuery, null);
+        int count = 0;
+        while (cursor.moveToNext()) {
+          count++;
+        }
+        cursor.close();
+        assertEquals(SCHEMA_RADIOS / 10, count);
+      }
+      time = System.nanoTime() - start;
+    }
+    maxPositionStatement.close();
+    return time / SCHEMA_ROUNDS;
+  }
+
+  @NonNull
+  private static String getPreferredQuery(@NonNull String preferredValue) {
+    return "SELECT " + RadioSQLContract.Columns._ID + " FROM " +
+      RadioSQLContract.Columns.TABLE_RADIO + " WHERE " +
+      RadioSQLContract.Columns.COLUMN_IS_PREFERRED + " = " + preferredValue + " ORDER BY " +
+      RadioSQLContract.Columns.COLUMN_POSITION + " ASC";
+  }
+
+  @NonNull
+  private static String getQueryPlan(@NonNull SQLiteDatabase database, @NonNull String query) {
+    final StringBuilder queryPlan = new StringBuilder();
+    final Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+    final int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+    while (cursor.moveToNext()) {
+      queryPlan.append(cursor.getString(detailColumnIndex)).append("\n");
+    }
+    cursor.close();
+    return queryPlan.toString();
+  }
+
+  @Before
+  public void setUp() {
+    context = RuntimeEnvironment.getApplication();
+    radioLibrary = new RadioLibrary(context);
+  }
+
+  // Radio cache is shared by libraries, shall be empty for next test
+  @After
+  public void tearDown() {
+    for (Long radioId : radioLibrary.getAllRadioIds()) {
+      radioLibrary.deleteFrom(radioId);
+    }
+    radioLibrary.close();
+  }
+
+  @Test
+  public void getFromIsCachedUntilUpdate() throws MalformedURLException {
+    fill(1);
+    final Long radioId = radioLibrary.getAllRadioIds().get(0);
+    final Radio radio = radioLibrary.getFrom(radioId);
+    assertNotNull(radio);
+    assertSame(radio, radioLibrary.getFrom(radioId));
+    // Modified as ItemModifyFragment does
+    final Radio modifiedRadio = new Radio(radio);
+    modifiedRadio.setName("Modified");
+    assertEquals("Radio 0", radio.getName());
+    assertTrue(radioLibrary.updateFrom(radioId, modifiedRadio.toContentValues()));
+    final Radio updatedRadio = radioLibrary.getFrom(radioId);
+    assertNotNull(updatedRadio);
+    assertNotSame(radio, updatedRadio);
+    assertEquals("Modified", updatedRadio.getName());
+    assertTrue(radioLibrary.setPreferred(radioId, false));
+    assertEquals(false, radioLibrary.getFrom(radioId).isPreferred());
+    assertTrue(radioLibrary.deleteFrom(radioId));
+    assertNull(radioLibrary.getFrom(radioId));
+  }
+
+  @Test
+  public void getFromIsFasterThanQuery() throws MalformedURLException {
+    fill(GET_FROM_RADIOS);
+    final List<Long> radioIds = radioLibrary.getAllRadioIds();
+    final SQLiteDatabase database = openDatabase();
+    long checksum = 0;
+    // First run fills the cache, second run is measured
+    long queryTime = 0;
+    long time = 0;
+    for (int run = 0; run < 2; run++) {
+      long start = System.nanoTime();
+      for (Long radioId : radioIds) {
+        final Radio radio = query(database, radioId);
+        assertNotNull(radio);
+        checksum += radio.getName().length();
+      }
+      queryTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (Long radioId : radioIds) {
+        final Radio radio = radioLibrary.getFrom(radioId);
+        assertNotNull(radio);
+        checksum += radio.getName().length();
+      }
+      time = System.nanoTime() - start;
+    }
+    database.close();
+    System.out.printf(
+      "getFrom, %d radios: query %d ns/radio, cache %d ns/radio (%d)%n",
+      GET_FROM_RADIOS,
+      queryTime / GET_FROM_RADIOS,
+      time / GET_FROM_RADIOS,
+      checksum);
+    assertTrue(10 * time < queryTime);
+  }
+
+  @Test
+  public void forEachReadsRadiosInPositionOrder() throws MalformedURLException {
+    fill(3);
+    final List<Long> radioIds = radioLibrary.getAllRadioIds();
+    assertTrue(radioLibrary.move(radioIds.get(0), radioIds.get(2)));
+    final List<String> names = new Vector<>();
+    radioLibrary.forEach(radio -> names.add(radio.getName()));
+    assertEquals(Arrays.asList("Radio 2", "Radio 1", "Radio 0"), names);
+    // Same instances as getFrom()
+    radioLibrary.forEach(radio -> assertSame(radio, radioLibrary.getFrom(radio.getId())));
+    assertEquals(3, radioLibrary.getMediaItems().size());
+    assertEquals(
+      Radio.MARSHALL_HEAD + "\n" +
+        "Radio 2;http://radio2.test/stream;;false;\n" +
+        "Radio 1;http://radio1.test/stream;;false;\n" +
+        "Radio 0;http://radio0.test/stream;;true;\n",
+      radioLibrary.marshall(true));
+  }
+
+  // Cache is empty: all radios are read from database, in one query for forEach()
+  @Test
+  public void forEachIsFasterThanQueryPerRadio() throws MalformedURLException {
+    fill(FOR_EACH_RADIOS);
+    final SQLiteDatabase database = openDatabase();
+    final long[] checksum = {0};
+    // Former getMediaItems() and marshall(): all IDs, then one query per radio
+    long start = System.nanoTime();
+    for (Long radioId : radioLibrary.getAllRadioIds()) {
+      final Radio radio = query(database, radioId);
+      assertNotNull(radio);
+      checksum[0] += radio.getName().length();
+    }
+    final long queryTime = System.nanoTime() - start;
+    database.close();
+    start = System.nanoTime();
+    radioLibrary.forEach(radio -> checksum[0] += radio.getName().length());
+    final long time = System.nanoTime() - start;
+    System.out.printf(
+      "forEach, %d radios: query per radio %d ms, one query %d ms (%d)%n",
+      FOR_EACH_RADIOS,
+      queryTime / 1000000,
+      time / 1000000,
+      checksum[0]);
+    assertTrue(10 * time < queryTime);
+  }
+
+  @Test
+  public void migratesVersion1Database() {
+    createVersion1Database(3).close();
+    radioLibrary = new RadioLibrary(context);
+    final List<Long> radioIds = radioLibrary.getAllRadioIds();
+    assertEquals(3, radioIds.size());
+    assertEquals(Collections.singletonList(radioIds.get(0)), radioLibrary.getPreferredRadioIds());
+    final Radio radio = radioLibrary.getFrom(radioIds.get(0));
+    assertNotNull(radio);
+    assertEquals("Radio 0", radio.getName());
+    assertTrue(radio.isPreferred());
+    assertEquals(3, radioLibrary.getPositionFrom(radioIds.get(2)));
+    final SQLiteDatabase database = openDatabase();
+    assertEquals(2, database.getVersion());
+    assertTrue(getQueryPlan(database, getPreferredQuery("1"))
+      .contains(RadioSQLContract.Columns.INDEX_PREFERRED));
+    assertTrue(getQueryPlan(database, "SELECT MAX(" + RadioSQLContract.Columns.COLUMN_POSITION +
+      ") FROM " + RadioSQLContract.Columns.TABLE_RADIO)
+      .contains(RadioSQLContract.Columns.INDEX_POSITION));
+    database.close();
+  }
+
+  @Test
+  public void indexedSchemaIsFasterThanVersion1() {
+    SQLiteDatabase database = createVersion1Database(SCHEMA_RADIOS);
+    final long version1Time = getQueriesTime(database, "'true'");
+    database.close();
+    long start = System.nanoTime();
+    radioLibrary = new RadioLibrary(context);
+    final long migrationTime = System.nanoTime() - start;
+    database = openDatabase();
+    final long version2Time = getQueriesTime(database, "1");
+    database.close();
+    System.out.printf(
+      "Schema, %d radios: version 1 %d us/round, version 2 %d us/round, migration %d ms%n",
+      SCHEMA_RADIOS,
+      version1Time / 1000,
+      version2Time / 1000,
+      migrationTime / 1000000);
+    assertTrue(version2Time < version1Time);
+  }
+
+  @Test
+  public void importSkipsRadioWithoutIcon() throws MalformedURLException {
+    final int[] refreshCount = {0};
+    radioLibrary.addListener(new RadioLibrary.Listener() {
+      @Override
+      public void onRefresh() {
+        refreshCount[0]++;
+      }
+    });
+    final List<Radio> radios = getRadios(3);
+    // Icon not decoded on parse
+    radios.set(1, new Radio("No icon", new URL("http://noicon.test/stream"), null, false, null));
+    assertTrue(radioLibrary.importFrom(radios));
+    final List<String> names = new Vector<>();
+    radioLibrary.forEach(radio -> names.add(radio.getName()));
+    assertEquals(Arrays.asList("Radio 0", "Radio 2"), names);
+    // Told on main thread
+    assertEquals(0, refreshCount[0]);
+    shadowOf(Looper.getMainLooper()).idle();
+    assertEquals(1, refreshCount[0]);
+  }
+
+  @Test
+  public void importsExport() throws MalformedURLException {
+    fill(2);
+    final List<Radio> radios = RadioLibrary.parse(radioLibrary.marshall(false) + "Malformed#");
+    assertEquals(2, radios.size());
+    assertTrue(radioLibrary.importFrom(radios));
+    final List<String> names = new Vector<>();
+    radioLibrary.forEach(radio -> names.add(radio.getName()));
+    assertEquals(Arrays.asList("Radio 0", "Radio 1", "Radio 0", "Radio 1"), names);
+    radioLibrary.forEach(radio -> assertTrue(radio.getIconFile().isFile()));
+  }
+
+  @Test
+  public void importIsFasterThanAddPerRadio() throws MalformedURLException {
+    // Former importFrom(): add() per radio
+    final List<Radio> addedRadios = getRadios(IMPORT_RADIOS);
+    long start = System.nanoTime();
+    for (Radio radio : addedRadios) {
+      assertTrue(radioLibrary.add(radio));
+    }
+    final long addTime = System.nanoTime() - start;
+    final List<Radio> importedRadios = getRadios(IMPORT_RADIOS);
+    start = System.nanoTime();
+    assertTrue(radioLibrary.importFrom(importedRadios));
+    final long time = System.nanoTime() - start;
+    assertEquals(2 * IMPORT_RADIOS, radioLibrary.getAllRadioIds().size());
+    System.out.printf(
+      "Import, %d radios: add per radio %d ms, importFrom %d ms%n",
+      IMPORT_RADIOS,
+      addTime / 1000000,
+      time / 1000000);
+    assertTrue(2 * time < addTime);
+  }
+
+  // Library database is replaced; library shall be created again once returned database is closed
+  @NonNull
+  private SQLiteDatabase createVersion1Database(int count) {
+    radioLibrary.close();
+    assertTrue(context.deleteDatabase(DATABASE_NAME));
+    final SQLiteDatabase database =
+      context.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+    database.execSQL(SQL_CREATE_ENTRIES_V1);
+    final ContentValues contentValues = new ContentValues();
+    database.beginTransaction();
+    try {
+      for (int i = 0; i < count; i++) {
+        contentValues.put(RadioSQLContract.Columns.COLUMN_NAME, "Radio " + i);
+        contentValues.put(RadioSQLContract.Columns.COLUMN_ICON, "");
+        contentValues.put(RadioSQLContract.Columns.COLUMN_TYPE, Radio.Type.MISC.toString());
+        contentValues.put(
+          RadioSQLContract.Columns.COLUMN_LANGUAGE, Radio.Language.OTHER.toString());
+        contentValues.put(
+          RadioSQLContract.Columns.COLUMN_URL, "http://radio" + i + ".test/stream");
+        contentValues.put(
+          RadioSQLContract.Columns.COLUMN_QUALITY, Radio.Quality.MEDIUM.toString());
+        contentValues.put(
+          RadioSQLContract.Columns.COLUMN_IS_PREFERRED, Boolean.toString(i % 10 == 0));
+        contentValues.put(RadioSQLContract.Columns.COLUMN_POSITION, i + 1);
+        database.insertOrThrow(RadioSQLContract.Columns.TABLE_RADIO, null, contentValues);
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    database.setVersion(1);
+    return database;
+  }
+
+  @NonNull
+  private SQLiteDatabase openDatabase() {
+    return SQLiteDatabase.openDatabase(
+      context.getDatabasePath(DATABASE_NAME).getPath(), null, SQLiteDatabase.OPEN_READONLY);
+  }
+
+  private void fill(int count) throws MalformedURLException {
+    assertTrue(radioLibrary.importFrom(getRadios(count)));
+    assertEquals(count, radioLibrary.getAllRadioIds().size());
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+public class FrameScannerTest {
+  // MPEG-1 Layer III, 44.1 kHz, no padding
+  private static final byte[] MP3_128_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+  private static final int MP3_128_FRAME_LENGTH = 417;
+  private static final byte[] MP3_320_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0xE0, 0x00};
+  private static final int MP3_320_FRAME_LENGTH = 1044;
+  // AAC LC, 44.1 kHz, stereo, 1024 samples per frame; 372 bytes is about 128 kbit/s
+  private static final int AAC_FRAME_LENGTH = 372;
+  // 50 streams at 320 kbit/s
+  private static final int REQUIRED_BYTES_PER_SECOND = 50 * 320 * 1000 / 8;
+  private static final int BENCHMARK_BYTES = 64 * 1024 * 1024;
+  private static final int CHUNK_SIZE = 16384;
+
+  @NonNull
+  static byte[] getAdtsHeader(int frameLength) {
+    return new byte[]{
+      (byte) 0xFF,
+      (byte) 0xF1,
+      (byte) 0x50,
+      (byte) (0x80 | ((frameLength >> 11) & 0x03)),
+      (byte) (frameLength >> 3),
+      (byte) (((frameLength & 0x07) << 5) | 0x1F),
+      (byte) 0xFC};
+  }
+
+  // Frames with given header, payload is 0
+  @NonNull
+  private static byte[] getFrames(@NonNull byte[] header, int frameLength, int count) {
+    final byte[] frames = new byte[frameLength * count];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(header, 0, frames, i * frameLength, header.length);
+    }
+    return frames;
+  }
+
+  // Scanned by chunks, as received from upstream
+  private static void scan(
+    @NonNull FrameScanner frameScanner, @NonNull byte[] data, int chunkSize, long position) {
+    for (int offset = 0; offset < data.length; offset += chunkSize) {
+      final int length = Math.min(chunkSize, data.length - offset);
+      frameScanner.scan(data, offset, length, position + offset);
+    }
+  }
+
+  @Test
+  public void readsMp3Headers() {
+    final byte[] frames = getFrames(MP3_128_HEADER, MP3_128_FRAME_LENGTH, 2);
+    assertEquals(MP3_128_FRAME_LENGTH, AudioFrames.getFrameLength(frames, 0));
+    assertFalse(AudioFrames.isAdts(frames, 0));
+    assertEquals(3, AudioFrames.getLayer(frames, 0));
+    assertEquals(44100, AudioFrames.getSampleRate(frames, 0));
+    assertEquals(1152, AudioFrames.getSamples(frames, 0));
+    assertEquals(0, AudioFrames.getFrameLength(frames, 1));
+  }
+
+  @Test
+  public void readsAdtsHeaders() {
+    final byte[] frames = getFrames(getAdtsHeader(AAC_FRAME_LENGTH), AAC_FRAME_LENGTH, 2);
+    assertEquals(AAC_FRAME_LENGTH, AudioFrames.getFrameLength(frames, 0));
+    assertTrue(AudioFrames.isAdts(frames, 0));
+    assertEquals(44100, AudioFrames.getSampleRate(frames, 0));
+    assertEquals(1024, AudioFrames.getSamples(frames, 0));
+  }
+
+  @Test
+  public void findsFrameConfirmedByNextOne() {
+    final byte[] frames = getFrames(MP3_128_HEADER, MP3_128_FRAME_LENGTH, 3);
+    final byte[] data = new byte[100 + frames.length];
+    // False sync: header not followed by another one
+    System.arraycopy(MP3_128_HEADER, 0, data, 10, MP3_128_HEADER.length);
+    System.arraycopy(frames, 0, data, 100, frames.length);
+    assertEquals(100, AudioFrames.findFrame(data, 0, data.length));
+    assertEquals(-1, AudioFrames.findFrame(new byte[1000], 0, 1000));
+  }
+
+  @Test
+  public void measuresMp3Stream() {
+    final FrameScanner frameScanner = new FrameScanner();
+    // 10 s, odd chunk size: headers are split
+    scan(frameScanner, getFrames(MP3_128_HEADER, MP3_128_FRAME_LENGTH, 383), 1001, 0);
+    assertEquals(128, frameScanner.getBitrate());
+    assertEquals("MP3 44.1 kHz", frameScanner.getFormat());
+    assertTrue(frameScanner.hasChanged());
+    assertFalse(frameScanner.hasChanged());
+    assertEquals(3 * MP3_128_FRAME_LENGTH, frameScanner.getFrameStart(1000));
+    assertEquals(-1, frameScanner.getFrameStart(383L * MP3_128_FRAME_LENGTH));
+  }
+
+  @Test
+  public void reportsOnlySignificantBitrateChanges() {
+    final FrameScanner frameScanner = new FrameScanner();
+    final byte[] frames = getFrames(MP3_128_HEADER, MP3_128_FRAME_LENGTH, 383);
+    scan(frameScanner, frames, 1001, 0);
+    assertTrue(frameScanner.hasChanged());
+    // VBR: one 320 kbit/s frame every 32 frames, about 5% over 128 kbit/s
+    final byte[] vbrFrames = new byte[12 * (31 * MP3_128_FRAME_LENGTH + MP3_320_FRAME_LENGTH)];
+    int offset = 0;
+    for (int i = 0; i < 12; i++) {
+      for (byte[] block : new byte[][]{
+        getFrames(MP3_128_HEADER, MP3_128_FRAME_LENGTH, 31),
+        getFrames(MP3_320_HEADER, MP3_320_FRAME_LENGTH, 1)}) {
+        System.arraycopy(block, 0, vbrFrames, offset, block.length);
+        offset += block.length;
+      }
+    }
+    scan(frameScanner, vbrFrames, 1001, frames.length);
+    assertFalse(frameScanner.hasChanged());
+    assertEquals(128, frameScanner.getBitrate());
+    scan(
+      frameScanner,
+      getFrames(MP3_320_HEADER, MP3_320_FRAME_LENGTH, 383),
+      1001,
+      frames.length + vbrFrames.length);
+    assertTrue(frameScanner.hasChanged());
+    assertEquals(320, frameScanner.getBitrate());
+  }
+
+  @Test
+  public void measuresAdtsStream() {
+    final FrameScanner frameScanner = new FrameScanner();
+    scan(frameScanner, getFrames(getAdtsHeader(AAC_FRAME_LENGTH), AAC_FRAME_LENGTH, 431), 3, 0);
+    assertEquals(128, frameScanner.getBitrate());
+    assertEquals("AAC 44.1 kHz", frameScanner.getFormat());
+  }
+
+  @Test
+  public void resyncsAfterGarbage() {
+    final FrameScanner frameScanner = new FrameScanner();
+    final byte[] garbage = new byte[1000];
+    garbage[500] = (byte) 0xFF;
+    scan(frameScanner, garbage, 1000, 0);
+    assertEquals(-1, frameScanner.getFrameStart(0));
+    frameScanner.reset();
+    scan(frameScanner, getFrames(MP3_128_HEADER, MP3_128_FRAME_LENGTH, 4), 1000, 1000);
+    assertEquals(1000, frameScanner.getFrameStart(0));
+    assertEquals(1000 + MP3_128_FRAME_LENGTH, frameScanner.getFrameStart(1001));
+  }
+
+  // 50 streams at 320 kbit/s shall be followed on one core, without allocation
+  @Test
+  public void keepsUpWithFiftyStreams() {
+    final byte[] frames = getFrames(MP3_320_HEADER, MP3_320_FRAME_LENGTH, 1000);
+    final FrameScanner frameScanner = new FrameScanner();
+    final com.sun.management.ThreadMXBean threadMXBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long threadId = Thread.currentThread().getId();
+    long position = 0;
+    // Warm up
+    for (int i = 0; i < 10; i++) {
+      scan(frameScanner, frames, CHUNK_SIZE, position);
+      position += frames.length;
+    }
+    final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+    final long start = threadMXBean.getCurrentThreadCpuTime();
+    long scanned = 0;
+    while (scanned < BENCHMARK_BYTES) {
+      scan(frameScanner, frames, CHUNK_SIZE, position);
+      position += frames.length;
+      scanned += frames.length;
+    }
+    final long cpuTime = threadMXBean.getCurrentThreadCpuTime() - start;
+    final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+    final double bytesPerSecond = scanned * 1e9 / cpuTime;
+    System.out.printf(
+      "FrameScanner: %.1f MB/s, %.0f streams at 320 kbit/s, %d bytes allocated%n",
+      bytesPerSecond / 1e6,
+      bytesPerSecond * 8 / 320000,
+      allocated);
+    assertEquals(320, frameScanner.getBitrate());
+    assertTrue(bytesPerSecond > REQUIRED_BYTES_PER_SECOND);
+    assertTrue(allocated < 1024);
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+// HlsStream against loopback HTTP fixture, with TS and packed audio segments
+public class HlsStreamTest {
+  private static final String HLS = "application/vnd.apple.mpegurl";
+  private static final int FRAME_LENGTH = 200;
+  // About 1 s of AAC at 44.1 kHz
+  private static final int SEGMENT_FRAMES = 43;
+  private static final int AUDIO_PID = 0x101;
+  private static final int PMT_PID = 0x1000;
+  private HttpFixture httpFixture;
+  private int continuityCounter = 0;
+
+  // ADTS frame, numbered by segment and index in segment
+  @NonNull
+  private static byte[] getFrame(int segment, int index) {
+    final byte[] frame = new byte[FRAME_LENGTH];
+    final byte[] header = FrameScannerTest.getAdtsHeader(FRAME_LENGTH);
+    System.arraycopy(header, 0, frame, 0, header.length);
+    frame[7] = (byte) segment;
+    frame[8] = (byte) index;
+    for (int i = 9; i < FRAME_LENGTH; i++) {
+      frame[i] = (byte) (i & 0x7F);
+    }
+    return frame;
+  }
+
+  @NonNull
+  private static byte[] getAudio(int segment) {
+    final ByteArrayOutputStream audio = new ByteArrayOutputStream();
+    for (int i = 0; i < SEGMENT_FRAMES; i++) {
+      audio.write(getFrame(segment, i), 0, FRAME_LENGTH);
+    }
+    return audio.toByteArray();
+  }
+
+  // Packed audio, behind an ID3 tag
+  @NonNull
+  private static byte[] getPackedSegment(int segment) {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    final byte[] id3 = new byte[10 + 63];
+    id3[0] = 'I';
+    id3[1] = 'D';
+    id3[2] = '3';
+    id3[3] = 4;
+    id3[9] = 63;
+    data.write(id3, 0, id3.length);
+    final byte[] audio = getAudio(segment);
+    data.write(audio, 0, audio.length);
+    return data.toByteArray();
+  }
+
+  // Numbered frames, ending on given segment
+  private static void checkFrames(
+    @NonNull InputStream inputStream, int firstSegment, int lastSegment) throws IOException {
+    final DataInputStream dataInputStream = new DataInputStream(inputStream);
+    final byte[] frame = new byte[FRAME_LENGTH];
+    for (int segment = firstSegment; segment <= lastSegment; segment++) {
+      for (int index = 0; index < SEGMENT_FRAMES; index++) {
+        dataInputStream.readFully(frame);
+        assertEquals(FRAME_LENGTH, AudioFrames.getFrameLength(frame, 0));
+        assertEquals(segment, frame[7]);
+        assertEquals(index, frame[8]);
+      }
+    }
+  }
+
+  @NonNull
+  private static String getMediaPlaylist(
+    int firstSegment, int lastSegment, @NonNull String extension, boolean isEnded) {
+    final StringBuilder playlist = new StringBuilder(
+      "#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:1\n#EXT-X-MEDIA-SEQUENCE:" +
+        firstSegment + "\n");
+    for (int segment = firstSegment; segment <= lastSegment; segment++) {
+      playlist.append("#EXTINF:1.0,\nsegment").append(segment).append(extension).append("\n");
+    }
+    if (isEnded) {
+      playlist.append("#EXT-X-ENDLIST\n");
+    }
+    return playlist.toString();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    httpFixture = new HttpFixture();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    httpFixture.close();
+  }
+
+  // MPEG-TS: PAT, PMT, then audio PES over as many packets as needed
+  @NonNull
+  private byte[] getTsSegment(int segment, int streamType) {
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    putPacket(data, 0, new byte[]{
+      0, 0x00, (byte) 0xB0, 13, 0, 1, (byte) 0xC1, 0, 0,
+      0, 1, (byte) (0xE0 | (PMT_PID >> 8)), (byte) PMT_PID,
+      0, 0, 0, 0}, 0, 17);
+    putPacket(data, PMT_PID, new byte[]{
+      0, 0x02, (byte) 0xB0, 18, 0, 1, (byte) 0xC1, 0, 0,
+      (byte) (0xE0 | (AUDIO_PID >> 8)), (byte) AUDIO_PID, (byte) 0xF0, 0,
+      (byte) streamType, (byte) (0xE0 | (AUDIO_PID >> 8)), (byte) AUDIO_PID, (byte) 0xF0, 0,
+      0, 0, 0, 0}, 0, 22);
+    final ByteArrayOutputStream pes = new ByteArrayOutputStream();
+    // PES header with PTS
+    pes.write(
+      new byte[]{0, 0, 1, (byte) 0xC0, 0, 0, (byte) 0x80, (byte) 0x80, 5, 0x21, 0, 1, 0, 1},
+      0,
+      14);
+    final byte[] audio = getAudio(segment);
+    pes.write(audio, 0, audio.length);
+    final byte[] pesData = pes.toByteArray();
+    for (int offset = 0; offset < pesData.length; offset += 184) {
+      putPacket(data, AUDIO_PID, pesData, offset, Math.min(184, pesData.length - offset));
+    }
+    return data.toByteArray();
+  }
+
+  // Payload is stuffed through adaptation field if shorter than 184 bytes
+  private void putPacket(
+    @NonNull ByteArrayOutputStream data, int pid, @NonNull byte[] payload, int offset, int length) {
+    final byte[] packet = new byte[188];
+    packet[0] = 0x47;
+    packet[1] = (byte) (((offset == 0) ? 0x40 : 0) | (pid >> 8));
+    packet[2] = (byte) pid;
+    int index = 4;
+    if (length < 184) {
+      packet[3] = (byte) (0x30 | (continuityCounter++ & 0x0F));
+      final int adaptationFieldLength = 183 - length;
+      packet[4] = (byte) adaptationFieldLength;
+      for (int i = 6; i < 5 + adaptationFieldLength; i++) {
+        packet[i] = (byte) 0xFF;
+      }
+      index = 5 + adaptationFieldLength;
+    } else {
+      packet[3] = (byte) (0x10 | (continuityCounter++ & 0x0F));
+    }
+    System.arraycopy(payload, offset, packet, index, length);
+    data.write(packet, 0, packet.length);
+  }
+
+  private void putTsSegments(@NonNull String path, int firstSegment, int lastSegment) {
+    for (int segment = firstSegment; segment <= lastSegment; segment++) {
+      httpFixture.put(
+        path + "segment" + segment + ".ts", 200, "video/mp2t", getTsSegment(segment, 0x0F));
+    }
+  }
+
+  @Test
+  public void readsTsVariantWithinBandwidth() throws IOException {
+    httpFixture.put(
+      "/master.m3u8",
+      HLS,
+      "#EXTM3U\n" +
+        "#EXT-X-STREAM-INF:BANDWIDTH=64000\nlow/media.m3u8\n" +
+        "#EXT-X-STREAM-INF:BANDWIDTH=128000,CODECS=\"mp4a.40.2\"\nmid/media.m3u8\n" +
+        "#EXT-X-STREAM-INF:BANDWIDTH=512000\nhigh/media.m3u8\n");
+    httpFixture.put("/mid/media.m3u8", HLS, getMediaPlaylist(0, 4, ".ts", true));
+    putTsSegments("/mid/", 0, 4);
+    try (HlsStream hlsStream = new HlsStream(httpFixture.getURL("/master.m3u8"), null)) {
+      assertEquals("audio/aac", hlsStream.getContentType());
+      // Whole playlist, as ended
+      checkFrames(hlsStream, 0, 4);
+      assertEquals(-1, hlsStream.read());
+    }
+    assertEquals(0, httpFixture.getRequests("/low/media.m3u8"));
+    assertEquals(0, httpFixture.getRequests("/high/media.m3u8"));
+  }
+
+  @Test
+  public void readsMp3InTs() throws IOException {
+    httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(0, 0, ".ts", true));
+    httpFixture.put("/segment0.ts", 200, "video/mp2t", getTsSegment(0, 0x03));
+    try (HlsStream hlsStream = new HlsStream(httpFixture.getURL("/media.m3u8"), null)) {
+      // Payload is not checked, only stream type
+      assertEquals("audio/mpeg", hlsStream.getContentType());
+    }
+  }
+
+  @Test
+  public void readsPackedAudio() throws IOException {
+    httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(0, 2, ".aac", true));
+    for (int segment = 0; segment <= 2; segment++) {
+      httpFixture.put(
+        "/segment" + segment + ".aac", 200, "audio/aac", getPackedSegment(segment));
+    }
+    try (HlsStream hlsStream = new HlsStream(httpFixture.getURL("/media.m3u8"), null)) {
+      assertEquals("audio/aac", hlsStream.getContentType());
+      checkFrames(hlsStream, 0, 2);
+    }
+  }
+
+  @Test
+  public void skipsMissingSegment() throws IOException {
+    httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(0, 2, ".ts", true));
+    putTsSegments("/", 0, 0);
+    putTsSegments("/", 2, 2);
+    try (HlsStream hlsStream = new HlsStream(httpFixture.getURL("/media.m3u8"), null)) {
+      checkFrames(hlsStream, 0, 0);
+      checkFrames(hlsStream, 2, 2);
+      assertEquals(-1, hlsStream.read());
+    }
+  }
+
+  @Test
+  public void followsLivePlaylist() throws IOException {
+    httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(0, 9, ".ts", false));
+    putTsSegments("/", 0, 14);
+    try (HlsStream hlsStream = new HlsStream(httpFixture.getURL("/media.m3u8"), null)) {
+      // Live edge
+      checkFrames(hlsStream, 7, 9);
+      // Sliding window
+      httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(5, 14, ".ts", false));
+      checkFrames(hlsStream, 10, 14);
+    }
+    assertEquals(0, httpFixture.getRequests("/segment6.ts"));
+  }
+
+  // Refresh thread shall not die on close
+  @Test
+  public void closesDuringRefresh() throws Exception {
+    final AtomicReference<Throwable> uncaught = new AtomicReference<>();
+    final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+    Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> uncaught.set(throwable));
+    try {
+      httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(0, 9, ".ts", false));
+      putTsSegments("/", 0, 12);
+      final long start = System.currentTimeMillis();
+      final HlsStream hlsStream = new HlsStream(httpFixture.getURL("/media.m3u8"), null);
+      // Cache is emptied, new segments are to be queued by next refresh, in 1 s.
+      // Refresh takes 500 ms, stream is closed meanwhile.
+      checkFrames(hlsStream, 7, 9);
+      httpFixture.put("/media.m3u8", HLS, getMediaPlaylist(0, 12, ".ts", false));
+      httpFixture.setDelay(500);
+      Thread.sleep(1200 - (System.currentTimeMillis() - start));
+      hlsStream.close();
+      Thread.sleep(1000);
+      assertEquals(-1, hlsStream.read());
+      assertTrue(httpFixture.getRequests("/media.m3u8") >= 2);
+      assertNull(uncaught.get());
+    } finally {
+      Thread.setDefaultUncaughtExceptionHandler(handler);
+    }
+  }
+}
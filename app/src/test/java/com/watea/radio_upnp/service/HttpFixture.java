@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loopback HTTP server for tests: serves resources put by path, one request per connection.
+// Resources may be replaced while serving, as live playlists are.
+public class HttpFixture implements Closeable {
+  @NonNull
+  private final ServerSocket serverSocket;
+  private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+  // Before each response, ms
+  private volatile int delay = 0;
+
+  public HttpFixture() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final Thread thread = new Thread(this::accept, "HttpFixture");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @NonNull
+  public URL getURL(@NonNull String path) throws IOException {
+    return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+  }
+
+  public void put(@NonNull String path, @Nullable String contentType, @NonNull String body) {
+    put(path, 200, contentType, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public void put(
+    @NonNull String path, int status, @Nullable String contentType, @NonNull byte[] body) {
+    resources.put(path, new Resource(status, contentType, body));
+  }
+
+  public void setDelay(int delay) {
+    this.delay = delay;
+  }
+
+  // Number of requests received for path
+  public int getRequests(@NonNull String path) {
+    final AtomicInteger count = requests.get(path);
+    return (count == null) ? 0 : count.get();
+  }
+
+  // Number of requests received for path with method (e.g. HEAD)
+  public int getRequests(@NonNull String method, @NonNull String path) {
+    return getRequests(method + " " + path);
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        final Socket socket = serverSocket.accept();
+        final Thread thread = new Thread(() -> serve(socket), "HttpFixture");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    } catch (IOException iOException) {
+      // Closed
+    }
+  }
+
+  private void serve(@NonNull Socket socket) {
+    // Socket is closed with its stream
+    try (BufferedReader reader = new BufferedReader(
+      new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+      final String requestLine = reader.readLine();
+      String line;
+      while (((line = reader.readLine()) != null) && !line.isEmpty()) {
+        // Headers are not used
+      }
+      if (requestLine == null) {
+        return;
+      }
+      final String[] tokens = requestLine.split(" ");
+      final String path = (tokens.length > 1) ? tokens[1] : "";
+      requests.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+      requests.computeIfAbsent(tokens[0] + " " + path, key -> new AtomicInteger())
+        .incrementAndGet();
+      Resource resource = resources.get(path);
+      if (resource == null) {
+        resource = new Resource(404, null, new byte[0]);
+      }
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+      final OutputStream outputStream = socket.getOutputStream();
+      outputStream.write((
+        "HTTP/1.0 " + resource.status + " Status\r\n" +
+          ((resource.contentType == null) ?
+            "" : "Content-Type: " + resource.contentType + "\r\n") +
+          "Content-Length: " + resource.body.length + "\r\n" +
+          "Connection: close\r\n" +
+          "\r\n").getBytes(StandardCharsets.US_ASCII));
+      if (!tokens[0].equals("HEAD")) {
+        outputStream.write(resource.body);
+      }
+      outputStream.flush();
+    } catch (IOException | InterruptedException exception) {
+      // Client gone
+    }
+  }
+
+  private static class Resource {
+    private final int status;
+    @Nullable
+    private final String contentType;
+    @NonNull
+    private final byte[] body;
+
+    private Resource(int status, @Nullable String contentType, @NonNull byte[] body) {
+      this.status = status;
+      this.contentType = contentType;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.BuildConfig;
+import com.watea.radio_upnp.model.Radio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// HttpServer lanes under load: simulated renderers on loopback ICY server.
+// Results are printed.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class HttpServerTest {
+  private static final int RENDERERS = 20;
+  private static final int RESOURCE_REQUESTS = 4 * HttpServer.RESOURCE_QUEUE_MAX;
+  // Ten times real time at 128 kbit/s
+  private static final int BYTES_PER_SECOND = 160000;
+  private static final int TIMEOUT = 10000; // ms
+  private static final int HEAP_MAX = 32 * 1024 * 1024; // bytes
+  private static final String THREAD_PREFIX = HttpServer.class.getName() + "-";
+  private IcyServer icyServer;
+  private HttpServer httpServer;
+  private Radio radio;
+
+  // Threads of given pool
+  private static int getPoolThreads(@NonNull String name) {
+    int poolThreads = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith(THREAD_PREFIX + name + "-")) {
+        poolThreads++;
+      }
+    }
+    return poolThreads;
+  }
+
+  // -1 until connector is open; loopback URI is built with address in path
+  private static int getPort(@NonNull Uri uri) {
+    return Uri.parse(uri.toString()).getPort();
+  }
+
+  private static long getUsedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    final Context context = RuntimeEnvironment.getApplication();
+    icyServer = new IcyServer(8192, BYTES_PER_SECOND);
+    radio = new Radio("Test", icyServer.getURL(), null, false, null);
+    radio.setId(1L);
+    httpServer = new HttpServer(
+      context,
+      "Test",
+      radioId -> radioId.equals(radio.getId()) ? radio : null,
+      (information, rate, format, lockKey) -> {
+      },
+      new ResolvedUrlCache(context),
+      () -> {
+      });
+    httpServer.setRadioHandlerController(() -> false);
+    httpServer.start();
+    assertTrue(StreamHubTest.waitFor(
+      () -> (getPort(httpServer.getLoopbackUri()) > 0) &&
+        (getPort(httpServer.getResourceLoopbackUri()) > 0),
+      TIMEOUT));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    httpServer.stopServer();
+    icyServer.close();
+  }
+
+  @Test(timeout = 60000)
+  public void streamLaneIsBounded() throws Exception {
+    final boolean isAsync = BuildConfig.ASYNC_STREAMING;
+    final int streamsMax = isAsync ? HttpServer.ASYNC_STREAMS_MAX : HttpServer.STREAMS_MAX;
+    final int threadsMax = HttpServer.CONNECTOR_THREADS + (isAsync ?
+      HttpServer.ASYNC_STREAM_THREADS : HttpServer.STREAMS_MAX + HttpServer.SPARE_THREADS);
+    final long usedHeap = getUsedHeap();
+    final List<Renderer> renderers = new ArrayList<>();
+    for (int i = 0; i < RENDERERS; i++) {
+      final Renderer renderer = new Renderer(getStreamURL(httpServer.getLoopbackUri(), i));
+      renderer.start();
+      renderers.add(renderer);
+    }
+    int threads = 0;
+    int served = 0;
+    int rejected = 0;
+    for (Renderer renderer : renderers) {
+      assertTrue(StreamHubTest.waitFor(() -> renderer.getResponseCode() != 0, TIMEOUT));
+      threads = Math.max(threads, getPoolThreads("stream"));
+      if (renderer.getResponseCode() == HttpURLConnection.HTTP_OK) {
+        assertTrue(StreamHubTest.waitFor(() -> renderer.getReceived() > 0, TIMEOUT));
+        served++;
+      } else {
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, renderer.getResponseCode());
+        rejected++;
+      }
+    }
+    threads = Math.max(threads, getPoolThreads("stream"));
+    final long heap = getUsedHeap() - usedHeap;
+    for (Renderer renderer : renderers) {
+      renderer.close();
+    }
+    System.out.println(
+      RENDERERS + " renderers: " + served + " served, " + rejected + " rejected, " +
+        threads + " stream threads, " + heap / 1024 + " KB heap");
+    assertEquals(Math.min(RENDERERS, streamsMax), served);
+    assertTrue(threads <= threadsMax);
+    assertTrue(heap < HEAP_MAX);
+    // One upstream connection shared
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test(timeout = 60000)
+  public void resourceLaneIsBounded() throws Exception {
+    final Uri resourceUri = httpServer.getResourceLoopbackUri();
+    final URL url = new URL(resourceUri + MetricsHandler.TARGET);
+    final AtomicInteger answered = new AtomicInteger();
+    final AtomicInteger threads = new AtomicInteger();
+    final List<Thread> requests = new ArrayList<>();
+    for (int i = 0; i < RESOURCE_REQUESTS; i++) {
+      final Thread request = new Thread(() -> {
+        try {
+          final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+          // Rejected requests are dropped by Jetty
+          if (httpURLConnection.getResponseCode() > 0) {
+            answered.incrementAndGet();
+          }
+          threads.set(Math.max(threads.get(), getPoolThreads("resource")));
+          httpURLConnection.disconnect();
+        } catch (IOException iOException) {
+          // Rejected
+        }
+      });
+      request.start();
+      requests.add(request);
+    }
+    for (Thread request : requests) {
+      request.join(TIMEOUT);
+    }
+    System.out.println(
+      RESOURCE_REQUESTS + " short requests: " + answered.get() + " answered, " +
+        threads.get() + " resource threads");
+    assertTrue(answered.get() > 0);
+    assertTrue(threads.get() <= HttpServer.CONNECTOR_THREADS + HttpServer.RESOURCE_THREADS);
+    // Streams are not served on this lane
+    final HttpURLConnection httpURLConnection =
+      (HttpURLConnection) getStreamURL(resourceUri, 0).openConnection();
+    try {
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, httpURLConnection.getResponseCode());
+    } finally {
+      httpURLConnection.disconnect();
+    }
+    assertEquals(0, icyServer.getConnections());
+  }
+
+  @NonNull
+  private URL getStreamURL(@NonNull Uri uri, int renderer) throws IOException {
+    return new URL(RadioHandler.getHandledUri(uri, radio, "renderer" + renderer).toString());
+  }
+
+  // LAN client, counting received bytes
+  private static class Renderer extends Thread {
+    private final AtomicInteger responseCode = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    @NonNull
+    private final HttpURLConnection httpURLConnection;
+
+    private Renderer(@NonNull URL url) throws IOException {
+      httpURLConnection = (HttpURLConnection) url.openConnection();
+    }
+
+    @Override
+    public void run() {
+      final byte[] buffer = new byte[4096];
+      try {
+        responseCode.set(httpURLConnection.getResponseCode());
+        try (InputStream inputStream = httpURLConnection.getInputStream()) {
+          int read;
+          while ((read = inputStream.read(buffer)) > 0) {
+            received.addAndGet(read);
+          }
+        }
+      } catch (IOException iOException) {
+        // Closed or rejected
+      }
+    }
+
+    private int getResponseCode() {
+      return responseCode.get();
+    }
+
+    private long getReceived() {
+      return received.get();
+    }
+
+    private void close() {
+      httpURLConnection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class IcyMetadataTest {
+  // Former parser
+  private static final Pattern PATTERN_ICY = Pattern.compile(".*StreamTitle='([^;]*)';.*");
+  private static final int BENCHMARK_BLOCKS = 200000;
+  private final IcyMetadata icyMetadata = new IcyMetadata(StandardCharsets.UTF_8);
+
+  // As received: padded with 0 to 16 bytes chunks
+  @NonNull
+  private static byte[] getBlock(@NonNull String metadata) {
+    final byte[] bytes = metadata.getBytes(StandardCharsets.UTF_8);
+    final byte[] block = new byte[(bytes.length + 15) / 16 * 16];
+    System.arraycopy(bytes, 0, block, 0, bytes.length);
+    return block;
+  }
+
+  private boolean parse(@NonNull byte[] block) {
+    icyMetadata.clear();
+    icyMetadata.put(block, 0, block.length);
+    return icyMetadata.parse();
+  }
+
+  @Test
+  public void parsesTitleAndUrl() {
+    assertTrue(parse(getBlock("StreamTitle='Artist - Song';StreamUrl='http://x.org/a.jpg';")));
+    assertEquals("Artist - Song", icyMetadata.getTitle());
+    assertEquals("http://x.org/a.jpg", icyMetadata.getUrl());
+  }
+
+  @Test
+  public void toldOnlyOnTitleChange() {
+    final byte[] block = getBlock("StreamTitle='Song';");
+    assertTrue(parse(block));
+    assertFalse(parse(block));
+    assertTrue(parse(getBlock("StreamTitle='Song 2';")));
+    assertTrue(parse(getBlock("StreamTitle='';")));
+    assertEquals("", icyMetadata.getTitle());
+  }
+
+  @Test
+  public void keepsQuotesInTitle() {
+    parse(getBlock("StreamTitle='Rock 'n' Roll';StreamUrl='';"));
+    assertEquals("Rock 'n' Roll", icyMetadata.getTitle());
+    assertEquals("", icyMetadata.getUrl());
+  }
+
+  @Test
+  public void toleratesMissingTerminator() {
+    parse(getBlock("StreamTitle='Song"));
+    assertEquals("Song", icyMetadata.getTitle());
+    parse(getBlock("StreamTitle='Song 2'"));
+    assertEquals("Song 2", icyMetadata.getTitle());
+  }
+
+  @Test
+  public void noUrlIfNotSent() {
+    parse(getBlock("StreamTitle='Song';"));
+    assertNull(icyMetadata.getUrl());
+  }
+
+  @Test
+  public void decodesUtf8() {
+    parse(getBlock("StreamTitle='\u00C9dith Piaf - L\u2019Hymne \u00E0 l\u2019amour';"));
+    assertEquals("\u00C9dith Piaf - L\u2019Hymne \u00E0 l\u2019amour", icyMetadata.getTitle());
+  }
+
+  @Test
+  public void parsesLongBlock() {
+    final StringBuilder title = new StringBuilder();
+    while (title.length() < 2000) {
+      title.append("Very long title ");
+    }
+    final byte[] block = getBlock("StreamTitle='" + title + "';");
+    assertTrue(block.length <= IcyMetadata.METADATA_MAX);
+    parse(block);
+    assertEquals(title.toString(), icyMetadata.getTitle());
+  }
+
+  @Test
+  public void parsesBlocksWithoutAllocation() {
+    final byte[] block = getBlock("StreamTitle='Artist - Song';StreamUrl='';");
+    final com.sun.management.ThreadMXBean threadMXBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    // Warm up
+    for (int i = 0; i < BENCHMARK_BLOCKS; i++) {
+      parse(block);
+    }
+    final long threadId = Thread.currentThread().getId();
+    final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < BENCHMARK_BLOCKS; i++) {
+      parse(block);
+    }
+    final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+    System.out.println("IcyMetadata: " + allocated + " bytes allocated for unchanged blocks");
+    assertTrue(allocated < 1024);
+  }
+
+  @Test
+  public void isFasterThanRegex() throws CharacterCodingException {
+    final byte[][] blocks = {
+      getBlock("StreamTitle='Artist - Song';StreamUrl='http://x.org/a.jpg';"),
+      getBlock("StreamTitle='Artist - Song 2';StreamUrl='http://x.org/b.jpg';")};
+    final CharsetDecoder charsetDecoder = StandardCharsets.UTF_8.newDecoder();
+    long checksum = 0;
+    // Warm up, then measure
+    long regexTime = 0;
+    long time = 0;
+    for (int run = 0; run < 2; run++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < BENCHMARK_BLOCKS; i++) {
+        final byte[] block = blocks[i % 2];
+        final CharBuffer metadata = charsetDecoder.decode(ByteBuffer.wrap(block));
+        final Matcher matcher = PATTERN_ICY.matcher(metadata);
+        if (matcher.find() && (matcher.groupCount() > 0)) {
+          checksum += matcher.group(1).length();
+        }
+      }
+      regexTime = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < BENCHMARK_BLOCKS; i++) {
+        if (parse(blocks[i % 2])) {
+          checksum += icyMetadata.getTitle().length();
+        }
+      }
+      time = System.nanoTime() - start;
+    }
+    System.out.printf(
+      "ICY metadata: regex %d ns/block, IcyMetadata %d ns/block (%d)%n",
+      regexTime / BENCHMARK_BLOCKS,
+      time / BENCHMARK_BLOCKS,
+      checksum);
+    assertTrue(time < regexTime);
+  }
+}
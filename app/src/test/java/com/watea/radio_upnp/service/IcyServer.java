@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loopback ICY server for tests: serves an endless MP3 stream of numbered frames.
+// Frame n holds n in its first payload bytes, so that clients can check continuity.
+// Title in ICY metadata changes every TITLE_FRAMES frames.
+public class IcyServer implements Closeable {
+  // MPEG-1 Layer III, 128 kbit/s, 44.1 kHz, no padding
+  public static final int FRAME_LENGTH = 417;
+  public static final int TITLE_FRAMES = 100;
+  private static final byte[] FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+  @NonNull
+  private final ServerSocket serverSocket;
+  // 0 if no metadata
+  private final int metadataOffset;
+  // 0 if as fast as possible
+  private final int bytesPerSecond;
+  private final List<Socket> sockets = new Vector<>();
+  private final AtomicInteger connections = new AtomicInteger();
+  // ms, of each accepted connection
+  private final List<Long> connectionTimes = new Vector<>();
+  // Requests answered 503 before stream is served again
+  private final AtomicInteger failures = new AtomicInteger();
+  // Audio bytes sent on a connection before it is dropped
+  private volatile long bytesMax = Long.MAX_VALUE;
+  // Audio bytes skipped at start of a connection, as when joining a live stream mid-frame
+  private volatile int startOffset = 0;
+
+  public IcyServer(int metadataOffset, int bytesPerSecond) throws IOException {
+    this.metadataOffset = metadataOffset;
+    this.bytesPerSecond = bytesPerSecond;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    final Thread thread = new Thread(this::accept, "IcyServer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @NonNull
+  public static String getTitle(int frame) {
+    return "Title " + (frame / TITLE_FRAMES);
+  }
+
+  @NonNull
+  public static byte[] getFrame(int index) {
+    final byte[] frame = new byte[FRAME_LENGTH];
+    System.arraycopy(FRAME_HEADER, 0, frame, 0, FRAME_HEADER.length);
+    for (int i = 0; i < 4; i++) {
+      frame[FRAME_HEADER.length + i] = (byte) (index >>> (24 - 8 * i));
+    }
+    // Filler shall not look like a frame sync
+    for (int i = FRAME_HEADER.length + 4; i < FRAME_LENGTH; i++) {
+      frame[i] = (byte) ((index + i) & 0x7F);
+    }
+    return frame;
+  }
+
+  // Index of frame at offset, -1 if no frame header there
+  public static int getFrameIndex(@NonNull byte[] data, int offset) {
+    for (int i = 0; i < FRAME_HEADER.length; i++) {
+      if (data[offset + i] != FRAME_HEADER[i]) {
+        return -1;
+      }
+    }
+    int index = 0;
+    for (int i = 0; i < 4; i++) {
+      index = (index << 8) | (data[offset + FRAME_HEADER.length + i] & 0xFF);
+    }
+    return index;
+  }
+
+  // Checks that data, from offset, is a run of consecutive frames.
+  // A trailing partial frame is ignored.
+  // Returns index of first frame, -1 if no frame at offset or if sequence is broken.
+  public static int checkFrames(@NonNull byte[] data, int offset, int length) {
+    final int first = getFrameIndex(data, offset);
+    if (first < 0) {
+      return -1;
+    }
+    for (int position = offset + FRAME_LENGTH, index = first + 1;
+         position + FRAME_HEADER.length + 4 <= length;
+         position += FRAME_LENGTH, index++) {
+      if (getFrameIndex(data, position) != index) {
+        return -1;
+      }
+    }
+    return first;
+  }
+
+  @NonNull
+  public URL getURL() throws IOException {
+    return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/stream");
+  }
+
+  // Number of accepted connections
+  public int getConnections() {
+    return connections.get();
+  }
+
+  // Number of connections not yet closed
+  public int getOpenConnections() {
+    return sockets.size();
+  }
+
+  @NonNull
+  public List<Long> getConnectionTimes() {
+    return new Vector<>(connectionTimes);
+  }
+
+  public void setBytesMax(long bytesMax) {
+    this.bytesMax = bytesMax;
+  }
+
+  public void setStartOffset(int startOffset) {
+    this.startOffset = startOffset;
+  }
+
+  public void setFailures(int failures) {
+    this.failures.set(failures);
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        final Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        connectionTimes.add(System.currentTimeMillis());
+        sockets.add(socket);
+        final Thread thread = new Thread(() -> serve(socket), "IcyServer");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    } catch (IOException iOException) {
+      // Closed
+    }
+  }
+
+  private void serve(@NonNull Socket socket) {
+    // Socket is closed with its stream
+    try (BufferedReader reader = new BufferedReader(
+      new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+      boolean isIcy = false;
+      String line;
+      while (((line = reader.readLine()) != null) && !line.isEmpty()) {
+        isIcy = isIcy || line.toLowerCase().replace(" ", "").equals("icy-metadata:1");
+      }
+      isIcy = isIcy && (metadataOffset > 0);
+      final OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream());
+      if (failures.getAndUpdate(failure -> Math.max(0, failure - 1)) > 0) {
+        outputStream.write(
+          "HTTP/1.0 503 Service Unavailable\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+        return;
+      }
+      outputStream.write((
+        "HTTP/1.0 200 OK\r\n" +
+          "Content-Type: audio/mpeg\r\n" +
+          "icy-br: 128\r\n" +
+          "icy-name: Test\r\n" +
+          (isIcy ? "icy-metaint: " + metadataOffset + "\r\n" : "") +
+          "\r\n").getBytes(StandardCharsets.US_ASCII));
+      final long start = System.nanoTime();
+      long sent = 0;
+      int untilMetadata = metadataOffset;
+      int offset = startOffset % FRAME_LENGTH;
+      for (int index = startOffset / FRAME_LENGTH; sent < bytesMax; index++) {
+        final byte[] frame = getFrame(index);
+        while ((offset < frame.length) && (sent < bytesMax)) {
+          int length = (int) Math.min(bytesMax - sent, frame.length - offset);
+          if (isIcy) {
+            length = Math.min(length, untilMetadata);
+          }
+          outputStream.write(frame, offset, length);
+          offset += length;
+          sent += length;
+          untilMetadata -= length;
+          if (isIcy && (untilMetadata == 0)) {
+            outputStream.write(getMetadata(index));
+            untilMetadata = metadataOffset;
+          }
+        }
+        offset = 0;
+        if (bytesPerSecond > 0) {
+          outputStream.flush();
+          final long delay =
+            (start - System.nanoTime()) / 1000000 + sent * 1000 / bytesPerSecond;
+          if (delay > 0) {
+            Thread.sleep(delay);
+          }
+        }
+      }
+      outputStream.flush();
+    } catch (IOException | InterruptedException exception) {
+      // Client gone
+    } finally {
+      sockets.remove(socket);
+    }
+  }
+
+  // Length byte, then StreamTitle padded to 16 bytes chunks
+  @NonNull
+  private byte[] getMetadata(int frame) {
+    final byte[] text =
+      ("StreamTitle='" + getTitle(frame) + "';StreamUrl='';").getBytes(StandardCharsets.UTF_8);
+    final int chunks = (text.length + 15) / 16;
+    final byte[] metadata = new byte[1 + 16 * chunks];
+    metadata[0] = (byte) chunks;
+    System.arraycopy(text, 0, metadata, 1, text.length);
+    return metadata;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogoCacheTest {
+  // From LogoCache
+  private static final String DIRECTORY = "logos";
+  private static final int TIMEOUT = 5000; // ms
+  private final Map<Long, Radio> radios = new ConcurrentHashMap<>();
+  private Context context;
+  private LogoCache logoCache;
+
+  @Before
+  public void setUp() {
+    context = RuntimeEnvironment.getApplication();
+    logoCache = newLogoCache();
+  }
+
+  @After
+  public void tearDown() {
+    logoCache.release();
+  }
+
+  @NonNull
+  private LogoCache newLogoCache() {
+    return new LogoCache(context, radios::get);
+  }
+
+  // As in RadioLibrary: icon file named from radio ID
+  private void addRadio(long radioId) throws IOException {
+    final Radio radio = new Radio(
+      "Radio " + radioId,
+      new URL("http://radio" + radioId + ".test/stream"),
+      null,
+      false,
+      Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+    radio.setId(radioId);
+    assertTrue(radio.storeIcon(context));
+    radios.put(radioId, radio);
+  }
+
+  @NonNull
+  private File[] getFiles() {
+    final File[] files = new File(context.getFilesDir(), DIRECTORY).listFiles();
+    assertNotNull(files);
+    Arrays.sort(files);
+    return files;
+  }
+
+  @Test
+  public void storedLogoIsNotEncodedAgain() throws IOException {
+    addRadio(1L);
+    final LogoCache.Logo logo = logoCache.get(1L);
+    assertNotNull(logo);
+    final File[] files = getFiles();
+    assertEquals(1, files.length);
+    assertTrue(files[0].getName().startsWith(
+      "1_" + Long.toHexString(LogoCache.getVersion(radios.get(1L))) + "_"));
+    // Stored content is served on restart
+    final byte[] bytes = "Stored".getBytes(StandardCharsets.US_ASCII);
+    try (FileOutputStream fileOutputStream = new FileOutputStream(files[0])) {
+      fileOutputStream.write(bytes);
+    }
+    logoCache.release();
+    logoCache = newLogoCache();
+    final LogoCache.Logo storedLogo = logoCache.get(1L);
+    assertNotNull(storedLogo);
+    assertArrayEquals(bytes, storedLogo.getBytes());
+    assertEquals(logo.getETag(), storedLogo.getETag());
+    assertEquals(files[0].lastModified(), storedLogo.getLastModified());
+  }
+
+  @Test
+  public void newIconIsEncodedAgain() throws IOException {
+    addRadio(1L);
+    assertNotNull(logoCache.get(1L));
+    final String name = getFiles()[0].getName();
+    final File iconFile = radios.get(1L).getIconFile();
+    assertTrue(iconFile.setLastModified(iconFile.lastModified() + 10000));
+    assertNotNull(logoCache.get(1L));
+    final File[] files = getFiles();
+    assertEquals(1, files.length);
+    assertNotEquals(name, files[0].getName());
+    assertTrue(files[0].getName().startsWith(
+      "1_" + Long.toHexString(LogoCache.getVersion(radios.get(1L))) + "_"));
+  }
+
+  @Test
+  public void concurrentEncodingsStoreOneCompleteFile() throws Exception {
+    addRadio(1L);
+    final int threads = 4;
+    final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    final List<Future<LogoCache.Logo>> futures = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      futures.add(executorService.submit(() -> logoCache.get(1L)));
+    }
+    LogoCache.Logo logo = null;
+    for (Future<LogoCache.Logo> future : futures) {
+      logo = future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+      assertNotNull(logo);
+    }
+    executorService.shutdown();
+    // No temporary file left
+    final File[] files = getFiles();
+    assertEquals(1, files.length);
+    final byte[] bytes = new byte[(int) files[0].length()];
+    try (DataInputStream dataInputStream =
+           new DataInputStream(new FileInputStream(files[0]))) {
+      dataInputStream.readFully(bytes);
+    }
+    assertArrayEquals(logo.getBytes(), bytes);
+  }
+
+  @Test
+  public void logoIsEncodedWithinTimeout() throws Exception {
+    addRadio(1L);
+    final LogoCache.Logo logo = logoCache.get(1L, TIMEOUT);
+    assertNotNull(logo);
+    assertEquals(1, getFiles().length);
+    assertEquals(logo, logoCache.get(1L, 0));
+  }
+
+  @Test
+  public void prefetchStoresNewRadiosAndDeletesRemovedOnes() throws Exception {
+    addRadio(1L);
+    addRadio(2L);
+    logoCache.prefetch(() -> Arrays.asList(1L, 2L));
+    assertTrue(StreamHubTest.waitFor(() -> getFiles().length == 2, TIMEOUT));
+    final long lastModified = getFiles()[0].lastModified();
+    radios.remove(2L);
+    logoCache.release();
+    logoCache = newLogoCache();
+    logoCache.prefetch(() -> Collections.singletonList(1L));
+    assertTrue(StreamHubTest.waitFor(() -> getFiles().length == 1, TIMEOUT));
+    assertTrue(getFiles()[0].getName().startsWith("1_"));
+    assertEquals(lastModified, getFiles()[0].lastModified());
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import androidx.annotation.Nullable;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// LogoHandler served by embedded Jetty; conditional requests
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogoHandlerTest {
+  private final Map<Long, Radio> radios = new ConcurrentHashMap<>();
+  private LogoCache logoCache;
+  private Server server;
+  private URL url;
+  private LogoCache.Logo logo;
+
+  @Before
+  public void setUp() throws Exception {
+    final Context context = RuntimeEnvironment.getApplication();
+    final Radio radio = new Radio(
+      "Radio",
+      new URL("http://radio.test/stream"),
+      null,
+      false,
+      Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888));
+    radio.setId(1L);
+    assertTrue(radio.storeIcon(context));
+    radios.put(1L, radio);
+    logoCache = new LogoCache(context, radios::get);
+    // Encoded ahead
+    logo = logoCache.get(1L);
+    assertNotNull(logo);
+    server = new Server(0);
+    server.setHandler(new LogoHandler(logoCache));
+    server.start();
+    url = new URL(LogoHandler.getHandledUri(
+      Uri.parse("http://127.0.0.1:" + server.getConnectors()[0].getLocalPort()), radio)
+      .toString());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+    logoCache.release();
+  }
+
+  @Test
+  public void logoIsServedWithValidators() throws IOException {
+    final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+    try {
+      assertEquals(HttpURLConnection.HTTP_OK, httpURLConnection.getResponseCode());
+      assertEquals("image/jpeg", httpURLConnection.getContentType());
+      assertEquals(logo.getETag(), httpURLConnection.getHeaderField("ETag"));
+      assertEquals(logo.getLastModified() / 1000, httpURLConnection.getLastModified() / 1000);
+      assertEquals(logo.getBytes().length, httpURLConnection.getContentLength());
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+
+  @Test
+  public void matchingETagIsNotModified() throws IOException {
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, getResponseCode(logo.getETag(), 0));
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, getResponseCode("W/" + logo.getETag(), 0));
+    assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, getResponseCode("*", 0));
+    assertEquals(
+      HttpURLConnection.HTTP_NOT_MODIFIED, getResponseCode("\"other\", " + logo.getETag(), 0));
+    assertEquals(HttpURLConnection.HTTP_OK, getResponseCode("\"other\"", 0));
+  }
+
+  @Test
+  public void unmodifiedSinceIsNotModified() throws IOException {
+    assertEquals(
+      HttpURLConnection.HTTP_NOT_MODIFIED, getResponseCode(null, logo.getLastModified()));
+    assertEquals(
+      HttpURLConnection.HTTP_NOT_MODIFIED, getResponseCode(null, logo.getLastModified() + 60000));
+    assertEquals(HttpURLConnection.HTTP_OK, getResponseCode(null, logo.getLastModified() - 60000));
+  }
+
+  @Test
+  public void unknownRadioIsNotFound() throws IOException {
+    final HttpURLConnection httpURLConnection = (HttpURLConnection) new URL(
+      url.toString().replace("logo_1_", "logo_2_")).openConnection();
+    try {
+      assertEquals(HttpURLConnection.HTTP_NOT_FOUND, httpURLConnection.getResponseCode());
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+
+  @Test
+  public void eTagTakesPrecedenceOverDate() throws IOException {
+    assertEquals(HttpURLConnection.HTTP_OK, getResponseCode("\"other\"", logo.getLastModified()));
+  }
+
+  // If-Modified-Since not sent if 0
+  private int getResponseCode(@Nullable String ifNoneMatch, long ifModifiedSince)
+    throws IOException {
+    final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+    try {
+      if (ifNoneMatch != null) {
+        httpURLConnection.setRequestProperty("If-None-Match", ifNoneMatch);
+      }
+      httpURLConnection.setIfModifiedSince(ifModifiedSince);
+      return httpURLConnection.getResponseCode();
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+}
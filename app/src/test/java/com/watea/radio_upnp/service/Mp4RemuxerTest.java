@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class Mp4RemuxerTest {
+  private static final int FRAME_LENGTH = 372;
+  private static final int FRAMES = 200;
+  // 1 s at 44.1 kHz, 1024 samples per frame
+  private static final int FRAGMENT_FRAMES = 44;
+  private static final int SAMPLES = 1024;
+
+  // ADTS frames, AAC LC 44.1 kHz stereo; payload is numbered
+  @NonNull
+  private static byte[] getAdtsFrames(@NonNull ByteArrayOutputStream payloads) {
+    final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    final byte[] header = FrameScannerTest.getAdtsHeader(FRAME_LENGTH);
+    for (int i = 0; i < FRAMES; i++) {
+      final byte[] payload = new byte[FRAME_LENGTH - header.length];
+      for (int j = 0; j < payload.length; j++) {
+        payload[j] = (byte) ((i + j) & 0x7F);
+      }
+      frames.write(header, 0, header.length);
+      frames.write(payload, 0, payload.length);
+      payloads.write(payload, 0, payload.length);
+    }
+    return frames.toByteArray();
+  }
+
+  private static int getInt(@NonNull byte[] data, int offset) {
+    return ByteBuffer.wrap(data, offset, 4).getInt();
+  }
+
+  @NonNull
+  private static String getType(@NonNull byte[] data, int offset) {
+    return new String(data, offset + 4, 4, StandardCharsets.US_ASCII);
+  }
+
+  // Offset of first child box of given type within parent payload, -1 if none
+  private static int findBox(@NonNull byte[] data, int start, int end, @NonNull String type) {
+    for (int offset = start; offset + 8 <= end; offset += getInt(data, offset)) {
+      if (getType(data, offset).equals(type)) {
+        return offset;
+      }
+      assertTrue(getInt(data, offset) >= 8);
+    }
+    return -1;
+  }
+
+  // Offset of box found by path from given box, whose children start after header
+  private static int findBox(@NonNull byte[] data, int box, @NonNull String... path) {
+    for (String type : path) {
+      box = findBox(data, box + 8, box + getInt(data, box), type);
+      assertTrue("No box: " + type, box >= 0);
+    }
+    return box;
+  }
+
+  @NonNull
+  private static byte[] remux(@NonNull byte[] data, @Nullable Random random) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final Mp4Remuxer mp4Remuxer = new Mp4Remuxer(output);
+    // Data cut anywhere, as received
+    for (int offset = 0; offset < data.length; ) {
+      final int length =
+        Math.min(data.length - offset, (random == null) ? data.length : 1 + random.nextInt(500));
+      mp4Remuxer.write(data, offset, length);
+      offset += length;
+    }
+    mp4Remuxer.close();
+    return output.toByteArray();
+  }
+
+  @Test
+  public void handlesAacToMp4Only() {
+    assertTrue(Mp4Remuxer.isHandling("audio/aac", "audio/mp4"));
+    assertTrue(Mp4Remuxer.isHandling("audio/aacp", "audio/x-m4a"));
+    assertFalse(Mp4Remuxer.isHandling("audio/mpeg", "audio/mp4"));
+    assertFalse(Mp4Remuxer.isHandling("audio/aac", "audio/aac"));
+    assertFalse(Mp4Remuxer.isHandling(null, "audio/mp4"));
+  }
+
+  @Test
+  public void remuxesAdtsToFragmentedMp4() throws IOException {
+    final ByteArrayOutputStream payloads = new ByteArrayOutputStream();
+    final byte[] frames = getAdtsFrames(payloads);
+    // Garbage before first frame is skipped
+    final byte[] data = new byte[100 + frames.length];
+    System.arraycopy(frames, 0, data, 100, frames.length);
+    data[50] = (byte) 0xFF;
+    final byte[] mp4 = remux(data, new Random(0));
+    assertArrayEquals(mp4, remux(data, null));
+    // ftyp, moov, then moof/mdat pairs up to the end
+    assertEquals("ftyp", getType(mp4, 0));
+    final int moov = getInt(mp4, 0);
+    assertEquals("moov", getType(mp4, moov));
+    final int stsd = findBox(mp4, moov, "trak", "mdia", "minf", "stbl", "stsd");
+    // Full box header and entry count, then mp4a
+    final int mp4a = stsd + 16;
+    assertEquals("mp4a", getType(mp4, mp4a));
+    assertEquals(44100, getInt(mp4, mp4a + 32) >>> 16);
+    // AudioSpecificConfig: LC, 44.1 kHz, stereo
+    final String mp4aData = new String(mp4, mp4a, getInt(mp4, mp4a), StandardCharsets.ISO_8859_1);
+    assertTrue(mp4aData.contains(
+      new String(new byte[]{0x05, 0x02, 0x12, 0x10}, StandardCharsets.ISO_8859_1)));
+    final ByteArrayOutputStream mdatPayloads = new ByteArrayOutputStream();
+    int samples = 0;
+    int sequenceNumber = 0;
+    int offset = moov + getInt(mp4, moov);
+    while (offset < mp4.length) {
+      assertEquals("moof", getType(mp4, offset));
+      final int moof = offset;
+      final int mdat = moof + getInt(mp4, moof);
+      assertEquals("mdat", getType(mp4, mdat));
+      assertEquals(++sequenceNumber, getInt(mp4, findBox(mp4, moof, "mfhd") + 12));
+      final int tfdt = findBox(mp4, moof, "traf", "tfdt");
+      assertEquals(samples, ByteBuffer.wrap(mp4, tfdt + 12, 8).getLong());
+      final int trun = findBox(mp4, moof, "traf", "trun");
+      final int sampleCount = getInt(mp4, trun + 12);
+      // Data offset from moof start
+      assertEquals(mdat + 8, moof + getInt(mp4, trun + 16));
+      int mdatSize = 0;
+      for (int i = 0; i < sampleCount; i++) {
+        assertEquals(SAMPLES, getInt(mp4, trun + 20 + 8 * i));
+        mdatSize += getInt(mp4, trun + 24 + 8 * i);
+      }
+      assertEquals(8 + mdatSize, getInt(mp4, mdat));
+      mdatPayloads.write(mp4, mdat + 8, mdatSize);
+      // One fragment per second, but last one
+      if (mdat + 8 + mdatSize < mp4.length) {
+        assertEquals(FRAGMENT_FRAMES, sampleCount);
+      }
+      samples += sampleCount * SAMPLES;
+      offset = mdat + 8 + mdatSize;
+    }
+    assertEquals(mp4.length, offset);
+    assertEquals(FRAMES * SAMPLES, samples);
+    // Raw AAC, ADTS headers removed
+    assertArrayEquals(payloads.toByteArray(), mdatPayloads.toByteArray());
+  }
+
+  @Test
+  public void writesNoSampleRateAbove16Bits() throws IOException {
+    final byte[] frames = getAdtsFrames(new ByteArrayOutputStream());
+    // 96 kHz sampling frequency index
+    for (int offset = 0; offset < frames.length; offset += FRAME_LENGTH) {
+      frames[offset + 2] = (byte) (frames[offset + 2] & ~0x3C);
+    }
+    final byte[] mp4 = remux(frames, null);
+    final int moov = getInt(mp4, 0);
+    final int mp4a = findBox(mp4, moov, "trak", "mdia", "minf", "stbl", "stsd") + 16;
+    assertEquals("mp4a", getType(mp4, mp4a));
+    assertEquals(0, getInt(mp4, mp4a + 32));
+    // Actual rate is in media header timescale
+    assertEquals(96000, getInt(mp4, findBox(mp4, moov, "trak", "mdia", "mdhd") + 20));
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+public class PlaylistResolverTest {
+  private HttpFixture httpFixture;
+
+  @Before
+  public void setUp() throws IOException {
+    httpFixture = new HttpFixture();
+    httpFixture.put("/stream", "audio/mpeg", "audio");
+    httpFixture.put("/stream2", "audio/aac", "audio");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    httpFixture.close();
+  }
+
+  // Path of resolved stream
+  @NonNull
+  private String resolve(@NonNull String path) throws IOException {
+    final HttpURLConnection httpURLConnection =
+      PlaylistResolver.connect(httpFixture.getURL(path), null);
+    try {
+      return httpURLConnection.getURL().getPath();
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+
+  @Test
+  public void streamIsReturnedAsIs() throws IOException {
+    assertEquals("/stream", resolve("/stream"));
+    // Stream content type is never sniffed
+    httpFixture.put("/radio.m3u", "audio/mpeg", "audio");
+    assertEquals("/radio.m3u", resolve("/radio.m3u"));
+  }
+
+  @Test
+  public void resolvesExtendedM3u() throws IOException {
+    httpFixture.put(
+      "/radio.m3u",
+      "audio/x-mpegurl",
+      "#EXTM3U\n#EXTINF:-1,Radio\n" + httpFixture.getURL("/stream") + "\n");
+    assertEquals("/stream", resolve("/radio.m3u"));
+  }
+
+  @Test
+  public void resolvesPlainM3u() throws IOException {
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", httpFixture.getURL("/stream2") + "\r\n");
+    assertEquals("/stream2", resolve("/radio.m3u"));
+  }
+
+  @Test
+  public void resolvesPlainM3uWithComment() throws IOException {
+    httpFixture.put(
+      "/radio.m3u",
+      "audio/x-mpegurl",
+      "# Radio\n\n#EXTINF:-1,Radio\n" + httpFixture.getURL("/stream") + "\n");
+    assertEquals("/stream", resolve("/radio.m3u"));
+  }
+
+  @Test
+  public void resolvesPlainM3uWithRelativeEntry() throws IOException {
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", "stream2\r\n");
+    assertEquals("/stream2", resolve("/radio.m3u"));
+  }
+
+  @Test
+  public void keepsTextMessage() throws IOException {
+    httpFixture.put("/radio.m3u", "text/plain", "Server is under maintenance\n");
+    assertEquals("/radio.m3u", resolve("/radio.m3u"));
+  }
+
+  @Test
+  public void resolvesPls() throws IOException {
+    httpFixture.put(
+      "/radio.pls",
+      "audio/x-scpls",
+      "[playlist]\nNumberOfEntries=1\nFile1=" + httpFixture.getURL("/stream") + "\nTitle1=Radio\n");
+    assertEquals("/stream", resolve("/radio.pls"));
+  }
+
+  @Test
+  public void resolvesAsx() throws IOException {
+    httpFixture.put(
+      "/radio.asx",
+      "video/x-ms-asf",
+      "<ASX version=\"3.0\"><Entry><Ref HREF = \"" + httpFixture.getURL("/stream") +
+        "?a=1&amp;b=2\" /></Entry></ASX>");
+    httpFixture.put("/stream?a=1&b=2", "audio/mpeg", "audio");
+    assertEquals("/stream", resolve("/radio.asx"));
+  }
+
+  @Test
+  public void resolvesXspf() throws IOException {
+    httpFixture.put(
+      "/radio.xspf",
+      "application/xspf+xml",
+      "<?xml version=\"1.0\"?><playlist><trackList><track><location>" +
+        httpFixture.getURL("/stream2") + "</location></track></trackList></playlist>");
+    assertEquals("/stream2", resolve("/radio.xspf"));
+  }
+
+  @Test
+  public void sniffsBodyBehindBomAndWrongContentType() throws IOException {
+    final byte[] body = ("\uFEFF[playlist]\nFile1=" + httpFixture.getURL("/stream") + "\n")
+      .getBytes(StandardCharsets.UTF_8);
+    httpFixture.put("/radio", 200, "text/plain", body);
+    assertEquals("/stream", resolve("/radio"));
+  }
+
+  @Test
+  public void skipsEntryDown() throws IOException {
+    httpFixture.put(
+      "/radio.m3u",
+      "audio/x-mpegurl",
+      httpFixture.getURL("/down") + "\n" + httpFixture.getURL("/stream2") + "\n");
+    assertEquals("/stream2", resolve("/radio.m3u"));
+    assertEquals(1, httpFixture.getRequests("/down"));
+  }
+
+  @Test
+  public void resolvesNestedPlaylist() throws IOException {
+    httpFixture.put("/radio.pls", "audio/x-scpls", "[playlist]\nFile1=radio.m3u\n");
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", "#EXTM3U\nstream\n");
+    assertEquals("/stream", resolve("/radio.pls"));
+  }
+
+  @Test(expected = IOException.class)
+  public void failsOnSelfReferencingPlaylist() throws IOException {
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", "#EXTM3U\nradio.m3u\n");
+    resolve("/radio.m3u");
+  }
+
+  @Test
+  public void keepsHlsPlaylist() throws IOException {
+    httpFixture.put(
+      "/live.m3u8",
+      "application/vnd.apple.mpegurl",
+      "#EXTM3U\n#EXT-X-TARGETDURATION:6\n#EXTINF:6,\nsegment0.ts\n");
+    assertEquals("/live.m3u8", resolve("/live.m3u8"));
+  }
+
+  @Test
+  public void keepsUnrecognizedContent() throws IOException {
+    httpFixture.put("/page", "text/html", "<html><body>Not a playlist</body></html>");
+    assertEquals("/page", resolve("/page"));
+  }
+
+  @Test
+  public void keepsWholeStreamBehindPlaylistExtension() throws IOException {
+    // Audio with playlist extension and no reliable content type: sniffed, then kept
+    final byte[] body = new byte[4096];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) (i * 7);
+    }
+    httpFixture.put("/radio.m3u", 200, "application/octet-stream", body);
+    final HttpURLConnection httpURLConnection =
+      PlaylistResolver.connect(httpFixture.getURL("/radio.m3u"), null);
+    try (InputStream inputStream = httpURLConnection.getInputStream()) {
+      final ByteArrayOutputStream received = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      int length;
+      while ((length = inputStream.read(buffer)) > 0) {
+        received.write(buffer, 0, length);
+      }
+      assertArrayEquals(body, received.toByteArray());
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+
+  @Test
+  public void headReadsPlaylistButNotStream() throws IOException {
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", httpFixture.getURL("/stream2") + "\n");
+    final HttpURLConnection httpURLConnection =
+      PlaylistResolver.head(httpFixture.getURL("/radio.m3u"), null);
+    try {
+      assertEquals("/stream2", httpURLConnection.getURL().getPath());
+      assertEquals("audio/aac", httpURLConnection.getContentType());
+    } finally {
+      httpURLConnection.disconnect();
+    }
+    assertEquals(1, httpFixture.getRequests("GET", "/radio.m3u"));
+    assertEquals(1, httpFixture.getRequests("HEAD", "/stream2"));
+    assertEquals(0, httpFixture.getRequests("GET", "/stream2"));
+  }
+
+  @Test
+  public void getsStreamContentType() throws IOException {
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", httpFixture.getURL("/stream2") + "\n");
+    assertEquals(
+      "audio/aac", PlaylistResolver.getStreamContentType(httpFixture.getURL("/radio.m3u")));
+    assertNull(PlaylistResolver.getStreamContentType(httpFixture.getURL("/down")));
+  }
+}
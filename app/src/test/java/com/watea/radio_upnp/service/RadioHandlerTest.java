@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// RadioHandler served by embedded Jetty, with loopback ICY server as upstream
+public class RadioHandlerTest {
+  // Four times real time at 128 kbit/s
+  private static final int BYTES_PER_SECOND = 64000;
+  private static final int PAUSE_DURATION = 2000; // ms
+  private static final int RING_FILL_DURATION = 2000; // ms
+  private static final int STREAMS_MAX = 32;
+  private static final int RENDERERS = 20;
+  // At least as many as pump threads
+  private static final int STALLED_RENDERERS = 4;
+  // Fast, so that socket buffers of stalled renderers get full
+  private static final int LOAD_BYTES_PER_SECOND = 4 * 1024 * 1024;
+  private volatile boolean isPaused = false;
+  private final RadioHandler.Controller controller = () -> isPaused;
+  private IcyServer icyServer;
+  private Server server;
+  private RadioHandler radioHandler;
+  private Radio radio;
+
+  // CPU time in ns of each thread but fixture ones
+  @NonNull
+  private static Map<Long, Long> getCpuTimes() {
+    final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    final Map<Long, Long> cpuTimes = new HashMap<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (!thread.getName().equals("IcyServer") && !(thread instanceof Client)) {
+        cpuTimes.put(thread.getId(), threadMXBean.getThreadCpuTime(thread.getId()));
+      }
+    }
+    return cpuTimes;
+  }
+
+  // Threads running RadioHandler or StreamPump code, that is held by streams
+  private static int getStreamThreads() {
+    int streamThreads = 0;
+    for (StackTraceElement[] stackTrace : Thread.getAllStackTraces().values()) {
+      for (StackTraceElement stackTraceElement : stackTrace) {
+        // Inner classes included
+        final String className = stackTraceElement.getClassName().split("\\$")[0];
+        if (className.equals(RadioHandler.class.getName()) ||
+          className.equals(StreamPump.class.getName())) {
+          streamThreads++;
+          break;
+        }
+      }
+    }
+    return streamThreads;
+  }
+
+  // ns, on threads alive at both times
+  private static long getCpuTime(@NonNull Map<Long, Long> start, @NonNull Map<Long, Long> end) {
+    long cpuTime = 0;
+    for (Map.Entry<Long, Long> entry : end.entrySet()) {
+      final Long startCpuTime = start.get(entry.getKey());
+      if ((startCpuTime != null) && (startCpuTime >= 0) && (entry.getValue() >= 0)) {
+        cpuTime += entry.getValue() - startCpuTime;
+      }
+    }
+    return cpuTime;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    radioHandler.stopStreaming();
+    server.stop();
+    icyServer.close();
+  }
+
+  @Test
+  public void pausedStreamUsesNoCpu() throws Exception {
+    checkPause(false);
+  }
+
+  @Test
+  public void pausedAsyncStreamUsesNoCpu() throws Exception {
+    checkPause(true);
+  }
+
+  @Test
+  public void playConnectsUpstreamOnce() throws Exception {
+    start(false);
+    play("play");
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test
+  public void firstGetUsesPreparedConnection() throws Exception {
+    start(false);
+    assertEquals("audio/mpeg", radioHandler.prepare(radio, "play"));
+    // Data received since prepare is sent
+    assertEquals(0, play("play"));
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test
+  public void headIsAnsweredWithoutUpstreamConnection() throws Exception {
+    start(false);
+    // Stream playing
+    final Client client = new Client(getURL("play"));
+    client.start();
+    assertTrue(StreamHubTest.waitFor(() -> client.getReceived() > 0, 10000));
+    assertEquals("audio/mpeg", head("head"));
+    client.close();
+    // Stream stopped, resolved URL known
+    assertTrue(StreamHubTest.waitFor(() -> icyServer.getOpenConnections() == 0, 5000));
+    assertEquals("audio/mpeg", head("head"));
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test(timeout = 60000)
+  public void stalledAsyncStreamsAreDroppedWithBoundedThreads() throws Exception {
+    start(true, LOAD_BYTES_PER_SECOND);
+    final long activeStreams = Metrics.ACTIVE_STREAMS.get();
+    // Stalled renderers: request sent, nothing read
+    final List<Socket> sockets = new ArrayList<>();
+    for (int i = 0; i < STALLED_RENDERERS; i++) {
+      final Socket socket = new Socket();
+      socket.setReceiveBufferSize(1024);
+      socket.connect(new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), server.getConnectors()[0].getLocalPort()));
+      socket.getOutputStream().write((
+        "GET " + getURL("stalled" + i).getFile() + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII));
+      sockets.add(socket);
+    }
+    final List<Client> clients = new ArrayList<>();
+    for (int i = STALLED_RENDERERS; i < RENDERERS; i++) {
+      final Client client = new Client(getURL("renderer" + i));
+      client.start();
+      clients.add(client);
+    }
+    assertTrue(StreamHubTest.waitFor(
+      () -> Metrics.ACTIVE_STREAMS.get() == activeStreams + RENDERERS, 10000));
+    // Streams are handed over to pump
+    for (Client client : clients) {
+      assertTrue(StreamHubTest.waitFor(() -> client.getReceived() > 0, 10000));
+    }
+    Thread.sleep(500);
+    final AtomicInteger streamThreadsMax = new AtomicInteger();
+    assertTrue("Stalled renderers not dropped", StreamHubTest.waitFor(
+      () -> {
+        streamThreadsMax.set(Math.max(streamThreadsMax.get(), getStreamThreads()));
+        return Metrics.ACTIVE_STREAMS.get() == activeStreams + RENDERERS - STALLED_RENDERERS;
+      },
+      StreamPump.WRITE_TIMEOUT + 10000));
+    // Others are still served
+    final long[] received = new long[clients.size()];
+    for (int i = 0; i < clients.size(); i++) {
+      received[i] = clients.get(i).getReceived();
+    }
+    Thread.sleep(2000);
+    for (int i = 0; i < clients.size(); i++) {
+      assertTrue("Renderer starved: " + i, clients.get(i).getReceived() > received[i]);
+      clients.get(i).close();
+    }
+    for (Socket socket : sockets) {
+      socket.close();
+    }
+    System.out.println(
+      "Threads held by " + RENDERERS + " streams: " + streamThreadsMax.get() + " at most");
+    assertTrue(streamThreadsMax.get() <= RENDERERS / 2);
+  }
+
+  private void start(boolean isAsync) throws Exception {
+    start(isAsync, BYTES_PER_SECOND);
+  }
+
+  private void start(boolean isAsync, int bytesPerSecond) throws Exception {
+    icyServer = new IcyServer(8192, bytesPerSecond);
+    radio = new Radio("Test", icyServer.getURL(), null, false, null);
+    radio.setId(1L);
+    radioHandler = new RadioHandler(
+      "Test",
+      radioId -> radioId.equals(radio.getId()) ? radio : null,
+      (information, rate, format, lockKey) -> {
+      },
+      new ResolvedUrlCache(new TestContext()),
+      STREAMS_MAX,
+      isAsync,
+      false);
+    radioHandler.setController(controller);
+    server = new Server(0);
+    server.setHandler(radioHandler);
+    server.start();
+  }
+
+  @NonNull
+  private URL getURL(@NonNull String lockKey) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getConnectors()[0].getLocalPort() +
+      "/RadioHandler_1?params=1_" + lockKey);
+  }
+
+  // Returns Content-Type
+  @NonNull
+  private String head(@NonNull String lockKey) throws Exception {
+    final HttpURLConnection httpURLConnection =
+      (HttpURLConnection) getURL(lockKey).openConnection();
+    try {
+      httpURLConnection.setRequestMethod("HEAD");
+      assertEquals(HttpURLConnection.HTTP_OK, httpURLConnection.getResponseCode());
+      return httpURLConnection.getContentType();
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+
+  // Returns index of first frame received
+  private int play(@NonNull String lockKey) throws Exception {
+    final Client client = new Client(getURL(lockKey));
+    client.start();
+    assertTrue(StreamHubTest.waitFor(() -> client.getReceived() > BYTES_PER_SECOND, 10000));
+    client.close();
+    return client.getFirstFrameIndex();
+  }
+
+  private void checkPause(boolean isAsync) throws Exception {
+    start(isAsync);
+    final Client client = new Client(getURL("pause"));
+    client.start();
+    assertTrue(StreamHubTest.waitFor(() -> client.getReceived() > BYTES_PER_SECOND, 10000));
+    isPaused = true;
+    radioHandler.onControllerStateChange();
+    // Data in flight is flushed, ring gets full (4 s at 128 kbit/s)
+    Thread.sleep(RING_FILL_DURATION);
+    final Map<Long, Long> start = getCpuTimes();
+    final Map<Long, Integer> fillLevels = radioHandler.getFillLevels();
+    Thread.sleep(PAUSE_DURATION);
+    final long cpuTime = getCpuTime(start, getCpuTimes()) / 1000000;
+    System.out.println("CPU time while paused: " + cpuTime + " ms in " + PAUSE_DURATION + " ms, " +
+      "fill level " + fillLevels);
+    // Upstream is no more read
+    assertEquals(fillLevels, radioHandler.getFillLevels());
+    assertTrue(fillLevels.get(radio.getId()) < 100);
+    // Only JVM and Jetty housekeeping left; a spinning thread would take all
+    assertTrue(cpuTime < PAUSE_DURATION / 20);
+    // Resumed
+    final long received = client.getReceived();
+    isPaused = false;
+    radioHandler.onControllerStateChange();
+    assertTrue(StreamHubTest.waitFor(
+      () -> client.getReceived() > received + BYTES_PER_SECOND, 10000));
+    client.close();
+  }
+
+  // LAN client, counting received bytes
+  private static class Client extends Thread {
+    private final AtomicLong received = new AtomicLong();
+    private final byte[] head = new byte[8];
+    @NonNull
+    private final HttpURLConnection httpURLConnection;
+
+    private Client(@NonNull URL url) throws IOException {
+      httpURLConnection = (HttpURLConnection) url.openConnection();
+    }
+
+    @Override
+    public void run() {
+      final byte[] buffer = new byte[4096];
+      try (InputStream inputStream = httpURLConnection.getInputStream()) {
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+          final long size = received.get();
+          if (size < head.length) {
+            System.arraycopy(buffer, 0, head, (int) size, Math.min(read, head.length - (int) size));
+          }
+          received.addAndGet(read);
+        }
+      } catch (IOException iOException) {
+        // Closed
+      }
+    }
+
+    private long getReceived() {
+      return received.get();
+    }
+
+    // -1 if no frame
+    private int getFirstFrameIndex() {
+      return IcyServer.getFrameIndex(head, 0);
+    }
+
+    private void close() {
+      httpURLConnection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import androidx.annotation.NonNull;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Vector;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// RadioURL against embedded Jetty, which keeps connections alive.
+// Client port of each request tells which connection was used.
+public class RadioURLTest {
+  // Above RadioURL drain limit
+  private static final int LARGE_BODY = 64 * 1024;
+  private static final int SMALL_BODY = 512;
+  private final List<Integer> clientPorts = new Vector<>();
+  private Server server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new Server(0);
+    server.setHandler(new AbstractHandler() {
+      @Override
+      public void handle(
+        String target,
+        Request baseRequest,
+        HttpServletRequest request,
+        HttpServletResponse response) throws IOException {
+        baseRequest.setHandled(true);
+        clientPorts.add(request.getRemotePort());
+        switch (target) {
+          // Not followed by platform, as 301/302 are
+          case "/radio/redirect":
+            response.setStatus(308);
+            response.setHeader("Location", "../stream/live");
+            send(response, SMALL_BODY);
+            break;
+          case "/stream/live":
+            response.setContentType("audio/mpeg");
+            send(response, SMALL_BODY);
+            break;
+          case "/large":
+            send(response, LARGE_BODY);
+            break;
+          default:
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.stop();
+  }
+
+  @Test
+  public void relativeLocationIsResolved() throws IOException {
+    final long redirects = Metrics.REDIRECTS.get();
+    final HttpURLConnection httpURLConnection =
+      new RadioURL(getURL("/radio/redirect")).getActualHttpURLConnection();
+    try {
+      assertEquals(HttpURLConnection.HTTP_OK, httpURLConnection.getResponseCode());
+      assertEquals(getURL("/stream/live"), httpURLConnection.getURL());
+      assertEquals("audio/mpeg", httpURLConnection.getContentType());
+    } finally {
+      httpURLConnection.disconnect();
+    }
+    assertEquals(redirects + 1, Metrics.REDIRECTS.get());
+    // Redirection connection was released for reuse
+    assertEquals(2, clientPorts.size());
+    assertEquals(clientPorts.get(0), clientPorts.get(1));
+  }
+
+  @Test
+  public void releasedConnectionIsReused() throws IOException {
+    RadioURL.release(open("/stream/live"));
+    RadioURL.release(open("/stream/live"));
+    assertEquals(2, clientPorts.size());
+    assertEquals(clientPorts.get(0), clientPorts.get(1));
+  }
+
+  @Test
+  public void largeContentIsNotDrained() throws IOException {
+    RadioURL.release(open("/large"));
+    RadioURL.release(open("/stream/live"));
+    assertEquals(2, clientPorts.size());
+    assertNotEquals(clientPorts.get(0), clientPorts.get(1));
+  }
+
+  private static void send(@NonNull HttpServletResponse response, int length)
+    throws IOException {
+    response.setContentLength(length);
+    try (OutputStream outputStream = response.getOutputStream()) {
+      outputStream.write(new byte[length]);
+    }
+  }
+
+  @NonNull
+  private URL getURL(@NonNull String path) throws IOException {
+    return new URL("http://127.0.0.1:" + server.getConnectors()[0].getLocalPort() + path);
+  }
+
+  @NonNull
+  private HttpURLConnection open(@NonNull String path) throws IOException {
+    final HttpURLConnection httpURLConnection = (HttpURLConnection) getURL(path).openConnection();
+    assertEquals(HttpURLConnection.HTTP_OK, httpURLConnection.getResponseCode());
+    return httpURLConnection;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+public class ResolvedUrlCacheTest {
+  // From ResolvedUrlCache
+  private static final String PREFERENCES_NAME = "resolved_urls";
+  // Long enough for connections to occur while revalidation is running
+  private static final int DELAY = 400; // ms
+  private final TestContext testContext = new TestContext();
+  private HttpFixture httpFixture;
+  private Radio radio;
+
+  @Before
+  public void setUp() throws IOException {
+    httpFixture = new HttpFixture();
+    httpFixture.put("/stream", "audio/mpeg", "audio");
+    httpFixture.put("/stream2", "audio/aac", "audio");
+    httpFixture.put("/radio.m3u", "audio/x-mpegurl", httpFixture.getURL("/stream2") + "\n");
+    radio = new Radio("Test", httpFixture.getURL("/radio.m3u"), null, false, null);
+    radio.setId(1L);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    httpFixture.close();
+  }
+
+  // Entry resolved to /stream, TTL elapsed
+  @NonNull
+  private ResolvedUrlCache getResolvedUrlCacheWithStaleEntry() throws IOException {
+    testContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+      .putString(
+        radio.getId().toString(),
+        radio.getURL() + "\n" + httpFixture.getURL("/stream") + "\naudio/mpeg\n\n0\n0")
+      .commit();
+    return new ResolvedUrlCache(testContext);
+  }
+
+  private void connect(@NonNull ResolvedUrlCache resolvedUrlCache) throws IOException {
+    final HttpURLConnection httpURLConnection = resolvedUrlCache.connect(radio, null);
+    assertEquals("/stream", httpURLConnection.getURL().getPath());
+    httpURLConnection.disconnect();
+  }
+
+  @Test
+  public void staleEntryIsRevalidatedOnceWithoutStream() throws Exception {
+    final ResolvedUrlCache resolvedUrlCache = getResolvedUrlCacheWithStaleEntry();
+    httpFixture.setDelay(DELAY);
+    for (int i = 0; i < 3; i++) {
+      connect(resolvedUrlCache);
+    }
+    assertTrue(StreamHubTest.waitFor(() -> {
+      final ResolvedUrlCache.Entry entry = resolvedUrlCache.get(radio);
+      return (entry != null) && !entry.isStale();
+    }, 10 * DELAY));
+    final ResolvedUrlCache.Entry entry = resolvedUrlCache.get(radio);
+    assertNotNull(entry);
+    assertEquals("/stream2", entry.getUrl().getPath());
+    assertEquals("audio/aac", entry.getContentType());
+    assertEquals(3, httpFixture.getRequests("GET", "/stream"));
+    assertEquals(1, httpFixture.getRequests("GET", "/radio.m3u"));
+    assertEquals(1, httpFixture.getRequests("HEAD", "/stream2"));
+    assertEquals(0, httpFixture.getRequests("GET", "/stream2"));
+  }
+
+  @Test
+  public void entryIsKeptOnRevalidationFailure() throws Exception {
+    final ResolvedUrlCache resolvedUrlCache = getResolvedUrlCacheWithStaleEntry();
+    httpFixture.put("/radio.m3u", 500, null, new byte[0]);
+    connect(resolvedUrlCache);
+    assertTrue(StreamHubTest.waitFor(
+      () -> httpFixture.getRequests("HEAD", "/radio.m3u") == 1, 10 * DELAY));
+    // Revalidation thread ends
+    Thread.sleep(DELAY);
+    final ResolvedUrlCache.Entry entry = resolvedUrlCache.get(radio);
+    assertNotNull(entry);
+    assertEquals("/stream", entry.getUrl().getPath());
+    connect(resolvedUrlCache);
+  }
+}
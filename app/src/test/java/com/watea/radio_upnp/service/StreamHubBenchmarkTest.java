@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+
+// Microbenchmarks, run as plain JUnit tests against loopback ICY server; results are printed.
+// Relay through StreamHub is compared to former relay, that read and wrote one byte at a time.
+// Pass-through relay is checked for heap allocation and CPU per relayed MB.
+public class StreamHubBenchmarkTest {
+  private static final int METADATA_OFFSET = 16000;
+  private static final int WARM_UP_BYTES = 4 * 1024 * 1024;
+  private static final int BENCHMARK_BYTES = 32 * 1024 * 1024;
+  private static final int COMPARED_BYTES = 256 * 1024;
+  // Slow enough for client to follow: overrun client would skip data
+  private static final int COMPARED_BYTES_PER_SECOND = 256 * 1024;
+  private IcyServer icyServer;
+  private long radioId = 0;
+
+  @After
+  public void tearDown() throws IOException {
+    icyServer.close();
+  }
+
+  @Test
+  public void relayIsByteIdentical() throws IOException {
+    icyServer = new IcyServer(METADATA_OFFSET, COMPARED_BYTES_PER_SECOND);
+    final ByteArrayOutputStream former = new ByteArrayOutputStream();
+    relayByteByByte(former, COMPARED_BYTES);
+    final ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+    relay(relayed, COMPARED_BYTES);
+    assertEquals(COMPARED_BYTES, former.size());
+    assertArrayEquals(former.toByteArray(), relayed.toByteArray());
+  }
+
+  @Test
+  public void relayIsFasterThanByteByByte() throws IOException {
+    // As fast as possible
+    icyServer = new IcyServer(METADATA_OFFSET, 0);
+    final Sink sink = new Sink();
+    relayByteByByte(sink, WARM_UP_BYTES);
+    relay(sink, WARM_UP_BYTES);
+    long start = System.nanoTime();
+    relayByteByByte(sink, BENCHMARK_BYTES);
+    final double formerRate = getRate(start);
+    start = System.nanoTime();
+    relay(sink, BENCHMARK_BYTES);
+    final double rate = getRate(start);
+    System.out.printf(
+      "Relay: byte by byte %.1f MB/s, StreamHub %.1f MB/s%n", formerRate, rate);
+    assertTrue(rate > formerRate);
+  }
+
+  @Test
+  public void passThroughDoesNotAllocate() throws IOException {
+    // No ICY metadata, as fast as possible
+    icyServer = new IcyServer(0, 0);
+    final StreamHub streamHub = newStreamHub();
+    final StreamHub.Cursor cursor = streamHub.addClient("benchmark");
+    final byte[] buffer = StreamHub.acquireBuffer();
+    final Sink sink = new Sink();
+    try {
+      streamHub.connect();
+      // Steady state only
+      relay(cursor, buffer, sink, WARM_UP_BYTES);
+      final long allocatedBytes = getAllocatedBytes();
+      final long cpuTime = getCpuTime();
+      relay(cursor, buffer, sink, BENCHMARK_BYTES);
+      final double allocatedPerMegabyte =
+        (getAllocatedBytes() - allocatedBytes) * 1024.0 * 1024.0 / BENCHMARK_BYTES;
+      final double cpuPerMegabyte =
+        (getCpuTime() - cpuTime) / 1000000.0 * 1024.0 * 1024.0 / BENCHMARK_BYTES;
+      System.out.printf(
+        "Pass-through: %.0f bytes allocated/MB, %.2f ms CPU/MB%n",
+        allocatedPerMegabyte,
+        cpuPerMegabyte);
+      // Audio never lands in a new heap buffer
+      assertTrue(allocatedPerMegabyte < 4096);
+    } finally {
+      StreamHub.releaseBuffer(buffer);
+      streamHub.removeClient(cursor);
+    }
+  }
+
+  // Sum on all threads but fixture ones
+  private static long getAllocatedBytes() {
+    final com.sun.management.ThreadMXBean threadMXBean =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long allocatedBytes = 0;
+    for (long id : getRelayThreadIds()) {
+      allocatedBytes += Math.max(0, threadMXBean.getThreadAllocatedBytes(id));
+    }
+    return allocatedBytes;
+  }
+
+  // ns, sum on all threads but fixture ones
+  private static long getCpuTime() {
+    final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    long cpuTime = 0;
+    for (long id : getRelayThreadIds()) {
+      cpuTime += Math.max(0, threadMXBean.getThreadCpuTime(id));
+    }
+    return cpuTime;
+  }
+
+  @NonNull
+  private static long[] getRelayThreadIds() {
+    return Thread.getAllStackTraces().keySet().stream()
+      .filter(thread -> !thread.getName().equals("IcyServer"))
+      .mapToLong(Thread::getId)
+      .toArray();
+  }
+
+  private static void relay(
+    @NonNull StreamHub.Cursor cursor,
+    @NonNull byte[] buffer,
+    @NonNull OutputStream outputStream,
+    int length) throws IOException {
+    final StreamHub streamHub = cursor.getStreamHub();
+    int size = 0;
+    int read;
+    while ((size < length) && ((read = streamHub.read(cursor, buffer)) > 0)) {
+      read = Math.min(read, length - size);
+      outputStream.write(buffer, 0, read);
+      size += read;
+    }
+    assertEquals(length, size);
+  }
+
+  // MB/s for BENCHMARK_BYTES since start
+  private static double getRate(long start) {
+    return BENCHMARK_BYTES * 1000.0 / (System.nanoTime() - start);
+  }
+
+  // Relay through StreamHub, as RadioHandler does
+  private void relay(@NonNull OutputStream outputStream, int length) throws IOException {
+    final StreamHub streamHub = newStreamHub();
+    final StreamHub.Cursor cursor = streamHub.addClient("benchmark");
+    final byte[] buffer = StreamHub.acquireBuffer();
+    try {
+      streamHub.connect();
+      relay(cursor, buffer, outputStream, length);
+    } finally {
+      StreamHub.releaseBuffer(buffer);
+      streamHub.removeClient(cursor);
+    }
+  }
+
+  @NonNull
+  private StreamHub newStreamHub() throws IOException {
+    final Radio radio = new Radio("Test", icyServer.getURL(), null, false, null);
+    radio.setId(++radioId);
+    return new StreamHub(
+      radio,
+      "Test",
+      (information, rate, format, lockKey) -> {
+      },
+      new ResolvedUrlCache(new TestContext()),
+      2);
+  }
+
+  // Former RadioHandler.handleStreaming loop, metadata only skipped
+  private void relayByteByByte(@NonNull OutputStream outputStream, int length)
+    throws IOException {
+    final HttpURLConnection httpURLConnection =
+      (HttpURLConnection) icyServer.getURL().openConnection();
+    httpURLConnection.setRequestProperty("Icy-Metadata", "1");
+    try (InputStream inputStream = httpURLConnection.getInputStream()) {
+      final byte[] buffer = new byte[1];
+      int metadataBlockBytesRead = 0;
+      int metadataSize = 0;
+      int size = 0;
+      while (size < length) {
+        if (inputStream.read(buffer) < 0) {
+          break;
+        }
+        if (++metadataBlockBytesRead <= METADATA_OFFSET) {
+          outputStream.write(buffer);
+          size++;
+        } else {
+          final int metadataIndex = metadataBlockBytesRead - METADATA_OFFSET - 1;
+          if (metadataIndex == 0) {
+            metadataSize = buffer[0] * 16;
+          }
+          if (metadataIndex == metadataSize) {
+            metadataBlockBytesRead = 0;
+          }
+        }
+      }
+    } finally {
+      httpURLConnection.disconnect();
+    }
+  }
+
+  // Consumes data, so that it is not optimized out
+  private static class Sink extends OutputStream {
+    private long checksum = 0;
+
+    @Override
+    public void write(int b) {
+      checksum += b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+      checksum += b[off] + len;
+    }
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import com.watea.radio_upnp.model.Radio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class StreamHubTest {
+  private static final int METADATA_OFFSET = 8192;
+  // Ten times real time at 128 kbit/s, for short tests
+  private static final int BYTES_PER_SECOND = 160000;
+  private static final int CLIENT_BYTES = 256 * 1024;
+  // Upstream requests refused after drop
+  private static final int RECONNECT_FAILURES = 3;
+  // 2 s at 128 kbit/s, as given by icy-br
+  private static final int PREFETCH_SIZE = 32000;
+  private static final int RADIOS = 4;
+  // Ring holds 4 s at 128 kbit/s, that is 0.4 s at test rate
+  private static final int LATENCY_OVER_RING = 1000; // ms
+  private static final int LATENCY_WITHIN_RING = 100; // ms
+  private final List<String> informations = new Vector<>();
+  private final RadioHandler.Listener listener =
+    (information, rate, format, lockKey) -> informations.add(information);
+  private IcyServer icyServer;
+  private StreamHub streamHub;
+
+  // Reads length bytes, or until end of stream
+  @NonNull
+  static byte[] readFully(@NonNull StreamHub.Cursor cursor, int length) throws IOException {
+    final StreamHub streamHub = cursor.getStreamHub();
+    final byte[] data = new byte[length];
+    final byte[] buffer = StreamHub.acquireBuffer();
+    int size = 0;
+    int read;
+    while ((size < length) && ((read = streamHub.read(cursor, buffer)) > 0)) {
+      final int copied = Math.min(read, length - size);
+      System.arraycopy(buffer, 0, data, size, copied);
+      size += copied;
+    }
+    StreamHub.releaseBuffer(buffer);
+    assertEquals("Stream ended early", length, size);
+    return data;
+  }
+
+  // Waits until condition or timeout; returns condition
+  static boolean waitFor(@NonNull Condition condition, long timeout) throws InterruptedException {
+    final long end = System.currentTimeMillis() + timeout;
+    while (!condition.isMet() && (System.currentTimeMillis() < end)) {
+      Thread.sleep(20);
+    }
+    return condition.isMet();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    icyServer = new IcyServer(METADATA_OFFSET, BYTES_PER_SECOND);
+    final Radio radio = new Radio("Test", icyServer.getURL(), null, false, null);
+    radio.setId(1L);
+    streamHub = new StreamHub(radio, "Test", listener, new ResolvedUrlCache(new TestContext()), 2);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    icyServer.close();
+  }
+
+  @Test
+  public void clientsShareOneUpstreamConnection() throws Exception {
+    final int clients = 8;
+    final ExecutorService executorService = Executors.newFixedThreadPool(clients);
+    final List<Future<byte[]>> futures = new Vector<>();
+    for (int i = 0; i < clients; i++) {
+      final StreamHub.Cursor cursor = streamHub.addClient("client" + i);
+      futures.add(executorService.submit(() -> {
+        streamHub.connect();
+        final byte[] data = readFully(cursor, CLIENT_BYTES);
+        streamHub.removeClient(cursor);
+        return data;
+      }));
+    }
+    for (Future<byte[]> future : futures) {
+      final byte[] data = future.get(30, TimeUnit.SECONDS);
+      // ICY metadata stripped: audio frames are contiguous
+      assertTrue("Broken audio", IcyServer.checkFrames(data, 0, data.length) >= 0);
+    }
+    executorService.shutdown();
+    assertEquals(1, icyServer.getConnections());
+    assertTrue(informations.contains(IcyServer.getTitle(0)));
+  }
+
+  @Test
+  public void lateClientStartsOnFrameBoundary() throws Exception {
+    final StreamHub.Cursor first = streamHub.addClient("first");
+    streamHub.connect();
+    readFully(first, CLIENT_BYTES);
+    final StreamHub.Cursor late = streamHub.addClient("late");
+    final byte[] data = readFully(late, CLIENT_BYTES);
+    assertTrue("Not on frame boundary", IcyServer.checkFrames(data, 0, data.length) > 0);
+    streamHub.removeClient(first);
+    streamHub.removeClient(late);
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test(timeout = 30000)
+  public void lateClientGetsPrefetchAtOnce() throws Exception {
+    final StreamHub.Cursor first = streamHub.addClient("first");
+    streamHub.connect();
+    readFully(first, CLIENT_BYTES);
+    // Renderer stub: time to first data, then data available without waiting
+    final StreamHub.Cursor late = streamHub.addClient("late");
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    final byte[] buffer = StreamHub.acquireBuffer();
+    final long start = System.nanoTime();
+    int read = streamHub.read(late, buffer);
+    final long firstDataTime = (System.nanoTime() - start) / 1000000;
+    do {
+      data.write(buffer, 0, read);
+    } while ((read = streamHub.read(late, buffer, false)) > 0);
+    StreamHub.releaseBuffer(buffer);
+    streamHub.removeClient(first);
+    streamHub.removeClient(late);
+    System.out.println(
+      "Late client: " + data.size() + " bytes at once, first after " + firstDataTime + " ms");
+    // Not prefetch duration
+    assertTrue(firstDataTime < 500);
+    // Up to prefetch amount, from last frame boundary before; a little more may have come
+    assertTrue(data.size() > PREFETCH_SIZE - IcyServer.FRAME_LENGTH);
+    assertTrue(data.size() < PREFETCH_SIZE + 4 * IcyServer.FRAME_LENGTH);
+    final byte[] bytes = data.toByteArray();
+    assertTrue("Not on frame boundary", IcyServer.checkFrames(bytes, 0, bytes.length) > 0);
+  }
+
+  @Test(timeout = 30000)
+  public void slowClientDoesNotStallUpstream() throws Exception {
+    final StreamHub.Cursor slow = streamHub.addClient("slow");
+    final StreamHub.Cursor fast = streamHub.addClient("fast");
+    streamHub.connect();
+    // Slow client does not read while fast one gets several ring sizes
+    final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    final byte[] data =
+      executorService.submit(() -> readFully(fast, CLIENT_BYTES)).get(10, TimeUnit.SECONDS);
+    executorService.shutdown();
+    assertEquals(0, IcyServer.checkFrames(data, 0, data.length));
+    assertEquals(100, streamHub.getFillLevel());
+    // Overrun slow client is skipped ahead, to a frame boundary
+    final byte[] slowData = readFully(slow, 4 * IcyServer.FRAME_LENGTH);
+    assertTrue(
+      "Not skipped ahead",
+      IcyServer.checkFrames(slowData, 0, slowData.length) >
+        CLIENT_BYTES / 2 / IcyServer.FRAME_LENGTH);
+    streamHub.removeClient(slow);
+    streamHub.removeClient(fast);
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test(timeout = 30000)
+  public void droppedUpstreamIsSplicedOnFrameBoundary() throws Exception {
+    // Dropped within a frame; then refused, then served from within a frame
+    final int bytesMax = 50 * IcyServer.FRAME_LENGTH + 100;
+    final int startOffset = 3 * IcyServer.FRAME_LENGTH + 200;
+    icyServer.setBytesMax(bytesMax);
+    final StreamHub.Cursor cursor = streamHub.addClient("client");
+    streamHub.connect();
+    assertTrue(waitFor(() -> icyServer.getOpenConnections() == 0, 5000));
+    final long dropTime = System.currentTimeMillis();
+    icyServer.setBytesMax(Long.MAX_VALUE);
+    icyServer.setStartOffset(startOffset);
+    icyServer.setFailures(RECONNECT_FAILURES);
+    final byte[] data = readFully(cursor, bytesMax + 20 * IcyServer.FRAME_LENGTH);
+    streamHub.removeClient(cursor);
+    // Buffered data, up to the cut, then new data from next frame boundary
+    assertEquals(0, IcyServer.checkFrames(data, 0, bytesMax));
+    assertEquals(
+      "Not spliced on frame boundary",
+      startOffset / IcyServer.FRAME_LENGTH + 1,
+      IcyServer.checkFrames(data, bytesMax, data.length));
+    // Backoff: each try waits twice as long as the previous one.
+    // Requests of a same try (e.g. cached URL, then radio URL) are close together.
+    final List<Long> connectionTimes = icyServer.getConnectionTimes();
+    final List<Long> delays = new ArrayList<>();
+    long tryEnd = dropTime;
+    for (long connectionTime : connectionTimes.subList(1, connectionTimes.size())) {
+      if (connectionTime - tryEnd > StreamHub.RECONNECT_DELAY / 2) {
+        delays.add(connectionTime - tryEnd);
+      }
+      tryEnd = connectionTime;
+    }
+    System.out.println("Reconnection delays: " + delays + " ms");
+    assertTrue("Too few tries: " + delays, delays.size() > 1);
+    for (int i = 0; i < delays.size(); i++) {
+      final long delay = (long) StreamHub.RECONNECT_DELAY << i;
+      assertTrue("Try " + i + ": " + delays, delays.get(i) > delay - 50);
+      assertTrue("Try " + i + ": " + delays, delays.get(i) < delay + 500);
+    }
+  }
+
+  // Renderer stalls longer than ring: producer does not wait, others get data on time
+  @Test(timeout = 30000)
+  public void rendererLatencyDoesNotDelayOthers() throws Exception {
+    final StreamHub.Cursor steady = streamHub.addClient("steady");
+    final StreamHub.Cursor jittery = streamHub.addClient("jittery");
+    streamHub.connect();
+    final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    final Future<byte[]> jitteryData =
+      executorService.submit(() -> readWithLatency(jittery, LATENCY_OVER_RING));
+    final byte[] buffer = StreamHub.acquireBuffer();
+    // Prefetch burst first
+    int size = streamHub.read(steady, buffer);
+    long readTime = System.currentTimeMillis();
+    long gapMax = 0;
+    while (!jitteryData.isDone()) {
+      size += streamHub.read(steady, buffer);
+      final long now = System.currentTimeMillis();
+      gapMax = Math.max(gapMax, now - readTime);
+      readTime = now;
+    }
+    StreamHub.releaseBuffer(buffer);
+    final byte[] data = jitteryData.get();
+    executorService.shutdown();
+    streamHub.removeClient(steady);
+    streamHub.removeClient(jittery);
+    System.out.println("Injected latency " + LATENCY_OVER_RING + " ms: other client got " +
+      size + " bytes, " + gapMax + " ms between reads at most");
+    assertTrue(gapMax < LATENCY_OVER_RING / 4);
+    // Stalled client was skipped ahead
+    assertEquals(-1, IcyServer.checkFrames(data, 0, data.length));
+  }
+
+  // Renderer stalls shorter than ring: no data lost
+  @Test(timeout = 30000)
+  public void rendererLatencyWithinRingLosesNoData() throws Exception {
+    final StreamHub.Cursor jittery = streamHub.addClient("jittery");
+    streamHub.connect();
+    final byte[] data = readWithLatency(jittery, LATENCY_WITHIN_RING);
+    streamHub.removeClient(jittery);
+    assertEquals(0, IcyServer.checkFrames(data, 0, data.length));
+  }
+
+  @Test(timeout = 30000)
+  public void pausedClientLosesNoData() throws Exception {
+    final StreamHub.Cursor cursor = streamHub.addClient("paused");
+    streamHub.connect();
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    final byte[] buffer = StreamHub.acquireBuffer();
+    while (data.size() < CLIENT_BYTES / 2) {
+      data.write(buffer, 0, streamHub.read(cursor, buffer));
+    }
+    // Several ring durations
+    streamHub.setPaused(true);
+    Thread.sleep(2000);
+    final int fillLevel = streamHub.getFillLevel();
+    // Data buffered meanwhile is read before resume, that is before upstream backlog comes
+    int read;
+    while ((data.size() < CLIENT_BYTES) && ((read = streamHub.read(cursor, buffer, false)) > 0)) {
+      data.write(buffer, 0, read);
+    }
+    streamHub.setPaused(false);
+    StreamHub.releaseBuffer(buffer);
+    streamHub.removeClient(cursor);
+    // Upstream no more read before paused client is overrun
+    assertTrue("Fill level: " + fillLevel, (fillLevel >= 50) && (fillLevel < 100));
+    final byte[] bytes = data.toByteArray();
+    assertEquals(0, IcyServer.checkFrames(bytes, 0, bytes.length));
+  }
+
+  @Test(timeout = 30000)
+  public void passiveClientIsNotInFillLevel() throws Exception {
+    final StreamHub.Cursor passive = streamHub.addClient("passive", true);
+    streamHub.connect();
+    assertTrue(waitFor(() -> icyServer.getOpenConnections() == 1, 5000));
+    Thread.sleep(1000);
+    assertEquals(0, streamHub.getFillLevel());
+    streamHub.removeClient(passive);
+  }
+
+  @Test(timeout = 30000)
+  public void passiveClientFollowsLiveData() throws Exception {
+    final StreamHub.Cursor passive = streamHub.addClient("passive", true);
+    streamHub.connect();
+    // Ring rolls over several times
+    Thread.sleep(1500);
+    // Passive cursor is kept on oldest data, not reset to burst start as an overrun one
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    final byte[] buffer = StreamHub.acquireBuffer();
+    int read;
+    while ((read = streamHub.read(passive, buffer, false)) > 0) {
+      data.write(buffer, 0, read);
+    }
+    StreamHub.releaseBuffer(buffer);
+    streamHub.removeClient(passive);
+    assertTrue("Passive cursor not kept in ring: " + data.size(),
+      data.size() > PREFETCH_SIZE * 3 / 2);
+    // Data is recent and unbroken
+    final byte[] bytes = data.toByteArray();
+    int offset = 0;
+    while (IcyServer.getFrameIndex(bytes, offset) < 0) {
+      offset++;
+    }
+    final int firstFrame = IcyServer.checkFrames(bytes, offset, bytes.length);
+    assertTrue("Stale data", firstFrame > 2 * PREFETCH_SIZE / IcyServer.FRAME_LENGTH);
+    assertEquals(1, icyServer.getConnections());
+  }
+
+  @Test(timeout = 30000)
+  public void warmUpIsCappedAndCancelled() throws Exception {
+    final RadioHandler radioHandler = newRadioHandler();
+    final List<Radio> radios = getRadios();
+    try {
+      // Current radio is not warmed up; only two others
+      radioHandler.warmUp(radios.get(0), radios);
+      assertTrue(waitFor(() -> icyServer.getOpenConnections() == 2, 5000));
+      // Warm radios are kept
+      radioHandler.warmUp(radios.get(0), radios);
+      Thread.sleep(500);
+      assertEquals(2, icyServer.getConnections());
+      assertEquals(2, icyServer.getOpenConnections());
+      // On playback stop
+      radioHandler.cancelWarmUp();
+      assertTrue(waitFor(() -> icyServer.getOpenConnections() == 0, 5000));
+    } finally {
+      radioHandler.stopStreaming();
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void warmUpIsCancelledOnStop() throws Exception {
+    final RadioHandler radioHandler = newRadioHandler();
+    final List<Radio> radios = getRadios();
+    radioHandler.warmUp(radios.get(0), radios);
+    assertTrue(waitFor(() -> icyServer.getOpenConnections() == 2, 5000));
+    radioHandler.stopStreaming();
+    assertTrue(waitFor(() -> icyServer.getOpenConnections() == 0, 5000));
+    // No warm up once stopped
+    radioHandler.warmUp(radios.get(0), radios);
+    Thread.sleep(500);
+    assertEquals(2, icyServer.getConnections());
+  }
+
+  @Test
+  public void upstreamReleasedWithLastClient() throws Exception {
+    final StreamHub.Cursor first = streamHub.addClient("first");
+    final StreamHub.Cursor second = streamHub.addClient("second");
+    streamHub.connect();
+    readFully(first, CLIENT_BYTES / 4);
+    streamHub.removeClient(first);
+    assertTrue(!streamHub.isClosed());
+    assertEquals(1, icyServer.getOpenConnections());
+    streamHub.removeClient(second);
+    assertTrue(streamHub.isClosed());
+    assertTrue(waitFor(() -> icyServer.getOpenConnections() == 0, 5000));
+  }
+
+  // Reads CLIENT_BYTES, waiting latency after each quarter
+  @NonNull
+  private static byte[] readWithLatency(@NonNull StreamHub.Cursor cursor, int latency)
+    throws Exception {
+
+    final StreamHub streamHub = cursor.getStreamHub();
+    final byte[] data = new byte[CLIENT_BYTES];
+    final byte[] buffer = StreamHub.acquireBuffer();
+    int size = 0;
+    int part = 1;
+    while (size < CLIENT_BYTES) {
+      final int read = streamHub.read(cursor, buffer);
+      assertTrue("Stream ended early", read > 0);
+      final int copied = Math.min(read, CLIENT_BYTES - size);
+      System.arraycopy(buffer, 0, data, size, copied);
+      size += copied;
+      if (size >= part * CLIENT_BYTES / 4) {
+        part++;
+        Thread.sleep(latency);
+      }
+    }
+    StreamHub.releaseBuffer(buffer);
+    return data;
+  }
+
+  // Radios on loopback ICY server
+  @NonNull
+  private List<Radio> getRadios() throws IOException {
+    final List<Radio> radios = new ArrayList<>();
+    for (long id = 1; id <= RADIOS; id++) {
+      final Radio radio = new Radio("Test" + id, icyServer.getURL(), null, false, null);
+      radio.setId(id);
+      radios.add(radio);
+    }
+    return radios;
+  }
+
+  @NonNull
+  private RadioHandler newRadioHandler() {
+    return new RadioHandler(
+      "Test",
+      radioId -> null,
+      listener,
+      new ResolvedUrlCache(new TestContext()),
+      RADIOS,
+      false,
+      false);
+  }
+
+  interface Condition {
+    boolean isMet();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018. Stephane Treuchot
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ * of the Software, and to permit persons to whom the Software is furnished to
+ * do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.watea.radio_upnp.service;
+
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Context for JVM tests; only preferences are available, held in memory
+public class TestContext extends ContextWrapper {
+  private final Map<String, Object> values = new HashMap<>();
+  private final SharedPreferences sharedPreferences = new SharedPreferences() {
+    @Override
+    public Map<String, ?> getAll() {
+      synchronized (values) {
+        return new HashMap<>(values);
+      }
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+      return (String) get(key, defValue);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+      return (Set<String>) get(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+      return (Integer) get(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+      return (Long) get(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+      return (Float) get(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+      return (Boolean) get(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+      synchronized (values) {
+        return values.containsKey(key);
+      }
+    }
+
+    @Override
+    public Editor edit() {
+      return new TestEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+      OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+      OnSharedPreferenceChangeListener listener) {
+    }
+  };
+
+  public TestContext() {
+    super(null);
+  }
+
+  @Override
+  public SharedPreferences getSharedPreferences(String name, int mode) {
+    return sharedPreferences;
+  }
+
+  @Nullable
+  private Object get(@NonNull String key, @Nullable Object defValue) {
+    synchronized (values) {
+      return values.containsKey(key) ? values.get(key) : defValue;
+    }
+  }
+
+  // Changes are applied on commit, as on Android
+  private class TestEditor implements SharedPreferences.Editor {
+    private final Map<String, Object> changes = new HashMap<>();
+    private boolean isCleared = false;
+
+    @Override
+    public SharedPreferences.Editor putString(String key, @Nullable String value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values) {
+      changes.put(key, values);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor putInt(String key, int value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor putLong(String key, long value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor putFloat(String key, float value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor putBoolean(String key, boolean value) {
+      changes.put(key, value);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor remove(String key) {
+      changes.put(key, null);
+      return this;
+    }
+
+    @Override
+    public SharedPreferences.Editor clear() {
+      isCleared = true;
+      return this;
+    }
+
+    @Override
+    public boolean commit() {
+      synchronized (values) {
+        if (isCleared) {
+          values.clear();
+        }
+        for (Map.Entry<String, Object> entry : changes.entrySet()) {
+          if (entry.getValue() == null) {
+            values.remove(entry.getKey());
+          } else {
+            values.put(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public void apply() {
+      commit();
+    }
+  }
+}